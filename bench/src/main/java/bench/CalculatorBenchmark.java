@@ -0,0 +1,261 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// benchmarks every stage of the "=" path separately (tokenize, toPostFix, evaluate, factorial) plus the whole thing,
+// and bulk evaluation over a grid of points
+// JMH doesn't allow benchmarks in the default package and a named package can't import it, so the calculator is
+// reached through method handles. they're static final, so the JIT treats them like direct calls, just a few casts
+// java -jar target/benchmarks.jar runs everything in throughput and average time mode with the GC profiler
+// (gc.alloc.rate.norm is the allocated bytes per operation)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalculatorBenchmark {
+	private static final MethodHandle TOKENIZE, TO_POSTFIX, NEW_COMPILED, COMPILE, EVALUATE, EVALUATE_MODE, FACTORIAL, NEW_CACHE, CACHE_COMPILE, SET_COMPILE_THRESHOLD, BULK;
+
+	private static final Object FAST;
+
+	static {
+		try {
+			Class<?> engine = Class.forName("ExpressionEngine");
+			Class<?> compiled = Class.forName("CompiledExpression");
+			Class<?> cache = Class.forName("ExpressionCache");
+			MethodHandles.Lookup engineLookup = MethodHandles.privateLookupIn(engine, MethodHandles.lookup());
+			MethodHandles.Lookup compiledLookup = MethodHandles.privateLookupIn(compiled, MethodHandles.lookup());
+			MethodHandles.Lookup cacheLookup = MethodHandles.privateLookupIn(cache, MethodHandles.lookup());
+
+			TOKENIZE = engineLookup.findStatic(engine, "tokenize", MethodType.methodType(List.class, String.class));
+			TO_POSTFIX = engineLookup.findStatic(engine, "toPostFix", MethodType.methodType(List.class, List.class));
+			COMPILE = engineLookup.findStatic(engine, "compile", MethodType.methodType(compiled, String.class))
+				.asType(MethodType.methodType(Object.class, String.class));
+			NEW_COMPILED = compiledLookup.findConstructor(compiled, MethodType.methodType(void.class, List.class))
+				.asType(MethodType.methodType(Object.class, List.class));
+			EVALUATE = compiledLookup.findVirtual(compiled, "evaluate", MethodType.methodType(BigDecimal.class, BigDecimal.class))
+				.asType(MethodType.methodType(BigDecimal.class, Object.class, BigDecimal.class));
+			Class<?> mode = Class.forName("EvaluationMode");
+			Class<?> evaluation = Class.forName("Evaluation");
+			EVALUATE_MODE = compiledLookup.findVirtual(compiled, "evaluate", MethodType.methodType(evaluation, BigDecimal.class, mode))
+				.asType(MethodType.methodType(Object.class, Object.class, BigDecimal.class, Object.class));
+			FAST = mode.getField("FAST").get(null);
+			Class<?> factorials = Class.forName("Factorials");
+			FACTORIAL = MethodHandles.privateLookupIn(factorials, MethodHandles.lookup()).findStatic(factorials, "factorial", MethodType.methodType(BigDecimal.class, BigDecimal.class));
+			NEW_CACHE = cacheLookup.findConstructor(cache, MethodType.methodType(void.class, int.class))
+				.asType(MethodType.methodType(Object.class, int.class));
+			CACHE_COMPILE = cacheLookup.findVirtual(cache, "compile", MethodType.methodType(compiled, String.class))
+				.asType(MethodType.methodType(Object.class, Object.class, String.class));
+			Class<?> bulk = Class.forName("BulkEvaluator");
+			BULK = MethodHandles.privateLookupIn(bulk, MethodHandles.lookup()).findStatic(bulk, "evaluate", MethodType.methodType(void.class, compiled, double.class, double[][].class, double[].class))
+				.asType(MethodType.methodType(void.class, Object.class, double.class, double[][].class, double[].class));
+			Class<?> hot = Class.forName("HotCompiler");
+			SET_COMPILE_THRESHOLD = MethodHandles.privateLookupIn(hot, MethodHandles.lookup()).findStatic(hot, "setThreshold", MethodType.methodType(void.class, int.class));
+		} catch (ReflectiveOperationException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	// the expressions, already run through each stage so every benchmark only measures its own stage
+	@State(Scope.Benchmark)
+	public static class Corpus {
+		@Param({ "debugProblems", "errors", "nestedParens", "longSum", "largeFactorial" })
+		public String corpus;
+
+		String[] expressions;
+		List<?>[] tokens;
+		List<?>[] postfix;
+		Object[] compiled;
+		Object cache;
+
+		@Setup
+		public void setup() throws Throwable {
+			expressions = expressions(corpus);
+			tokens = new List<?>[expressions.length];
+			postfix = new List<?>[expressions.length];
+			compiled = new Object[expressions.length];
+			for (int i = 0; i < expressions.length; i++) {
+				tokens[i] = (List<?>) TOKENIZE.invokeExact(expressions[i]);
+				postfix[i] = (List<?>) TO_POSTFIX.invokeExact((List<?>) tokens[i]);
+				compiled[i] = (Object) NEW_COMPILED.invokeExact((List<?>) postfix[i]);
+			}
+			cache = (Object) NEW_CACHE.invokeExact(256);
+		}
+	}
+
+	// turns HotCompiler off, every benchmark runs in its own fork so this doesn't leak into the others
+	@State(Scope.Benchmark)
+	public static class Interpreted {
+		@Setup
+		public void setup() throws Throwable {
+			SET_COMPILE_THRESHOLD.invokeExact(0);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class FactorialInput {
+		@Param({ "10", "170", "1000", "5000", "50000" })
+		public int n;
+
+		BigDecimal value;
+
+		@Setup
+		public void setup() { value = BigDecimal.valueOf(n); }
+	}
+
+	// a parameter sweep, (x, y) pairs over a grid
+	@State(Scope.Benchmark)
+	public static class Grid {
+		@Param({ "x^2 + 3x*y - y/7", "√(x*x + y*y) + sin(x)" })
+		public String expression;
+
+		@Param({ "1000000" })
+		public int points;
+
+		Object compiled;
+		double[][] columns;
+		double[] results;
+
+		@Setup
+		public void setup() throws Throwable {
+			compiled = (Object) COMPILE.invokeExact(expression);
+			columns = new double[2][points];
+			for (int i = 0; i < points; i++) {
+				columns[0][i] = i % 1000 * 0.01;
+				columns[1][i] = i / 1000 - 500;
+			}
+			results = new double[points];
+		}
+	}
+
+	// DEBUG PROBLEMS from the top of CalculatorGUI.java, plus stress cases
+	static String[] expressions(String corpus) {
+		return switch (corpus) {
+			case "debugProblems" -> new String[] {
+				"2! + 3!", "(1^2)!", "(22 / 7)^2", "sin(1) + cos(30)", "tan(180)", "sin(cos(30)tan(90))"
+			};
+			case "errors" -> new String[] { "1/0", "csc(0)", "cot(0)", "-1!" };
+			case "nestedParens" -> new String[] { "(".repeat(500) + "1 + 2" + ") * 2".repeat(500) };
+			case "longSum" -> {
+				StringBuilder sb = new StringBuilder("1");
+				for (int i = 2; i <= 5000; i++) sb.append(" + ").append(i);
+				yield new String[] { sb.toString() };
+			}
+			case "largeFactorial" -> new String[] { "1000!", "3000!", "(200!) / (198!)" };
+			default -> throw new IllegalArgumentException("Unknown corpus: " + corpus);
+		};
+	}
+
+	@Benchmark
+	public void tokenize(Corpus c, Blackhole bh) throws Throwable {
+		for (String expr : c.expressions) bh.consume((List<?>) TOKENIZE.invokeExact(expr));
+	}
+
+	@Benchmark
+	public void toPostFix(Corpus c, Blackhole bh) throws Throwable {
+		for (List<?> tokens : c.tokens) bh.consume((List<?>) TO_POSTFIX.invokeExact(tokens));
+	}
+
+	// what used to be evaluatePostfix, only the postfix walk
+	// these get evaluated way past the compile threshold during warmup, so this ends up measuring the generated classes
+	@Benchmark
+	public void evaluatePostfix(Corpus c, Blackhole bh) throws Throwable {
+		for (Object compiled : c.compiled) {
+			try {
+				bh.consume((BigDecimal) EVALUATE.invokeExact(compiled, BigDecimal.ZERO));
+			} catch (ArithmeticException | IllegalArgumentException ex) {
+				bh.consume(ex);
+			}
+		}
+	}
+
+	// same, with the interpreter only
+	@Benchmark
+	public void evaluateInterpreted(Corpus c, Interpreted off, Blackhole bh) throws Throwable {
+		evaluatePostfix(c, bh);
+	}
+
+	// EvaluationMode.FAST, doubles with the BigDecimal fallback
+	@Benchmark
+	public void evaluateFast(Corpus c, Blackhole bh) throws Throwable {
+		for (Object compiled : c.compiled) {
+			try {
+				bh.consume((Object) EVALUATE_MODE.invokeExact(compiled, BigDecimal.ZERO, FAST));
+			} catch (ArithmeticException | IllegalArgumentException ex) {
+				bh.consume(ex);
+			}
+		}
+	}
+
+	// tokenize + toPostFix + evaluate, no cache, like the first time an expression is seen
+	@Benchmark
+	public void equalsCold(Corpus c, Blackhole bh) throws Throwable {
+		for (String expr : c.expressions) {
+			try {
+				Object compiled = (Object) COMPILE.invokeExact(expr);
+				bh.consume(((BigDecimal) EVALUATE.invokeExact(compiled, BigDecimal.ZERO)).stripTrailingZeros().toPlainString());
+			} catch (ArithmeticException | IllegalArgumentException ex) {
+				bh.consume(ex);
+			}
+		}
+	}
+
+	// what the GUI does on "=": cache lookup, evaluate, format
+	@Benchmark
+	public void equalsCached(Corpus c, Blackhole bh) throws Throwable {
+		for (String expr : c.expressions) {
+			try {
+				Object compiled = (Object) CACHE_COMPILE.invokeExact(c.cache, expr);
+				bh.consume(((BigDecimal) EVALUATE.invokeExact(compiled, BigDecimal.ZERO)).stripTrailingZeros().toPlainString());
+			} catch (ArithmeticException | IllegalArgumentException ex) {
+				bh.consume(ex);
+			}
+		}
+	}
+
+	@Benchmark
+	public BigDecimal factorial(FactorialInput in) throws Throwable {
+		return (BigDecimal) FACTORIAL.invokeExact(in.value);
+	}
+
+	// whole grid at once through BulkEvaluator
+	@Benchmark
+	public double[] bulkSweep(Grid g) throws Throwable {
+		BULK.invokeExact(g.compiled, 0.0, g.columns, g.results);
+		return g.results;
+	}
+
+	// usual JMH command line options still work, ex. "-p corpus=longSum" or "tokenize", no filter runs everything
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		Options opt = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,81 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// results come out in input order, one per line, whatever the workers finish first, and a failing writer ends the
+// batch instead of hanging it
+class BatchCalculatorTest {
+	// a few chunks' worth (CHUNK_LINES is 4096), so they really run side by side
+	private static final int LINES = 20000;
+
+	@Test
+	void resultsInInputOrder() throws Exception {
+		StringBuilder in = new StringBuilder();
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < LINES; i++) {
+			// the odd line is expensive so later chunks tend to finish first
+			if (i % 5000 == 0) {
+				in.append("300!\n");
+				expected.add(ExpressionEngine.compile("300!").evaluate(BigDecimal.ZERO).toPlainString());
+			} else if (i % 7 == 0) {
+				in.append(i).append(" / 0\n");
+				expected.add("Error");
+			} else if (i % 11 == 0) {
+				in.append(i % 2 == 0 ? "\n" : "  \r\n");
+				expected.add("");
+			} else {
+				in.append(i).append(" * 2 + 1\n");
+				expected.add(String.valueOf(i * 2 + 1));
+			}
+		}
+		assertEquals(expected, run(in.toString()));
+	}
+
+	@Test
+	void lastLineWithoutNewline() throws Exception {
+		assertEquals(List.of("3", "Error", "", "0.5"), run("1 + 2\n2 +\n\n1/2"));
+	}
+
+	@Test
+	void failingWriterEndsTheBatch() throws Exception {
+		Writer broken = new Writer() {
+			@Override
+			public void write(char[] buffer, int offset, int length) throws IOException { throw new IOException("disk full"); }
+
+			@Override
+			public void flush() {}
+
+			@Override
+			public void close() {}
+		};
+		BatchCalculator batch = new BatchCalculator(broken, 2, EvaluationMode.EXACT, null);
+		batch.readStream(input("1 + 1\n".repeat(4096)));	// a whole chunk, which the writer fails on
+		Thread.sleep(500);
+		batch.readStream(input("2 + 2"));	// close() has to submit this one and finds the failure
+		assertThrows(IllegalStateException.class, batch::close);
+		Thread writer = Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals("batch-writer")).findAny().orElse(null);
+		if (writer != null) writer.join(5000);
+		assertFalse(writer != null && writer.isAlive(), "the writer thread is still waiting");
+	}
+
+	private static List<String> run(String in) throws Exception {
+		StringWriter out = new StringWriter();
+		try (BatchCalculator batch = new BatchCalculator(out, 4, EvaluationMode.EXACT, null)) {
+			batch.readStream(input(in));
+		}
+		return List.of(out.toString().split("\n", -1)).subList(0, (int) out.toString().chars().filter(c -> c == '\n').count());
+	}
+
+	private static ByteArrayInputStream input(String s) { return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)); }
+}
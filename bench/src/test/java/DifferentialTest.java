@@ -0,0 +1,151 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+
+// evaluates random expressions every way the engine can and checks they all agree with the plain interpreter running
+// the program as compiled: Optimizer's program has to give the same number, every digit of it, or throw the same
+// exception, so does the class HotCompiler makes out of it, and a FAST result has to be within the digits it claims.
+// only the scale may differ (x * 1 becomes x, and 1 may have been 1.0), nothing shows it or depends on it
+// it's in the default package, next to the calculator's classes, so it gets at the package private parts without the
+// method handles the benchmarks need. mvn -B test runs it, -Dseed=<n> tries other expressions
+class DifferentialTest {
+	private static final int EXPRESSIONS = 4000;
+	private static final String[] VARIABLES = { "x", "y" };
+	// null is the classic double based path, the other one BigMath's
+	private static final MathContext[] CONTEXTS = { null, new MathContext(30) };
+
+	// a formula too big to be copied into the caller (javacalc.inline.max is 64), so there's a CALL too
+	private static final Functions FUNCTIONS = new Functions().define("big(a, b) = " + "a * b - a / 4 + ".repeat(20) + "b");
+
+	private final Random random = new Random(Long.getLong("seed", 20261018));
+
+	@Test
+	void everyPathAgreesWithTheInterpreter() {
+		for (int n = 0; n < EXPRESSIONS; n++) {
+			String expr = expression(4);
+			CompiledExpression e = ExpressionEngine.compile(expr, FUNCTIONS);
+			assertTrue(e.wellFormed(), expr);
+			BigDecimal ans = number();
+			BigDecimal[] values = new BigDecimal[e.variables().size()];
+			for (int i = 0; i < values.length; i++) values[i] = number();
+			boolean underMod = false;	// a ^ b % m somewhere
+			for (boolean b : Optimizer.powersUnderMod(e.original().code)) underMod |= b;
+			String where = expr + " with Ans = " + ans + ", " + e.variables() + " = " + Arrays.toString(values);
+
+			for (MathContext mc : CONTEXTS) {
+				Outcome reference = outcome(() -> e.interpret(e.original(), ans, values, mc));
+				CompiledExpression.Program p = e.program(mc);
+				Outcome optimized = outcome(() -> e.interpret(p, ans, values, mc));
+				// the one thing Optimizer is allowed to change: with a precision a ^ b is rounded to it, MODPOW never is
+				// (and 1 * a ^ b % m is one too once the 1 * is gone)
+				boolean modPow = underMod || Arrays.stream(p.code).anyMatch(op -> (op & CompiledExpression.OPCODE_MASK) == CompiledExpression.MODPOW);
+				if (mc == null || !modPow) check(reference, optimized, "optimized, " + where + ", " + mc);
+				HotCompiler.Evaluator h = HotCompiler.compile(p.code, p.temps);
+				if (h != null) check(optimized, outcome(() -> h.evaluate(p.constants, values, ans, mc)), "hot, " + where + ", " + mc);
+				if (mc == null) checkFast(e, reference, ans, values, where);
+			}
+		}
+	}
+
+	// FAST is only ever as exact as it says: a result with no rounding at all is the same number, anything else is
+	// right to FAST_MIN_DIGITS - 1 significant digits and then rounded to no fewer than that
+	private static void checkFast(CompiledExpression e, Outcome reference, BigDecimal ans, BigDecimal[] values, String where) {
+		Evaluation fast;
+		try {
+			fast = e.evaluate(ans, values, EvaluationMode.FAST);
+		} catch (RuntimeException ex) {
+			check(reference, failure(ex), "fast, " + where);
+			return;
+		}
+		if (fast.mode() != EvaluationMode.FAST) {
+			check(reference, new Outcome(fast.value(), null), "fast fell back, " + where);
+			return;
+		}
+		assertTrue(reference.value != null, () -> "fast gave " + fast.value() + " for " + reference + ", " + where);
+		BigDecimal off = fast.value().subtract(reference.value).abs();
+		assertTrue(off.compareTo(reference.value.abs().movePointLeft(10)) <= 0, () -> "fast gave " + fast.value() + " for " + reference + ", " + where);
+	}
+
+	// the result or the exception
+	private record Outcome(BigDecimal value, String error) {
+		// the same number, or the same exception with the same message
+		boolean same(Outcome o) { return value != null ? o.value != null && value.compareTo(o.value) == 0 : error.equals(o.error); }
+
+		@Override
+		public String toString() { return value != null ? "= " + value : error; }
+	}
+
+	private static Outcome outcome(Callable<BigDecimal> evaluation) {
+		try {
+			return new Outcome(evaluation.call(), null);
+		} catch (Exception ex) {
+			return failure(ex);
+		}
+	}
+
+	private static Outcome failure(Exception ex) { return new Outcome(null, ex.getClass().getName() + ": " + ex.getMessage()); }
+
+	private static void check(Outcome expected, Outcome actual, String where) {
+		assertTrue(expected.same(actual), () -> where + " ==> expected: " + expected + " but was: " + actual);
+	}
+
+	// small numbers, so powers and factorials of them stay quick, negative ones and zeros included on purpose
+	private BigDecimal number() {
+		return switch (random.nextInt(4)) {
+			case 0 -> BigDecimal.valueOf(random.nextInt(21) - 5);
+			case 1 -> BigDecimal.valueOf(random.nextInt(2001) - 1000, 2);
+			case 2 -> BigDecimal.valueOf(random.nextInt(90001), 3);
+			default -> BigDecimal.valueOf(random.nextInt(5));
+		};
+	}
+
+	private String literal() {
+		return switch (random.nextInt(5)) {
+			case 0 -> "0";
+			case 1 -> String.valueOf(random.nextInt(100));
+			case 2 -> random.nextInt(50) + "." + random.nextInt(100);
+			case 3 -> "." + random.nextInt(10);
+			default -> String.valueOf(random.nextInt(10));
+		};
+	}
+
+	private String operand() {
+		return switch (random.nextInt(6)) {
+			case 0 -> "Ans";
+			case 1, 2 -> VARIABLES[random.nextInt(VARIABLES.length)];
+			default -> literal();
+		};
+	}
+
+	// exponents, factorials and root indexes only ever get literals, anything else could take all day
+	private String expression(int depth) {
+		if (depth <= 0) return operand();
+		String a = expression(depth - 1 - random.nextInt(2)), b = expression(depth - 1 - random.nextInt(2));
+		return switch (random.nextInt(22)) {
+			case 0, 1 -> a + " + " + b;
+			case 2, 3 -> a + " - " + b;
+			case 4, 5 -> a + " * " + b;
+			case 6, 7 -> a + " / " + b;
+			case 8 -> a + " % " + b;
+			case 9 -> "(" + a + ")^" + (random.nextInt(9) - 3);
+			case 10 -> "(" + a + ")^" + random.nextInt(4) + ".5";
+			case 11 -> "(" + a + ") ^ " + random.nextInt(60) + " % " + (random.nextInt(20) + 1);
+			case 12 -> "(" + a + ")(" + b + ")";
+			case 13 -> new String[] { "sin", "cos", "tan", "sec", "csc", "cot" }[random.nextInt(6)] + "(" + a + ")";
+			case 14 -> "√(" + a + ")";
+			case 15 -> "√[" + (random.nextInt(5) + 1) + "](" + a + ")";
+			case 16 -> "(" + random.nextInt(15) + "!)";	// 3! + 4 parses as (3 + 4)!
+			case 17 -> random.nextInt(2) == 0 ? "min(" + a + ", " + b + ")" : "max(" + a + ", " + b + ")";
+			case 18 -> "hypot(" + a + ", " + b + ")";
+			case 19 -> "round(" + a + ", " + random.nextInt(4) + ")";
+			case 20 -> "big(" + a + ", " + b + ")";
+			default -> "-" + random.nextInt(10) + " * (" + a + ")";
+		};
+	}
+}
@@ -0,0 +1,45 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.math.BigDecimal;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+// the normalized key is only a way to share entries, the cache has to compile (or refuse) exactly what
+// ExpressionEngine.compile does for the text as typed
+class ExpressionCacheTest {
+	private static final String[] SPELLINGS = {
+		"- 5", "-5", "2 - - 5", "2 --5", " -5", "√[ 2]4", "√[2 ]4", "√ [2]4", "√[2]4", "√[- 2]4", "√[-2]4",
+		"2 3", "23", "2. 5", "2 .5", "s in(30)", "sin (30)", "2 ( 3 )", "Ans 2", "An s", " Ans + 1", "2×3", "2 ÷ 4", "3 !",
+	};
+
+	@Test
+	void compilesWhatTheEngineCompiles() {
+		ExpressionCache cache = new ExpressionCache(100);
+		for (String expr : SPELLINGS) {
+			// twice, so the second one comes out of the cache, after whatever shares its key
+			assertEquals(outcome(() -> ExpressionEngine.compile(expr)), outcome(() -> cache.compile(expr)), expr);
+			assertEquals(outcome(() -> ExpressionEngine.compile(expr)), outcome(() -> cache.compile(expr)), expr);
+		}
+	}
+
+	@Test
+	void sameExpressionSameEntry() {
+		ExpressionCache cache = new ExpressionCache(100);
+		CompiledExpression first = cache.compile("2×3");
+		assertEquals(first, cache.compile("2 * 3"));
+		assertEquals(first, cache.compile("  2  *  3 "));
+		assertEquals(1, cache.size());
+		assertNotEquals(ExpressionCache.normalize("2 3"), ExpressionCache.normalize("23"));
+		assertNotEquals(ExpressionCache.normalize("- 5"), ExpressionCache.normalize("-5"));
+	}
+
+	private static String outcome(Supplier<CompiledExpression> compile) {
+		try {
+			return "= " + compile.get().evaluate(BigDecimal.TEN).toPlainString();
+		} catch (RuntimeException ex) {
+			return ex.getClass().getName() + ": " + ex.getMessage();
+		}
+	}
+}
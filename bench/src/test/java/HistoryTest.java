@@ -0,0 +1,78 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// the log has to come back as it was written after a reopen, whatever state the index or the last record is in
+class HistoryTest {
+	// a few index entries' worth (STRIDE is 128)
+	private static final int ENTRIES = 300;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void reopenKeepsEverything() throws IOException {
+		try (History h = History.open(dir)) {
+			for (int i = 0; i < ENTRIES; i++) assertEquals(i, h.append(i + " + 1", String.valueOf(i + 1), 1000L + i, i));
+		}
+		try (History h = History.open(dir)) {
+			assertEquals(ENTRIES, h.size());
+			for (int i = 0; i < ENTRIES; i++) assertEquals(new History.Entry(i + " + 1", String.valueOf(i + 1), 1000L + i, i), h.get(i));
+			assertArrayEquals(new int[] { 299, 298 }, h.search("299", false));	// 299 + 1 and 298 + 1 = 299
+			assertArrayEquals(new int[] { 29 }, h.search("29 ", true));
+			assertEquals(ENTRIES, h.append("√(4)", "2", 0, 0));
+		}
+	}
+
+	@Test
+	void lostIndexIsRebuilt() throws IOException {
+		try (History h = History.open(dir)) {
+			for (int i = 0; i < ENTRIES; i++) h.append(i + "!", "x", 0, 0);
+		}
+		Files.delete(dir.resolve("history.idx"));
+		try (History h = History.open(dir)) {
+			assertEquals(ENTRIES, h.size());
+			assertEquals("257!", h.get(257).expression());
+		}
+	}
+
+	@Test
+	void tornRecordIsDropped() throws IOException {
+		try (History h = History.open(dir)) {
+			h.append("1 + 1", "2", 0, 0);
+			h.append("2 + 2", "4", 0, 0);
+		}
+		// the machine went down while the second one was written, before its size (which goes last) got there
+		long second = 16 + 4 + 28;	// after the header and the first record, 20 + 5 + 1 bytes padded to 28
+		try (FileChannel log = FileChannel.open(dir.resolve("history.log"), StandardOpenOption.WRITE)) {
+			log.write(ByteBuffer.allocate(4), second);
+		}
+		try (History h = History.open(dir)) {
+			assertEquals(1, h.size());
+			assertEquals(1, h.append("3 + 3", "6", 0, 0));	// in the torn one's place
+			assertEquals("3 + 3", h.get(1).expression());
+		}
+		try (History h = History.open(dir)) {
+			assertEquals(2, h.size());
+			assertEquals("6", h.get(1).result());
+		}
+	}
+
+	@Test
+	void oneAtATime() throws IOException {
+		try (History h = History.open(dir)) {
+			assertThrows(IOException.class, () -> History.open(dir));
+		}
+		History.open(dir).close();
+	}
+}
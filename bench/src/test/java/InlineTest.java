@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// a formula copied into the caller has to give what calling it gives, errors and which error comes first included
+// the called version is the same formula behind a Functions.Native, which is never inlined and gets its arguments
+// worked out first, left to right
+class InlineTest {
+	private static final String[] FORMULAS = {
+		"g(x) = 5",
+		"h(a, b) = b / a",
+		"k(a, b) = a / b",
+		"sq(x) = x * x",
+		"f(x) = x^2 + 3x",
+		"s(a, b) = sin(a) + b",
+		"t(a, b) = a + b * 2",
+		"u(a, b, c) = c - a * b",
+	};
+	private static final String[] ARGUMENTS = { "2", "x", "x + 1", "1/0", "√(0-1)", "0^-1", "3/4", "sin(30)" };
+
+	private static final Functions INLINED = new Functions(), CALLED = new Functions();
+
+	static {
+		for (String formula : FORMULAS) {
+			INLINED.define(formula);
+			String head = formula.substring(0, formula.indexOf('=')).strip();
+			CompiledExpression body = ExpressionEngine.compile(formula.substring(formula.indexOf('=') + 1));
+			List<String> parameters = List.of(head.substring(head.indexOf('(') + 1, head.length() - 1).split("\\s*,\\s*"));
+			CALLED.define(head, (args, mc) -> {
+				BigDecimal[] values = new BigDecimal[body.variables().size()];
+				for (int k = 0; k < values.length; k++) values[k] = args[parameters.indexOf(body.variables().get(k))];
+				return body.evaluate(BigDecimal.ZERO, values, mc);
+			});
+		}
+	}
+
+	@Test
+	void inlinedGivesWhatCallingGives() {
+		for (String formula : FORMULAS) {
+			String name = formula.substring(0, formula.indexOf('('));
+			int arity = formula.substring(0, formula.indexOf(')')).split(",").length;
+			for (int[] pick : picks(arity)) {
+				StringBuilder call = new StringBuilder(name).append('(');
+				for (int i = 0; i < arity; i++) call.append(i == 0 ? "" : ", ").append(ARGUMENTS[pick[i]]);
+				String expr = call.append(')').toString();
+				assertEquals(outcome(expr, CALLED), outcome(expr, INLINED), expr);
+			}
+		}
+	}
+
+	@Test
+	void safeArgumentsStillInline() {
+		// f(2) is folded to a single number, nothing's called
+		CompiledExpression f = ExpressionEngine.compile("f(2)", INLINED);
+		assertEquals("[2, 2, ^, 3, 2, *, +]", f.toString());
+		assertEquals(1, f.program(null).code.length);
+	}
+
+	@Test
+	void failingArgumentsAreCalled() {
+		assertEquals("[1, 0, /, g]", ExpressionEngine.compile("g(1/0)", INLINED).toString());
+		assertEquals("[1, 0, /, 0, 1, -, √, h]", ExpressionEngine.compile("h(1/0, √(0-1))", INLINED).toString());
+		// used once, in order, before anything in the body can fail
+		assertEquals("[1, 0, /, 0, 1, -, √, /]", ExpressionEngine.compile("k(1/0, √(0-1))", INLINED).toString());
+	}
+
+	// every combination of ARGUMENTS
+	private static List<int[]> picks(int arity) {
+		List<int[]> all = new ArrayList<>();
+		int n = (int) Math.pow(ARGUMENTS.length, arity);
+		for (int c = 0; c < n; c++) {
+			int[] pick = new int[arity];
+			for (int i = 0, rest = c; i < arity; i++, rest /= ARGUMENTS.length) pick[i] = rest % ARGUMENTS.length;
+			all.add(pick);
+		}
+		return all;
+	}
+
+	private static String outcome(String expr, Functions functions) {
+		try {
+			return "= " + ExpressionEngine.compile(expr, functions).evaluate(BigDecimal.ZERO, new BigDecimal[] { new BigDecimal("1.5") }, (MathContext) null).stripTrailingZeros();
+		} catch (RuntimeException ex) {
+			return ex.getClass().getName() + ": " + ex.getMessage();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// random edits anywhere in the text, checked against a StringBuilder doing the same: the text, the cursor, the copy
+// kept up to date through Edits, and the program compile() makes without starting over
+class LiveExpressionTest {
+	// mostly digits and operators, so most of the time it compiles, the rest now and then
+	private static final String[] KEYS = {
+		"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "12", "345", "+", "-", "*", "/", "+", "-", "*", "/", ".", "(",
+		")", "(", ")", "√", "√[3]", "!", "x", " ", "sin(", "]", "%",
+	};
+
+	private final Random random = new Random(Long.getLong("seed", 20261018));
+
+	@Test
+	void editsAnywhere() {
+		LiveExpression live = new LiveExpression();
+		StringBuilder copy = new StringBuilder();
+		live.setEdits((offset, removed, inserted) -> copy.replace(offset, offset + removed, inserted));
+		StringBuilder expected = new StringBuilder();
+		int cursor = 0;
+		for (int n = 0; n < 5000; n++) {
+			if (n % 20 == 0) {
+				// starting over now and then, one stray ) breaks everything typed after it
+				live.setLength(0);
+				expected.setLength(0);
+				cursor = 0;
+			}
+			switch (random.nextInt(6)) {
+				case 0, 1, 2 -> {
+					String s = KEYS[random.nextInt(KEYS.length)];
+					live.type(s);
+					expected.insert(cursor, s);
+					cursor += s.length();
+				}
+				case 3 -> {
+					if (live.backspace()) expected.deleteCharAt(--cursor);
+					else assertEquals(0, cursor);
+				}
+				case 4 -> {
+					cursor = random.nextInt(expected.length() + 1);
+					live.setCursor(cursor);
+				}
+				default -> {
+					if (expected.length() > 40) {
+						// keeps it short enough that most of it still compiles
+						int at = random.nextInt(expected.length());
+						live.deleteCharAt(at);
+						expected.deleteCharAt(at);
+						if (cursor > at) cursor--;
+					} else {
+						live.append("+1");
+						if (cursor == expected.length()) cursor += 2;	// it was in front of the end
+						expected.append("+1");
+					}
+				}
+			}
+			assertEquals(expected.toString(), live.toString());
+			assertEquals(expected.toString(), copy.toString());
+			assertEquals(cursor, live.cursor());
+			if (n % 3 == 0) assertEquals(compiled(expected.toString()), compiled(live), expected.toString());
+		}
+	}
+
+	@Test
+	void cursorStaysInTheText() {
+		LiveExpression live = new LiveExpression().type("12+3");
+		live.setCursor(99);
+		assertEquals(4, live.cursor());
+		live.setCursor(-1);
+		assertFalse(live.backspace());
+		live.setCursor(2);
+		live.type("4");
+		assertEquals("124+3", live.toString());
+		assertEquals(3, live.cursor());
+		assertEquals(0, live.numberStart(2));
+		assertEquals(3, live.numberEnd(1));
+	}
+
+	// the program, or just that it doesn't compile (which mistake gets reported may differ)
+	private static String compiled(String expr) {
+		try {
+			return ExpressionEngine.compile(expr).toString();
+		} catch (RuntimeException ex) {
+			return "error";
+		}
+	}
+
+	private static String compiled(LiveExpression live) {
+		try {
+			return live.compile().toString();
+		} catch (RuntimeException ex) {
+			return "error";
+		}
+	}
+}
@@ -0,0 +1,47 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigDecimal;
+
+import org.junit.jupiter.api.Test;
+
+// RATIONAL keeps + - * / % and integer ^ exact, nothing is rounded until the very end
+class RationalTest {
+	@Test
+	void divisionIsExact() {
+		assertEquals("1", rational("1/3 * 3"));
+		assertNotEquals(0, BigDecimal.ONE.compareTo(ExpressionEngine.compile("1/3 * 3").evaluate(BigDecimal.ZERO)));	// what it's for
+		assertEquals("3/7", rational("1/7 + 2/7"));
+		assertEquals("9/4", rational("(2/3)^-2"));
+		assertEquals("-3/2", rational("-7.5 % 2"));	// BigDecimal.remainder()'s sign
+		assertEquals("3/10", rational("0.1 + 0.2"));
+	}
+
+	@Test
+	void longChainStaysExact() {
+		// 1/(1*2) + 1/(2*3) + ... telescopes to 1 - 1/201, long past where the fractions get reduced along the way
+		StringBuilder sum = new StringBuilder("0");
+		for (int k = 1; k <= 200; k++) sum.append(" + 1/(").append(k).append(" * ").append(k + 1).append(')');
+		assertEquals("200/201", rational(sum.toString()));
+	}
+
+	@Test
+	void roundedOnlyAtTheEnd() {
+		Evaluation e = ExpressionEngine.compile("2/3").evaluate(BigDecimal.ZERO, EvaluationMode.RATIONAL);
+		assertEquals(EvaluationMode.RATIONAL, e.mode());
+		assertEquals(new BigDecimal("0.66666666666666666666666666666666666666666666666667"), e.value());
+		assertEquals(new BigDecimal("4"), ExpressionEngine.compile("(2/3)^-2 * 16/9").evaluate(BigDecimal.ZERO, EvaluationMode.RATIONAL).value());
+		assertEquals("3/2", rational("√(9/4)"));
+	}
+
+	@Test
+	void divisionByZeroStillFails() {
+		assertThrows(ArithmeticException.class, () -> rational("1 / (1/3 - 1/3)"));
+		assertThrows(ArithmeticException.class, () -> rational("0^-1"));
+	}
+
+	private static String rational(String expr) {
+		return ExpressionEngine.compile(expr).evaluateRational(BigDecimal.ZERO, new BigDecimal[0]).toString();
+	}
+}
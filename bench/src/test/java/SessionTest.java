@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+// a session's Ans, variables and functions are its own, whatever other sessions on the same cache do
+class SessionTest {
+	@Test
+	void theExample() {
+		Session s = new Session(new ExpressionCache(100));
+		s.set("rate", new BigDecimal("0.05"));
+		assertEquals(new BigDecimal("1628.89462677744140625000"), s.evaluate("1000 * (1 + rate)^10").value());
+		assertEquals(new BigDecimal("628.89462677744140625000"), s.evaluate("Ans - 1000").value());
+		s.define("f(x) = x^2 + 3x");
+		assertEquals(0, BigDecimal.TEN.compareTo(s.evaluate("f(2)").value()));
+	}
+
+	@Test
+	void reservedNames() {
+		Session s = new Session(new ExpressionCache(100));
+		for (String name : new String[] { "sin", "cos", "tan", "sec", "csc", "cot", "Ans", "Ansx", "", "x1", "x y" })
+			assertThrows(IllegalArgumentException.class, () -> s.set(name, BigDecimal.ONE), name);
+		// a library function's name is a variable unless it's called
+		s.set("max", new BigDecimal(5));
+		assertEquals(0, new BigDecimal(6).compareTo(s.evaluate("max + 1").value()));
+		assertEquals(0, new BigDecimal(3).compareTo(s.evaluate("max(1, 3)").value()));
+	}
+
+	@Test
+	void failureKeepsAns() {
+		Session s = new Session(new ExpressionCache(100));
+		s.evaluate("6 * 7");
+		assertThrows(ArithmeticException.class, () -> s.evaluate("Ans / 0"));
+		assertThrows(IllegalArgumentException.class, () -> s.evaluate("Ans + y"));
+		assertEquals(new BigDecimal(42), s.ans());
+	}
+
+	@Test
+	void sessionsDontShare() {
+		ExpressionCache cache = new ExpressionCache(100);
+		Session a = new Session(cache), b = new Session(cache);
+		a.define("f(x) = x + 1");
+		b.define("f(x) = x * 10");
+		a.set("x", BigDecimal.ONE);
+		b.set("x", BigDecimal.TEN);
+		assertEquals(0, new BigDecimal(3).compareTo(a.evaluate("f(x) + 1").value()));
+		assertEquals(0, new BigDecimal(101).compareTo(b.evaluate("f(x) + 1").value()));
+		assertThrows(IllegalArgumentException.class, () -> new Session(cache).evaluate("f(1)"));
+	}
+
+	@Test
+	void manyAtOnce() throws Exception {
+		ExpressionCache cache = new ExpressionCache(100);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<BigDecimal>> results = new ArrayList<>();
+			for (int user = 0; user < 64; user++) {
+				BigDecimal x = BigDecimal.valueOf(user);
+				results.add(pool.submit(() -> {
+					Session s = new Session(cache).set("x", x);
+					for (int i = 0; i < 1000; i++) s.evaluate("Ans + x * 2 - x");	// Ans ends up 1000 x
+					return s.ans();
+				}));
+			}
+			for (int user = 0; user < results.size(); user++) assertEquals(0, BigDecimal.valueOf(1000L * user).compareTo(results.get(user).get()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import org.junit.jupiter.api.Test;
+
+// the thread's operand stack mustn't keep anything once an evaluation is over, even when an evaluation nested inside
+// it had to make the stack bigger
+class StacksTest {
+	@Test
+	void nothingLeftAfterGrowing() throws Exception {
+		// deep enough that the nested evaluation needs more than the 32 slots there are to begin with
+		CompiledExpression deep = ExpressionEngine.compile("y + (y * (y + ".repeat(20) + "y" + "))".repeat(20));
+		Functions functions = new Functions().define("g(a)", (args, mc) -> deep.evaluate(BigDecimal.ZERO, new BigDecimal[] { args[0] }, mc).signum() > 0 ? BigDecimal.ONE : BigDecimal.ZERO);
+		BigDecimal big = BigDecimal.TEN.pow(1000);
+		for (MathContext mc : new MathContext[] { null, MathContext.DECIMAL64 }) {
+			BigDecimal result = ExpressionEngine.compile("x + g(1)", functions).evaluate(BigDecimal.ZERO, new BigDecimal[] { big }, mc);
+			assertEquals(big.add(BigDecimal.ONE), result);
+			BigDecimal[] slots = stack();
+			for (int i = 0; i < slots.length; i++) assertNull(slots[i], "slot " + i);
+		}
+	}
+
+	private static BigDecimal[] stack() throws ReflectiveOperationException {
+		Field threadLocal = CompiledExpression.class.getDeclaredField("STACKS");
+		threadLocal.setAccessible(true);
+		Object stacks = ((ThreadLocal<?>) threadLocal.get(null)).get();
+		Field big = stacks.getClass().getDeclaredField("big");
+		big.setAccessible(true);
+		return (BigDecimal[]) big.get(stacks);
+	}
+}
@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// compiling from a Reader, a CharBuffer or a file has to give what compiling the String gives, wherever the reads
+// happen to cut the text, errors included
+class StreamingCompileTest {
+	private static final String[] EXPRESSIONS = {
+		"1 + 2 * 3", "  2(3 + 4)  ", "sin(30) + cos (60)", "√[3]27 + √(16)", "-5 + -.5", "2^10 % 7", "10!", "Ans * 2",
+		"max(1, 2) + hypot(3, 4)", "123456.789 × 2 ÷ 3", "2 3", "x + y * x", "Ans2", "√[-2]4",
+		"1 +", "(1 + 2", "- 5", "√[ 2]4", "2 $ 3", "sin", "",
+	};
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void sameAsTheString() throws IOException {
+		for (String expr : EXPRESSIONS) {
+			String expected = outcome(() -> ExpressionEngine.compile(expr));
+			assertEquals(expected, outcome(() -> ExpressionEngine.compile(new StringReader(expr))), "reader: " + expr);
+			assertEquals(expected, outcome(() -> ExpressionEngine.compile(new OneAtATime(new StringReader(expr)))), "one char at a time: " + expr);
+			assertEquals(expected, outcome(() -> ExpressionEngine.compile(CharBuffer.wrap(expr))), "CharBuffer: " + expr);
+			Path file = Files.writeString(dir.resolve("expr.txt"), expr);
+			assertEquals(expected, outcome(() -> ExpressionEngine.compile(file)), "file: " + expr);
+		}
+	}
+
+	@Test
+	void longerThanTheWindow() throws IOException {
+		// a number longer than the 64K window and a lot of terms after it
+		String expr = "1" + "0".repeat(100000) + " / 1" + "0".repeat(99999) + " + 1 * 2".repeat(20000);
+		String expected = outcome(() -> ExpressionEngine.compile(expr));
+		assertEquals("= 40010", expected.substring(expected.indexOf(" = ") + 1));
+		assertEquals(expected, outcome(() -> ExpressionEngine.compile(new StringReader(expr))));
+		assertEquals(expected, outcome(() -> ExpressionEngine.compile(Files.writeString(dir.resolve("long.txt"), expr))));
+	}
+
+	private interface Compile {
+		CompiledExpression get() throws IOException;
+	}
+
+	// the program and what it gives, or the exception
+	private static String outcome(Compile compile) {
+		try {
+			CompiledExpression e = compile.get();
+			BigDecimal[] values = new BigDecimal[e.variables().size()];
+			for (int i = 0; i < values.length; i++) values[i] = BigDecimal.valueOf(i + 2);
+			return e + " = " + e.evaluate(BigDecimal.TEN, values, (MathContext) null).stripTrailingZeros().toPlainString();
+		} catch (IOException | RuntimeException ex) {
+			return ex.getClass().getName() + ": " + ex.getMessage();
+		}
+	}
+
+	// hands out a char per read, so every token gets cut at every place it can be
+	private static final class OneAtATime extends FilterReader {
+		OneAtATime(Reader in) { super(in); }
+
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException { return super.read(buffer, offset, Math.min(length, 1)); }
+	}
+}
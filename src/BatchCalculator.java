@@ -0,0 +1,215 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// evaluates one expression per line, from a file or stdin, and prints one result per line in the same order
+// lines are grouped into chunks that run in parallel on every core, a single writer thread prints finished chunks in
+// input order, and only so many chunks are in flight at once, so memory stays bounded however long the input is
+// java BatchCalculator [--fast | --rational | --parallel | --digits N] [file]	(no file or "-" reads stdin)
+//	--fast		EvaluationMode.FAST
+//	--rational	EvaluationMode.RATIONAL, exact fractions until the result is printed
+//	--parallel	EvaluationMode.PARALLEL, for a few huge lines rather than many small ones
+//	--digits N	trig, roots, powers and division with BigMath at N significant digits
+// every line is independent, so "Ans" is always 0 here. a line that fails prints "Error" like the GUI does, a blank
+// line stays blank, so output lines always match input lines
+public final class BatchCalculator implements AutoCloseable {
+	private static final int CHUNK_LINES = 4096;
+	// mapped in windows since a single MappedByteBuffer can't go past 2 GB
+	private static final long MAP_WINDOW = 64L << 20;
+	private static final int READ_BUFFER = 1 << 20;
+	// marks the end of the queue for the writer
+	private static final Future<String[]> END = CompletableFuture.completedFuture(null);
+
+	private final ExecutorService workers;
+	// chunks in input order, put() blocks when the workers/writer fall behind (this is what bounds memory)
+	private final BlockingQueue<Future<String[]>> pending;
+	private final Thread writerThread;
+	private final Writer out;
+	private volatile Throwable writerFailure;
+	private final ExpressionCache compiledCache = new ExpressionCache(4096);
+	private final EvaluationMode mode;
+	private final MathContext mc;	// null = the calculator's usual precision
+
+	private String[] chunk = new String[CHUNK_LINES];
+	private int chunkSize;
+	// bytes of a line that got cut off at the end of a buffer
+	private byte[] partial = new byte[256];
+	private int partialLength;
+
+	public BatchCalculator(Writer out, int threads, EvaluationMode mode, MathContext mc) {
+		this.out = out;
+		this.mode = mode;
+		this.mc = mc;
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.pending = new ArrayBlockingQueue<>(threads * 2);
+		this.writerThread = new Thread(this::writeResults, "batch-writer");
+		this.writerThread.start();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+		int arg = 0;
+		EvaluationMode mode = EvaluationMode.EXACT;
+		MathContext mc = null;
+		for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+			if ("--fast".equals(args[arg])) mode = EvaluationMode.FAST;
+			else if ("--rational".equals(args[arg])) mode = EvaluationMode.RATIONAL;
+			else if ("--parallel".equals(args[arg])) mode = EvaluationMode.PARALLEL;
+			else if ("--digits".equals(args[arg]) && arg + 1 < args.length) mc = new MathContext(Integer.parseInt(args[++arg]), RoundingMode.HALF_UP);
+			else throw new IllegalArgumentException("Unknown option: " + args[arg]);
+		}
+		try (BatchCalculator batch = new BatchCalculator(out, Runtime.getRuntime().availableProcessors(), mode, mc)) {
+			if (arg >= args.length || "-".equals(args[arg])) batch.readStream(System.in);
+			else batch.readMapped(Path.of(args[arg]));
+		}
+	}
+
+	// memory-maps the file window by window, so the page cache does the buffering instead of the heap
+	public void readMapped(Path file) throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long pos = 0; pos < size; pos += MAP_WINDOW)
+				accept(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos)));
+		}
+	}
+
+	// for stdin/pipes, which can't be mapped
+	public void readStream(InputStream in) throws IOException, InterruptedException {
+		ReadableByteChannel channel = Channels.newChannel(in);
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+		while (channel.read(buffer) != -1) {
+			buffer.flip();
+			accept(buffer);
+			buffer.clear();
+		}
+	}
+
+	// splits a buffer into lines, '\n' never shows up inside a multi-byte UTF-8 char so splitting on the byte is safe
+	private void accept(ByteBuffer buffer) throws InterruptedException {
+		int start = buffer.position();
+		int end = buffer.limit();
+		for (int i = start; i < end; i++) {
+			if (buffer.get(i) != '\n') continue;
+			appendPartial(buffer, start, i - start);
+			addLine();
+			start = i + 1;
+		}
+		appendPartial(buffer, start, end - start);	// leftover, finished by the next buffer (or close())
+		buffer.position(end);
+	}
+
+	private void appendPartial(ByteBuffer buffer, int from, int length) {
+		if (partialLength + length > partial.length) partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+		buffer.get(from, partial, partialLength, length);
+		partialLength += length;
+	}
+
+	private void addLine() throws InterruptedException {
+		int length = partialLength;
+		if (length > 0 && partial[length - 1] == '\r') length--;	// windows line endings
+		chunk[chunkSize++] = new String(partial, 0, length, StandardCharsets.UTF_8);
+		partialLength = 0;
+		if (chunkSize == CHUNK_LINES) submitChunk();
+	}
+
+	private void submitChunk() throws InterruptedException {
+		checkWriter();
+		String[] lines = chunkSize == chunk.length ? chunk : Arrays.copyOf(chunk, chunkSize);
+		pending.put(workers.submit(() -> evaluateAll(lines)));
+		chunk = new String[CHUNK_LINES];
+		chunkSize = 0;
+	}
+
+	// runs on a worker, results are written over the input array since the line isn't needed anymore
+	private String[] evaluateAll(String[] lines) {
+		for (int i = 0; i < lines.length; i++) lines[i] = evaluateLine(lines[i]);
+		return lines;
+	}
+
+	String evaluateLine(String line) {
+		if (line.isBlank()) return "";
+		try {
+			CompiledExpression compiled = compiledCache.compile(line);
+			BigDecimal result = mc != null ? compiled.evaluate(BigDecimal.ZERO, mc) : compiled.evaluate(BigDecimal.ZERO, mode).value();
+			// every digit, whole numbers without the ".000" (the GUI shows the same number, shortened when it's long)
+			return ResultFormat.plain(result);
+		} catch (Exception | StackOverflowError ex) {	// the stack one is a line nested too deep, not the whole chunk's problem
+			return "Error";
+		}
+	}
+
+	// runs on the writer thread, takes chunks in the order they were submitted
+	private void writeResults() {
+		try {
+			while (true) {
+				Future<String[]> next = pending.take();
+				if (next == END) break;
+				for (String result : next.get()) {
+					out.write(result);
+					out.write('\n');
+				}
+			}
+			out.flush();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | ExecutionException ex) {
+			writerFailure = ex;
+			drain();	// keep the reader from blocking forever, checkWriter() will report it
+		}
+	}
+
+	private void drain() {
+		try {
+			while (pending.take() != END);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void checkWriter() {
+		if (writerFailure != null) throw new IllegalStateException("Writing results failed", writerFailure);
+	}
+
+	// finishes the last (possibly unterminated) line, waits for everything to be written
+	// an interrupt stops the wait, it's left set and reported as an InterruptedIOException (AutoCloseable's close()
+	// shouldn't throw InterruptedException)
+	@Override
+	public void close() throws IOException {
+		try {
+			if (partialLength > 0) addLine();
+			if (chunkSize > 0) submitChunk();
+			pending.put(END);
+			writerThread.join();
+			checkWriter();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted before every result was written");
+		} finally {
+			workers.shutdownNow();
+			// still going only when something above threw (a failed writer waits in drain() for an END that's not
+			// coming), it isn't a daemon and would keep the JVM up
+			writerThread.interrupt();
+		}
+	}
+}
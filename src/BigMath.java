@@ -0,0 +1,344 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+// BigDecimal versions of the Math functions the calculator needs, at whatever precision the caller asks for
+// everything works a few digits past the requested precision and rounds once at the end
+public final class BigMath {
+	private BigMath() {}
+
+	// extra digits carried through intermediate steps
+	private static final int GUARD_DIGITS = 10;
+	// up to this many digits a double does the job, anything that can uses Math instead
+	private static final int DOUBLE_DIGITS = 15;
+	private static final BigDecimal TWO = BigDecimal.valueOf(2), THREE = BigDecimal.valueOf(3), FOUR = BigDecimal.valueOf(4);
+	private static final BigDecimal HALF = new BigDecimal("0.5");
+	private static final BigDecimal THIRTY = BigDecimal.valueOf(30), NINETY = BigDecimal.valueOf(90), THREE_SIXTY = BigDecimal.valueOf(360);
+
+	// π and ln(10) are expensive, so the most precise one computed so far is kept and rounded down for smaller requests
+	private static volatile BigDecimal cachedPi = BigDecimal.ZERO;
+	private static volatile BigDecimal cachedLn10 = BigDecimal.ZERO;
+
+	static MathContext working(MathContext mc, int extra) {
+		if (mc.getPrecision() == 0) throw new IllegalArgumentException("Unlimited precision isn't possible here, pick a number of digits");
+		return new MathContext(mc.getPrecision() + GUARD_DIGITS + extra, RoundingMode.HALF_EVEN);
+	}
+
+	public static BigDecimal pi(MathContext mc) {
+		BigDecimal pi = cachedPi;
+		if (pi.precision() < mc.getPrecision() + GUARD_DIGITS) {
+			pi = computePi(working(mc, mc.getPrecision() / 2));	// overshoot a bit so the next request is probably cached
+			cachedPi = pi;
+		}
+		return pi.round(mc);
+	}
+
+	// Machin's formula, π = 16 atan(1/5) - 4 atan(1/239)
+	// https://en.wikipedia.org/wiki/Machin-like_formula
+	private static BigDecimal computePi(MathContext mc) {
+		return arctanInverse(5, mc).multiply(BigDecimal.valueOf(16)).subtract(arctanInverse(239, mc).multiply(BigDecimal.valueOf(4)), mc);
+	}
+
+	// atan(1/n) = 1/n - 1/(3n^3) + 1/(5n^5) - ...
+	private static BigDecimal arctanInverse(int n, MathContext mc) {
+		BigDecimal eps = BigDecimal.ONE.movePointLeft(mc.getPrecision() + 1);
+		BigDecimal nSquared = BigDecimal.valueOf((long) n * n);
+		BigDecimal power = BigDecimal.ONE.divide(BigDecimal.valueOf(n), mc);	// 1/n^(2k+1)
+		BigDecimal sum = power;
+		for (int k = 1; power.compareTo(eps) > 0; k++) {
+			Budget.step();
+			power = power.divide(nSquared, mc);
+			BigDecimal term = power.divide(BigDecimal.valueOf(2L * k + 1), mc);
+			sum = (k & 1) == 1 ? sum.subtract(term, mc) : sum.add(term, mc);
+		}
+		return sum;
+	}
+
+	public static BigDecimal sqrt(BigDecimal x, MathContext mc) {
+		if (x.signum() < 0) throw new ArithmeticException("Square root of a negative number");
+		return x.sqrt(mc);
+	}
+
+	// e^x, split into e^(x / 2^k) with a tiny argument (Taylor converges fast) and then squared k times
+	public static BigDecimal exp(BigDecimal x, MathContext mc) {
+		if (x.signum() == 0) return BigDecimal.ONE;
+		if (x.signum() < 0) return BigDecimal.ONE.divide(exp(x.negate(), working(mc, 0)), mc);
+		// halve until x < 2^-8, every squaring later doubles the relative error, hence the extra digits
+		int halvings = Math.max(0, x.precision() - x.scale()) * 4 + 8;	// enough for |x| < 10^digits
+		MathContext wmc = working(mc, halvings / 3 + 1);
+		BigDecimal r = x.divide(BigDecimal.valueOf(2).pow(halvings), wmc);
+		BigDecimal sum = BigDecimal.ONE, term = BigDecimal.ONE;
+		BigDecimal eps = BigDecimal.ONE.movePointLeft(wmc.getPrecision() + 1);
+		for (int k = 1; term.abs().compareTo(eps) > 0; k++) {
+			Budget.step();
+			term = term.multiply(r, wmc).divide(BigDecimal.valueOf(k), wmc);
+			sum = sum.add(term, wmc);
+		}
+		for (int i = 0; i < halvings; i++) {
+			Budget.step();
+			sum = sum.multiply(sum, wmc);
+		}
+		return sum.round(mc);
+	}
+
+	// natural log, x = m * 10^e with 1 <= m < 10, so ln(x) = ln(m) + e * ln(10) and only ln(m) needs the slow part
+	public static BigDecimal ln(BigDecimal x, MathContext mc) {
+		if (x.signum() <= 0) throw new ArithmeticException("Logarithm of a non-positive number");
+		if (x.compareTo(BigDecimal.ONE) == 0) return BigDecimal.ZERO;
+		int e = x.precision() - x.scale() - 1;
+		// the e * ln(10) term needs more digits when e is big, otherwise its error swamps ln(m)
+		MathContext wmc = working(mc, Integer.toString(Math.abs(e)).length());
+		BigDecimal m = x.movePointLeft(e);
+		BigDecimal res = lnNewton(m, wmc);
+		if (e != 0) res = res.add(ln10(wmc).multiply(BigDecimal.valueOf(e), wmc), wmc);
+		return res.round(mc);
+	}
+
+	private static BigDecimal ln10(MathContext mc) {
+		BigDecimal ln10 = cachedLn10;
+		if (ln10.precision() < mc.getPrecision()) {
+			ln10 = lnNewton(BigDecimal.TEN, new MathContext(mc.getPrecision() + mc.getPrecision() / 2, RoundingMode.HALF_EVEN));
+			cachedLn10 = ln10;
+		}
+		return ln10.round(mc);
+	}
+
+	// Halley's method on exp(y) = x, starting from Math.log(), every step roughly triples the correct digits
+	private static BigDecimal lnNewton(BigDecimal x, MathContext mc) {
+		BigDecimal y = new BigDecimal(Math.log(x.doubleValue()));
+		int digits = 15;
+		while (true) {
+			Budget.step();
+			digits = Math.min(digits * 3, mc.getPrecision());
+			MathContext step = new MathContext(digits + GUARD_DIGITS, RoundingMode.HALF_EVEN);
+			BigDecimal ey = exp(y, step);
+			y = y.add(TWO.multiply(x.subtract(ey, step), step).divide(x.add(ey, step), step), step);
+			if (digits == mc.getPrecision()) return y.round(mc);
+		}
+	}
+
+	// sin/cos in radians, the argument is first reduced to [-π/4, π/4] around a multiple of π/2
+	public static BigDecimal sin(BigDecimal x, MathContext mc) { return sinCos(x, mc, false); }
+
+	public static BigDecimal cos(BigDecimal x, MathContext mc) { return sinCos(x, mc, true); }
+
+	private static BigDecimal sinCos(BigDecimal x, MathContext mc, boolean cos) {
+		// enough digits of π to cover the integer part of x as well
+		int magnitude = Math.max(0, x.precision() - x.scale());
+		MathContext wmc = working(mc, magnitude);
+		BigDecimal halfPi = pi(wmc).divide(TWO, wmc);
+		// x = q * (π/2) + r, with |r| <= π/4
+		BigDecimal q = x.divide(halfPi, 0, RoundingMode.HALF_EVEN);
+		BigDecimal r = x.subtract(halfPi.multiply(q), wmc);
+		int quadrant = q.toBigInteger().mod(BigInteger.valueOf(4)).intValue();
+		if (cos) quadrant = (quadrant + 1) & 3;	// cos(x) = sin(x + π/2)
+		boolean negative = r.signum() < 0;
+		r = r.abs();
+		BigDecimal res = switch (quadrant) {
+			case 0 -> negative ? sinKernel(r, wmc).negate() : sinKernel(r, wmc);
+			case 1 -> cosKernel(r, wmc);
+			case 2 -> negative ? sinKernel(r, wmc) : sinKernel(r, wmc).negate();
+			default -> cosKernel(r, wmc).negate();
+		};
+		return res.round(mc);
+	}
+
+	// trig in degrees, which is what the calculator's buttons mean
+	// reducing mod 360 is exact for decimals (no π involved), so whole angles like 180 or 90 land exactly on 0 or 1
+	// and tan(90), csc(0), cot(0) etc. come out as errors instead of 1.6E+16
+	public static BigDecimal sinDegrees(BigDecimal deg, MathContext mc) { return sinDegreesReduced(reduceDegrees(deg), mc); }
+
+	public static BigDecimal cosDegrees(BigDecimal deg, MathContext mc) { return sinDegreesReduced(reduceDegrees(deg.add(NINETY)), mc); }
+
+	public static BigDecimal tanDegrees(BigDecimal deg, MathContext mc) {
+		MathContext wmc = ratioContext(mc);
+		return divideOrUndefined(sinDegrees(deg, wmc), cosDegrees(deg, wmc), "tan", deg, mc);
+	}
+
+	public static BigDecimal secDegrees(BigDecimal deg, MathContext mc) { return divideOrUndefined(BigDecimal.ONE, cosDegrees(deg, ratioContext(mc)), "sec", deg, mc); }
+
+	public static BigDecimal cscDegrees(BigDecimal deg, MathContext mc) { return divideOrUndefined(BigDecimal.ONE, sinDegrees(deg, ratioContext(mc)), "csc", deg, mc); }
+
+	public static BigDecimal cotDegrees(BigDecimal deg, MathContext mc) {
+		MathContext wmc = ratioContext(mc);
+		return divideOrUndefined(cosDegrees(deg, wmc), sinDegrees(deg, wmc), "cot", deg, mc);
+	}
+
+	// dividing doesn't make relative errors worse, so a few spare digits are enough, and small requests stay on doubles
+	private static MathContext ratioContext(MathContext mc) {
+		if (mc.getPrecision() > 0 && mc.getPrecision() <= DOUBLE_DIGITS - 3) return new MathContext(DOUBLE_DIGITS, RoundingMode.HALF_EVEN);
+		return working(mc, 0);
+	}
+
+	private static BigDecimal divideOrUndefined(BigDecimal a, BigDecimal b, String name, BigDecimal deg, MathContext mc) {
+		if (b.signum() == 0) throw new ArithmeticException(name + " undefined at " + deg.stripTrailingZeros().toPlainString() + "°");
+		return a.divide(b, mc);
+	}
+
+	// into [0, 360)
+	private static BigDecimal reduceDegrees(BigDecimal deg) {
+		BigDecimal r = deg.remainder(THREE_SIXTY);
+		return r.signum() < 0 ? r.add(THREE_SIXTY) : r;
+	}
+
+	// 0 <= deg < 360
+	private static BigDecimal sinDegreesReduced(BigDecimal deg, MathContext mc) {
+		int quadrant = deg.divideToIntegralValue(NINETY).intValue();
+		BigDecimal t = deg.subtract(NINETY.multiply(BigDecimal.valueOf(quadrant)));	// 0 <= t < 90, still exact
+		BigDecimal res = switch (quadrant) {
+			case 0 -> sinFirstQuadrant(t, mc);
+			case 1 -> sinFirstQuadrant(NINETY.subtract(t), mc);
+			case 2 -> sinFirstQuadrant(t, mc).negate();
+			default -> sinFirstQuadrant(NINETY.subtract(t), mc).negate();
+		};
+		return res;
+	}
+
+	// 0 <= deg <= 90
+	private static BigDecimal sinFirstQuadrant(BigDecimal deg, MathContext mc) {
+		// the values people actually type, exactly
+		if (deg.signum() == 0) return BigDecimal.ZERO;
+		if (deg.compareTo(THIRTY) == 0) return HALF;
+		if (deg.compareTo(NINETY) == 0) return BigDecimal.ONE;
+		// a double is plenty for up to 15 digits and much cheaper, the argument is already reduced so nothing is lost
+		if (mc.getPrecision() <= DOUBLE_DIGITS) return new BigDecimal(Math.sin(Math.toRadians(deg.doubleValue()))).round(mc);
+		MathContext wmc = working(mc, 0);
+		BigDecimal radiansPerDegree = pi(wmc).divide(BigDecimal.valueOf(180), wmc);
+		// past 45° it's cos of the (smaller) rest of the way to 90°
+		if (deg.compareTo(BigDecimal.valueOf(45)) > 0) return cosKernel(NINETY.subtract(deg).multiply(radiansPerDegree, wmc), wmc).round(mc);
+		return sinKernel(deg.multiply(radiansPerDegree, wmc), wmc).round(mc);
+	}
+
+	// sin(r) for 0 <= r <= π/4
+	// r is divided by 3^k first and sin(3x) = 3 sin(x) - 4 sin^3(x) puts it back, that's a lot fewer Taylor terms at
+	// high precision, each tripling can triple the error too, so it gets k extra digits
+	private static BigDecimal sinKernel(BigDecimal r, MathContext mc) {
+		int k = (int) Math.sqrt(mc.getPrecision()) / 2;
+		MathContext wmc = new MathContext(mc.getPrecision() + k, RoundingMode.HALF_EVEN);
+		BigDecimal s = taylorSin(r.divide(THREE.pow(k), wmc), wmc);
+		for (int i = 0; i < k; i++) {
+			Budget.step();
+			s = THREE.multiply(s).subtract(FOUR.multiply(s.multiply(s, wmc).multiply(s, wmc)), wmc);
+		}
+		return s.round(mc);
+	}
+
+	// cos(r) = sqrt(1 - sin^2(r)), fine for 0 <= r <= π/4 where cos is nowhere near 0
+	private static BigDecimal cosKernel(BigDecimal r, MathContext mc) {
+		BigDecimal s = sinKernel(r, mc);
+		return BigDecimal.ONE.subtract(s.multiply(s, mc), mc).sqrt(mc);
+	}
+
+	private static BigDecimal taylorSin(BigDecimal x, MathContext mc) {
+		BigDecimal x2 = x.multiply(x, mc), term = x, sum = x;
+		BigDecimal eps = BigDecimal.ONE.movePointLeft(mc.getPrecision() + 1);
+		for (int k = 1; term.abs().compareTo(eps) > 0; k++) {
+			Budget.step();
+			term = term.multiply(x2, mc).divide(BigDecimal.valueOf((2L * k) * (2L * k + 1)), mc).negate();
+			sum = sum.add(term, mc);
+		}
+		return sum;
+	}
+
+	// n-th root, Newton's method y = ((n - 1) y + x / y^(n - 1)) / n for whole n, x^(1/n) through exp/ln otherwise
+	// negative x only works for odd whole n, same as real math
+	public static BigDecimal root(BigDecimal x, BigDecimal n, MathContext mc) {
+		if (n.signum() == 0) throw new ArithmeticException("Root index cannot be zero");
+		boolean wholeIndex = n.stripTrailingZeros().scale() <= 0;
+		boolean odd = wholeIndex && n.toBigInteger().testBit(0);
+		if (x.signum() < 0 && !odd) throw new ArithmeticException("Root of negative number only valid for odd integer roots");
+		if (x.signum() == 0) {
+			if (n.signum() < 0) throw new ArithmeticException("Division by zero");
+			return BigDecimal.ZERO;
+		}
+		if (n.signum() < 0) return BigDecimal.ONE.divide(root(x, n.negate(), working(mc, 0)), mc);
+		if (x.signum() < 0) return root(x.negate(), n, mc).negate();
+		if (!wholeIndex || n.compareTo(BigDecimal.valueOf(Integer.MAX_VALUE)) > 0) {
+			MathContext wmc = working(mc, 0);
+			return exp(ln(x, wmc).divide(n, wmc), mc);
+		}
+		int k = n.intValue();
+		if (k == 1) return x.round(mc);
+		if (k == 2) return x.sqrt(mc);
+		if (mc.getPrecision() <= DOUBLE_DIGITS) {
+			double d = Math.pow(x.doubleValue(), 1.0 / k);
+			if (Double.isFinite(d) && d != 0) return new BigDecimal(d).round(mc);
+		}
+		return newtonRoot(x, k, mc);
+	}
+
+	private static BigDecimal newtonRoot(BigDecimal x, int k, MathContext mc) {
+		BigDecimal bk = BigDecimal.valueOf(k), bk1 = BigDecimal.valueOf(k - 1);
+		// starting guess from doubles, rescaled by hand when x is out of double range
+		int shift = (x.precision() - x.scale()) / k * k;	// x = m * 10^shift, root = root(m) * 10^(shift / k)
+		double m = x.movePointLeft(shift).doubleValue();
+		BigDecimal y = new BigDecimal(Math.pow(m, 1.0 / k)).movePointRight(shift / k);
+		// precision doubles every step, so only the last one runs at full precision
+		int digits = 15;
+		while (true) {
+			Budget.step();
+			digits = Math.min(digits * 2, mc.getPrecision());
+			MathContext step = new MathContext(digits + GUARD_DIGITS, RoundingMode.HALF_EVEN);
+			y = bk1.multiply(y).add(x.divide(y.pow(k - 1, step), step)).divide(bk, step);
+			if (digits == mc.getPrecision()) return y.round(mc);
+		}
+	}
+
+	// exact powers longer than this many digits aren't computed at all (-Djavacalc.pow.maxdigits), a^b is then only as
+	// good as a double, or an error when a double can't hold it either. a million digits take about a second
+	private static volatile long maxExactDigits = Long.getLong("javacalc.pow.maxdigits", 1_000_000);
+
+	public static long maxExactDigits() { return maxExactDigits; }
+
+	public static void setMaxExactDigits(long digits) { maxExactDigits = digits; }
+
+	// about how many characters a^n (n >= 0) takes written out in full, worked out from a's size alone
+	public static double exactPowerDigits(BigDecimal a, long n) {
+		BigInteger u = a.unscaledValue().abs();
+		if (u.signum() == 0 || n == 0) return 1;
+		double log10 = u.bitLength() < 1000 ? Math.log10(u.doubleValue()) : (u.bitLength() - 1) * Math.log10(2);
+		int scale = a.scale();
+		// 0.001^n is mostly zeros after the point, 1E+3^n mostly zeros before it
+		return (double) n * (scale >= 0 ? Math.max(log10, scale) : log10 - scale);
+	}
+
+	// a^n for n >= 0, every digit, repeated squaring with a step per squaring so it can be cancelled
+	// whoever calls it checks exactPowerDigits() first
+	public static BigDecimal powExact(BigDecimal a, long n) {
+		return new BigDecimal(pow(a.unscaledValue(), n), Math.toIntExact(Math.multiplyExact(a.scale(), n)));
+	}
+
+	// a^n for n >= 0, the powers of 2 in `a` are taken out first and put back as a shift, so 2^n or 10^n costs
+	// nothing and only the odd part gets squared
+	public static BigInteger pow(BigInteger a, long n) {
+		if (n == 0) return BigInteger.ONE;
+		if (a.signum() == 0) return BigInteger.ZERO;
+		int twos = a.getLowestSetBit();
+		BigInteger base = a.shiftRight(twos), r = BigInteger.ONE;
+		for (long e = n; ; ) {
+			if ((e & 1) != 0) r = Factorials.multiply(r, base);
+			e >>>= 1;
+			if (e == 0) break;
+			Budget.step();
+			base = Factorials.multiply(base, base);
+		}
+		return r.shiftLeft(Math.toIntExact(Math.multiplyExact(twos, n)));
+	}
+
+	// a^b, exact repeated squaring (to the requested digits) for whole b, exp(b ln a) otherwise
+	public static BigDecimal pow(BigDecimal a, BigDecimal b, MathContext mc) {
+		if (b.signum() == 0) return BigDecimal.ONE;
+		if (b.stripTrailingZeros().scale() <= 0 && b.abs().compareTo(BigDecimal.valueOf(999999999)) <= 0) {
+			if (a.signum() == 0 && b.signum() < 0) throw new ArithmeticException("Division by zero");
+			return a.pow(b.intValue(), mc);
+		}
+		if (a.signum() < 0) throw new ArithmeticException("Negative base needs a whole exponent");
+		if (a.signum() == 0) {
+			if (b.signum() < 0) throw new ArithmeticException("Division by zero");
+			return BigDecimal.ZERO;
+		}
+		MathContext wmc = working(mc, Math.max(0, b.precision() - b.scale()));
+		return exp(b.multiply(ln(a, wmc), wmc), mc);
+	}
+}
@@ -0,0 +1,64 @@
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// limits for one evaluation: a wall clock timeout, a number of steps, and a way to cancel it from another thread
+// a step is one round of any of the long running loops (a series term, a Newton iteration, a chunk of a factorial's
+// product...), they all call step(), which throws CancellationException as soon as the budget is used up or cancelled
+// the budget belongs to whatever thread is inside call(), fork-join tasks take their caller's along with current()
+public final class Budget {
+	private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<>();
+
+	private final long start = System.nanoTime();
+	private final long timeoutNanos;	// Long.MAX_VALUE for no limit
+	private final long maxSteps;	// Long.MAX_VALUE for no limit
+	private final AtomicLong steps = new AtomicLong();
+	private volatile boolean cancelled;
+
+	// null timeout or 0 steps means no limit on that one, the clock starts now
+	public Budget(Duration timeout, long maxSteps) {
+		if (maxSteps < 0) throw new IllegalArgumentException("Step limit can't be negative");
+		this.timeoutNanos = timeout == null ? Long.MAX_VALUE : timeout.toNanos();
+		this.maxSteps = maxSteps == 0 ? Long.MAX_VALUE : maxSteps;
+	}
+
+	// runs `work` on this thread with this budget in effect
+	public <T> T call(Supplier<T> work) {
+		Budget outer = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			spend(0);	// might already be cancelled or out of time
+			return work.get();
+		} finally {
+			if (outer == null) CURRENT.remove();
+			else CURRENT.set(outer);
+		}
+	}
+
+	// the running evaluation notices the next time it takes a step
+	public void cancel() { cancelled = true; }
+
+	public boolean isCancelled() { return cancelled; }
+
+	public long steps() { return steps.get(); }
+
+	public Duration elapsed() { return Duration.ofNanos(System.nanoTime() - start); }
+
+	// the budget of the evaluation running on this thread, null when there's none
+	static Budget current() { return CURRENT.get(); }
+
+	// one step for whatever's running on this thread, costs nothing without a budget
+	static void step() { step(CURRENT.get()); }
+
+	static void step(Budget budget) {
+		if (budget != null) budget.spend(1);
+	}
+
+	private void spend(long n) {
+		if (cancelled) throw new CancellationException("Cancelled");
+		if (steps.addAndGet(n) > maxSteps) throw new CancellationException("Step limit exceeded (" + maxSteps + ")");
+		if (System.nanoTime() - start > timeoutNanos)
+			throw new CancellationException("Time limit exceeded (" + Duration.ofNanos(timeoutNanos).toMillis() + " ms)");
+	}
+}
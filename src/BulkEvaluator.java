@@ -0,0 +1,202 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// evaluates one CompiledExpression over a whole grid of points, ex. x^2 + 3xy for a million (x, y) pairs
+// inputs are columns, one per variable in CompiledExpression.variables() order, results[i] is the expression at
+// columns[0][i], columns[1][i]...
+// the math is plain doubles, same as the calculator's classic trig/roots/^ (degrees, Math.sin() etc), and nothing throws:
+// division by zero is Infinity, √-1 is NaN and so on, like any other double code
+// instead of walking the program once per point it walks it once per BLOCK points, every instruction is a tight loop
+// over the whole block, so the dispatch is paid once per block and the JIT turns the + - * / √ loops into SIMD code
+// blocks are spread across the fork-join pool
+public final class BulkEvaluator {
+	private BulkEvaluator() {}
+
+	// points per block, 8KB per stack slot so a few of them stay in cache
+	private static final int BLOCK = 1024;
+	// ranges with more points than this get split, small sweeps aren't worth waking up other threads for
+	private static final int PARALLEL_THRESHOLD = 16 * BLOCK;
+	// n! up to 170!, the biggest one a double holds
+	private static final double[] FACTORIALS = new double[171];
+
+	static {
+		FACTORIALS[0] = 1;
+		for (int i = 1; i < FACTORIALS.length; i++) FACTORIALS[i] = FACTORIALS[i - 1] * i;
+	}
+
+	// results.length points, every column needs at least that many values
+	public static void evaluate(CompiledExpression expr, double ans, double[][] columns, double[] results) {
+		int count = results.length;
+		check(expr, columns.length);
+		for (double[] column : columns)
+			if (column.length < count) throw new IllegalArgumentException("Column shorter than results: " + column.length + " < " + count);
+		run(expr, ans, new ArrayColumns(columns, results), count);
+	}
+
+	// same for buffers, so inputs can be off-heap or memory-mapped, everything from each buffer's position on,
+	// results.remaining() points, none of the positions move
+	public static void evaluate(CompiledExpression expr, double ans, DoubleBuffer[] columns, DoubleBuffer results) {
+		int count = results.remaining();
+		check(expr, columns.length);
+		for (DoubleBuffer column : columns)
+			if (column.remaining() < count) throw new IllegalArgumentException("Column shorter than results: " + column.remaining() + " < " + count);
+		run(expr, ans, new BufferColumns(columns, results), count);
+	}
+
+	private static void check(CompiledExpression expr, int columns) {
+		if (!expr.wellFormed()) throw new IllegalArgumentException("Invalid expression: " + expr);
+		if (columns < expr.variables().size()) throw new IllegalArgumentException("No values for " + expr.variables().get(columns));
+		for (int instruction : expr.code()) {
+			if ((instruction & CompiledExpression.OPCODE_MASK) == CompiledExpression.UNKNOWN)
+				throw new IllegalArgumentException("Unknown function in " + expr);
+			// inlined ones are just more instructions, a call works on BigDecimals
+			if ((instruction & CompiledExpression.OPCODE_MASK) == CompiledExpression.CALL)
+				throw new IllegalArgumentException("Function that isn't inlined in " + expr);
+		}
+	}
+
+	private static void run(CompiledExpression expr, double ans, Columns columns, int count) {
+		Range all = new Range(expr, ans, columns, 0, count);
+		if (count <= PARALLEL_THRESHOLD) all.compute();
+		else ForkJoinPool.commonPool().invoke(all);
+	}
+
+	// where blocks come from and go to
+	private interface Columns {
+		// values `from` to `from + n` of a variable into dst[0..n)
+		void load(int variable, int from, double[] dst, int n);
+		void store(int from, double[] src, int n);
+	}
+
+	private record ArrayColumns(double[][] columns, double[] results) implements Columns {
+		public void load(int variable, int from, double[] dst, int n) { System.arraycopy(columns[variable], from, dst, 0, n); }
+		public void store(int from, double[] src, int n) { System.arraycopy(src, 0, results, from, n); }
+	}
+
+	// absolute get/put, so several threads can share the buffers without touching their positions
+	private record BufferColumns(DoubleBuffer[] columns, DoubleBuffer results) implements Columns {
+		public void load(int variable, int from, double[] dst, int n) { columns[variable].get(columns[variable].position() + from, dst, 0, n); }
+		public void store(int from, double[] src, int n) { results.put(results.position() + from, src, 0, n); }
+	}
+
+	@SuppressWarnings("serial")	// a fork/join task is never serialized
+	private static final class Range extends RecursiveAction {
+		private final CompiledExpression expr;
+		private final double ans;
+		private final Columns columns;
+		private final int from, to;
+
+		Range(CompiledExpression expr, double ans, Columns columns, int from, int to) {
+			this.expr = expr;
+			this.ans = ans;
+			this.columns = columns;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > PARALLEL_THRESHOLD) {
+				int mid = from + (to - from) / 2 / BLOCK * BLOCK;	// keep the blocks lined up
+				invokeAll(new Range(expr, ans, columns, from, mid), new Range(expr, ans, columns, mid, to));
+				return;
+			}
+			double[][] stack = new double[expr.maxDepth()][BLOCK];
+			for (int start = from; start < to; start += BLOCK) {
+				int n = Math.min(BLOCK, to - start);
+				block(expr.code(), expr.constantDoubles(), ans, columns, start, n, stack);
+				columns.store(start, stack[0], n);
+			}
+		}
+	}
+
+	// one pass of the program over n points, the result ends up in stack[0]
+	private static void block(int[] code, double[] constants, double ans, Columns columns, int from, int n, double[][] stack) {
+		int sp = 0;
+		for (int instruction : code) {
+			int op = instruction & CompiledExpression.OPCODE_MASK, k = instruction >>> CompiledExpression.OPCODE_BITS;
+			switch (op) {
+				case CompiledExpression.PUSH -> Arrays.fill(stack[sp++], 0, n, constants[k]);
+				case CompiledExpression.ANS -> Arrays.fill(stack[sp++], 0, n, ans);
+				case CompiledExpression.LOAD -> columns.load(k, from, stack[sp++], n);
+				case CompiledExpression.ADD -> {
+					double[] a = stack[sp - 2], b = stack[--sp];
+					for (int j = 0; j < n; j++) a[j] += b[j];
+				}
+				case CompiledExpression.SUB -> {
+					double[] a = stack[sp - 2], b = stack[--sp];
+					for (int j = 0; j < n; j++) a[j] -= b[j];
+				}
+				case CompiledExpression.MUL -> {
+					double[] a = stack[sp - 2], b = stack[--sp];
+					for (int j = 0; j < n; j++) a[j] *= b[j];
+				}
+				case CompiledExpression.DIV -> {
+					double[] a = stack[sp - 2], b = stack[--sp];
+					for (int j = 0; j < n; j++) a[j] /= b[j];
+				}
+				case CompiledExpression.MOD -> {
+					double[] a = stack[sp - 2], b = stack[--sp];
+					for (int j = 0; j < n; j++) a[j] %= b[j];
+				}
+				case CompiledExpression.POW -> {
+					double[] a = stack[sp - 2], b = stack[--sp];
+					for (int j = 0; j < n; j++) a[j] = Math.pow(a[j], b[j]);
+				}
+				case CompiledExpression.SIN -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = Math.sin(Math.toRadians(a[j]));
+				}
+				case CompiledExpression.COS -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = Math.cos(Math.toRadians(a[j]));
+				}
+				case CompiledExpression.TAN -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = Math.tan(Math.toRadians(a[j]));
+				}
+				case CompiledExpression.SEC -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = 1.0 / Math.cos(Math.toRadians(a[j]));
+				}
+				case CompiledExpression.CSC -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = 1.0 / Math.sin(Math.toRadians(a[j]));
+				}
+				case CompiledExpression.COT -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = 1.0 / Math.tan(Math.toRadians(a[j]));
+				}
+				case CompiledExpression.SQRT -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = Math.sqrt(a[j]);
+				}
+				case CompiledExpression.ROOT -> root(stack[sp - 1], n, constants[k]);
+				case CompiledExpression.FACT -> {
+					double[] a = stack[sp - 1];
+					for (int j = 0; j < n; j++) a[j] = factorial(a[j]);
+				}
+				default -> throw new IllegalStateException("Unexpected opcode " + op);
+			}
+		}
+	}
+
+	// nth root, negative x only for odd integer n like everywhere else
+	private static void root(double[] a, int n, double index) {
+		if (index == 3) {
+			for (int j = 0; j < n; j++) a[j] = Math.cbrt(a[j]);
+			return;
+		}
+		double exponent = 1.0 / index;
+		boolean odd = index == Math.rint(index) && Math.abs(index % 2) == 1;
+		for (int j = 0; j < n; j++) a[j] = odd && a[j] < 0 ? -Math.pow(-a[j], exponent) : Math.pow(a[j], exponent);
+	}
+
+	// only whole numbers, anything else is NaN, past 170! is Infinity
+	private static double factorial(double x) {
+		if (x < 0 || x != Math.rint(x)) return Double.NaN;
+		return x < FACTORIALS.length ? FACTORIALS[(int) x] : Double.POSITIVE_INFINITY;
+	}
+}
@@ -5,7 +5,7 @@
  * javac 22.0.2
  * 
  * TO-DO
- * - movable cursor in display (mutually exclusive with your approach rn, try again later)
+ * - movable cursor in display x
  * - negative number support x
  * - use keyboard for input x
  * - show current equation like "1 + 1" below the display x
@@ -13,12 +13,12 @@
  * 		- debug values: 0, 1, 30, 90, 180, 360
  * - add degrees to radians and vice versa
  * - nth root, exponents, factorials, (natural) logarithms, constants
- * - binary, octal, decimal, hexadecimal notations
- * - fraction support
+ * - binary, octal, decimal, hexadecimal notations x
+ * - fraction support x
  * - modulo operator x
  * - parentheses and nesting expressions inside these (PEMDAS) x
  * - imaginary numbers
- * - common formula templates
+ * - common formula templates x
  * - some buttons don't really do anything
  * - history queue
  * - proper javadocs
@@ -54,47 +54,75 @@
  */
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
 import java.math.BigDecimal;	// because doubles aren't enough
-import java.math.RoundingMode;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-// classifies different parts of an expression for the parser
-enum TokenType { NUMBER, OPERATOR, FUNCTION, FACTORIAL, LPAREN, RPAREN, ROOT }
-
-public class CalculatorGUI extends JFrame implements ActionListener {
+// final so the constructor can hand `this` to the listeners it sets up, nothing extends the window
+@SuppressWarnings("serial")	// never serialized, like its components
+public final class CalculatorGUI extends JFrame implements ActionListener {
 	private JTextField display;
 	// true when the next digit should replace the display
 	// false when digits should be appended
 	private boolean startNewNumber = true;
 	// shows the current equation string
 	private JLabel equationLabel;
-	private StringBuilder expression = new StringBuilder();
+	// stays tokenized as it's typed, so "=" and the preview don't start from scratch every time
+	private final LiveExpression expression = new LiveExpression();
+	// true while the display shows the expression, it gets every edit as it happens then (see mirror()), false when
+	// it shows a result, "Error"... and needs the whole text again
+	private boolean mirroring;
+	// the display's caret is being moved by us, not by a click
+	private boolean syncing;
 	// for "Ans" button
 	private BigDecimal lastAnswer = BigDecimal.ZERO;
+	// "=" evaluates over here so a slow one (100000!, 2000 digits of sin...) never freezes the window, one virtual
+	// thread per evaluation since they're cheap and there's only ever one running anyway
+	private final ExecutorService evaluator = Executors.newVirtualThreadPerTaskExecutor();
+	// results go into the history over here, one at a time so they stay in order, with every digit (printing a million
+	// of them takes seconds, the display doesn't wait for that)
+	private final ExecutorService historyWriter = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory());
+	// limits for one evaluation, -Djavacalc.timeout.ms=... and -Djavacalc.steps=..., 0 for no limit
+	private static final long TIMEOUT_MS = Long.getLong("javacalc.timeout.ms", 30_000);
+	private static final long MAX_STEPS = Long.getLong("javacalc.steps", 0);
+	// the evaluation in progress, null when there's none, "C"/Escape cancels it
+	private Budget running;
+	// shows how long `running` has been going
+	private final Timer progress = new Timer(100, e -> showProgress());
+	// the result so far goes in equationLabel once typing stops for a moment, every edit starts the wait over
+	private final Timer preview = new Timer(150, e -> startPreview());
+	// previews get a short leash, one that takes longer than this just doesn't show up
+	private static final Duration PREVIEW_TIMEOUT = Duration.ofMillis(500);
+	// the preview being worked out, cancelled as soon as it's outdated
+	private Budget previewing;
+	// every "=" ever, null when it couldn't be opened (the calculator works without it)
+	// lives in ~/.javacalc unless -Djavacalc.history=<directory>
+	private final History history = openHistory();
+	// newest first, or just the search results
+	private final HistoryModel historyModel = new HistoryModel(history);
+	private final JTextField historySearch = new JTextField();
+	// searches once typing in historySearch stops for a moment, like the preview
+	private final Timer search = new Timer(150, e -> startSearch());
+	// the search being done, cancelled when the text changes again
+	private Budget searching;
 	// not just for trig but you can worry about that later
 	private static final Set<String> TRIG_FUNCTIONS = Set.of("sin", "cos", "tan", "csc", "sec", "cot");
 
-	// represents an individual piece of a math expression, paired with the TokenType enum
-	static class Token {
-		TokenType type;
-		String value;
-
-		Token(TokenType type, String value) {
-			this.type = type;
-			this.value = value;
-		}
-	}
-
-	// formats a number to force to an int if that number is a whole number
-	private String formatNumber(BigDecimal value) {
-		if (value == null) return "Error";
-		return value.stripTrailingZeros().toPlainString();
-	}
+	// what results are shown in, "Base" goes 10 -> 16 -> 2 -> 8 -> 10, only integers change (see ResultFormat)
+	private int radix = 10;
+	// expression.version() while the display still shows the last result, -1 once it's been typed over
+	private int answerShown = -1;
 
 	// routes keyboard input into the same path as button presses
 	private void handleInput(String key) { actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, key)); }
@@ -121,6 +149,8 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 		// parentheses
 		bind(im, am, KeyStroke.getKeyStroke('('), "(");
 		bind(im, am, KeyStroke.getKeyStroke(')'), ")");
+		// between arguments
+		bind(im, am, KeyStroke.getKeyStroke(','), ",");
 		// factorial (!)
 		bind(im, am, KeyStroke.getKeyStroke('!'), "!");
 		// square root
@@ -131,6 +161,36 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 		bind(im, am, KeyStroke.getKeyStroke(KeyEvent.VK_BACK_SPACE, 0), "BACK");
 		// equals
 		bind(im, am, KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "=");
+		// cursor
+		bind(im, am, KeyStroke.getKeyStroke(KeyEvent.VK_LEFT, 0), "<<");
+		bind(im, am, KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, 0), ">>");
+	}
+
+	// one item per function in Functions.LIBRARY, picking one types "name(" where the cursor is
+	private JPopupMenu templates() {
+		JPopupMenu menu = new JPopupMenu();
+		for (String definition : Functions.LIBRARY.definitions()) {
+			String name = definition.substring(0, definition.indexOf('('));
+			JMenuItem item = new JMenuItem(definition);
+			item.addActionListener(ev -> {
+				if (running != null) return;
+				expression.type(name + "(");
+				updateDisplay();
+				startNewNumber = true;
+			});
+			menu.add(item);
+		}
+		return menu;
+	}
+
+	// where the cursor ends up going past spaces from `position`, towards `step` (-1 or 1)
+	private int skipSpaces(int position, int step) {
+		int next = step < 0 ? position - 1 : position;
+		while (next >= 0 && next < expression.length() && expression.charAt(next) == ' ') {
+			position += step;
+			next += step;
+		}
+		return position;
 	}
 
 	// maps keys and commands to an action
@@ -142,308 +202,236 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 		});
 	}
 
-	private StringBuilder extractNumber(String expr, int[] pos, boolean includeMinus) {
-		StringBuilder num = new StringBuilder();
-		if (includeMinus) num.append('-');
-		// build number char-by-char
-		while (pos[0] < expr.length() && (Character.isDigit(expr.charAt(pos[0])) || expr.charAt(pos[0]) == '.'))
-			num.append(expr.charAt(pos[0]++));	// grab all digits/decimals
-		return num;
-	}
-
-	// tokenizes an expression string
-	private List<Token> tokenize(String expr) {
-		List<Token> tokens = new ArrayList<>();
-		int i = 0;
+	private boolean isValidAfterOperator(char lastChar) { return "+-×÷%^() ".indexOf(lastChar) == -1; }
 
-		if (expr.startsWith("Ans")) {	// special case
-			// replace "Ans" with whatever number
-			tokens.add(new Token(TokenType.NUMBER, lastAnswer.toString()));
-			i = 3;	// skip "Ans"
-			maybeInsertImplicitMultiply(tokens, tokens.get(tokens.size() - 1));
-		}
+	// what's right in front of the cursor, 0 when there's nothing
+	private char beforeCursor() { return expression.cursor() == 0 ? 0 : expression.charAt(expression.cursor() - 1); }
 
-		while (i < expr.length()) {
-			char c = expr.charAt(i);
+	private void updateDisplay() {
+		showCursor();
+		schedulePreview();
+	}
 
-			// space/tab/newline
-			if (Character.isWhitespace(c)) {
-				i++;		// skip/do nothing
-				continue;	// next char
-			}
-			// number (supports decimals)
-			if (Character.isDigit(c) || c == '.') {
-				int[] pos = {i};
-				StringBuilder num = extractNumber(expr, pos, false);
-				i = pos[0];	// update i
-				Token t = new Token(TokenType.NUMBER, num.toString());
-				maybeInsertImplicitMultiply(tokens, t);	// ex. 2(3) becomes 2*(3), see that function below
-				tokens.add(t);
-				continue;
-			}
-			// unary minus handling
-			if (c == '-' && (tokens.isEmpty() ||	// start of expression: "-5 + 2"
-				tokens.get(tokens.size() - 1).type == TokenType.OPERATOR ||	// after operator: "2 + -5"
-				tokens.get(tokens.size() - 1).type == TokenType.LPAREN)	// after left parenthesis: sin(-30)
-			) {	// treat as number
-				i++;	// skip past the '-' char
-				int[] pos = {i};
-				StringBuilder num = extractNumber(expr, pos, true);	 // start with "-"
-				i = pos[0];	// grab all digits/decimals that follow
-				Token t = new Token(TokenType.NUMBER, num.toString());
-				maybeInsertImplicitMultiply(tokens, t);
-				tokens.add(t);	// "-3.14" as one token
-				continue;
-			}
-			// operators
-			if ("+-*/%^".indexOf(c) != -1) {
-				tokens.add(new Token(TokenType.OPERATOR, String.valueOf(c)));
-				i++;
-				continue;
+	// the expression with its cursor, the whole text only when the display was showing something else
+	private void showCursor() {
+		syncing = true;
+		try {
+			if (!mirroring) {
+				display.setText(expression.toString());
+				mirroring = true;
 			}
-			// parentheses
-			if (c == '(') {
-				Token t = new Token(TokenType.LPAREN, "(");
-				maybeInsertImplicitMultiply(tokens, t);	// see below
-				tokens.add(t);
-				i++;
-				continue;
-			}
-			if (c == ')') {
-				tokens.add(new Token(TokenType.RPAREN, ")"));
-				i++;
-				continue;
-			}
-			if (c == '!') {
-				tokens.add(new Token(TokenType.FACTORIAL, "!"));
-				i++;
-				continue;
-			}
-			if (c == '√') {	// nth root, handles both √x and √(y)x
-				tokens.add(new Token(TokenType.ROOT, "√"));
-				i++;
-				// check for nth root syntax
-				if (i < expr.length() && expr.charAt(i) == '[') {
-					i++;	// skip [
-					int[] pos = {i};
-					StringBuilder index = extractNumber(expr, pos, true);	// allow negative index
-					i = pos[0];
-					if (i >= expr.length() || expr.charAt(i) != ']')
-						throw new IllegalArgumentException("Missing ] after root index");
-					i++;	// skip ]
-					// store as "√[index]"
-					tokens.get(tokens.size() - 1).value = "√[" + index + "]";
-				}
-				maybeInsertImplicitMultiply(tokens, tokens.get(tokens.size() - 1));
-				continue;
-			}
-			// function names (sin, cos, tan, etc.)
-			if (Character.isLetter(c)) {	// starts with a letter, which all functions here do as of now
-				StringBuilder name = new StringBuilder();
-				while (i < expr.length() && Character.isLetter(expr.charAt(i)))
-					name.append(expr.charAt(i++));	// grab all letters
-				Token t = new Token(TokenType.FUNCTION, name.toString());	// make token
-				maybeInsertImplicitMultiply(tokens, t);	// 2sin(30) -> 2 * sin(30)
-				tokens.add(t);
-				continue;
-			}
-			throw new IllegalArgumentException("Invalid character: " + c);
+			display.setCaretPosition(expression.cursor());
+		} finally {
+			syncing = false;
 		}
-		return tokens;
 	}
 
-	// determine operator precedence (PEMDAS)
-	private int precedence(Token t) {
-		if (t.type == TokenType.FACTORIAL) return 5;	// highest precedence
-		if (t.type == TokenType.ROOT) return 4;
-		if (t.type == TokenType.FUNCTION) return 4;
-		if (t.type != TokenType.OPERATOR) return 0;
-		return switch (t.value) {
-			case "+", "-" -> 1;
-			case "*", "/", "%" -> 2;
-			case "^" -> 3;
-			default -> 0;	// lowest
-		};
+	// anything but the expression
+	private void show(String text) {
+		mirroring = false;
+		display.setText(text);
 	}
 
-	// shunting yard algorithm
-	private List<Token> toPostFix(List<Token> tokens) {
-		List<Token> output = new ArrayList<>();
-		Stack<Token> ops = new Stack<>();	// operator stack
-		for (Token t : tokens) {
-			switch (t.type) {
-				case NUMBER -> output.add(t);
-				case OPERATOR -> {
-					while (
-						!ops.isEmpty() &&	// stack is not empty
-						(ops.peek().type == TokenType.OPERATOR || ops.peek().type == TokenType.FUNCTION) &&	// top of stack is an operator or function
-						precedence(ops.peek()) >= precedence(t)	// top has equal or higher precedence
-					)
-						output.add(ops.pop());	// pop from ops and add to output
-					ops.push(t);
-				}
-				case LPAREN -> ops.push(t);
-				case RPAREN -> {
-					// pop all operators until matching "("
-					while (!ops.isEmpty() && ops.peek().type != TokenType.LPAREN)
-						output.add(ops.pop());
-					if (ops.isEmpty()) throw new IllegalArgumentException("Mismatched parentheses");
-					ops.pop();	// remove "("
-					// handle functions/! that were before "("
-					if (!ops.isEmpty() && ops.peek().type == TokenType.FUNCTION) output.add(ops.pop());	// sin(30)
-					if (!ops.isEmpty() && ops.peek().type == TokenType.FACTORIAL) output.add(ops.pop());	// (2 + 1)!
-				}
-				case FACTORIAL -> {
-					// factorial is postfix and highest precedence
-					// only pop other factorials
-					while (!ops.isEmpty() && ops.peek().type == TokenType.FACTORIAL)
-						output.add(ops.pop());
-					ops.push(t);
-				}
-				case FUNCTION -> ops.push(t);
-				case ROOT -> ops.push(t);
-			}
+	// an edit to the expression, done to the display's copy too (its Document is a gap buffer as well), so a keystroke
+	// doesn't cost a setText() of the whole thing
+	private void mirror(int offset, int removed, String inserted) {
+		if (!mirroring) return;
+		syncing = true;
+		try {
+			((AbstractDocument) display.getDocument()).replace(offset, removed, inserted, null);
+		} catch (BadLocationException ex) {
+			mirroring = false;	// out of step somehow, showCursor() starts over
+		} finally {
+			syncing = false;
 		}
-		// flush remaining operators to output at end of expression and catches unmatched "("s
-		while (!ops.isEmpty()) {
-			if (ops.peek().type == TokenType.LPAREN) throw new IllegalArgumentException("Mismatched parentheses");
-			output.add(ops.pop());
+	}
+
+	private void schedulePreview() {
+		if (previewing != null) previewing.cancel();
+		previewing = null;
+		preview.restart();
+	}
+
+	// on the EDT when the preview timer goes off, the evaluation itself goes to the evaluator like "="'s
+	private void startPreview() {
+		if (running != null) return;	// "=" is on it already
+		CompiledExpression compiled = expression.preview();
+		if (compiled == null) {
+			equationLabel.setText(" ");
+			return;
 		}
+		int version = expression.version();
+		BigDecimal ans = lastAnswer;
+		int shownIn = radix;
+		Budget budget = new Budget(PREVIEW_TIMEOUT, 0);
+		previewing = budget;
+		evaluator.execute(() -> {
+			String text;
+			try {
+				text = ResultFormat.brief(budget.call(() -> compiled.evaluate(ans, EvaluationMode.RATIONAL).value()), shownIn).text();
+			} catch (Throwable ex) {	// 1/0, too slow... no preview then
+				text = null;
+			}
+			// keep it to a glance, the whole thing shows up on "="
+			if (text != null && text.length() > 40) text = text.substring(0, 40) + "…";
+			String t = text;
+			SwingUtilities.invokeLater(() -> {
+				if (budget != previewing || running != null || expression.version() != version) return;
+				previewing = null;
+				equationLabel.setText(t == null ? " " : "= " + t);
+			});
+		});
+	}
 
-		// REMOVE LATER LOL
-		System.out.print("Output: [");
-		for (int i = 0; i < output.size(); i++) {
-			System.out.print(output.get(i).value);
-			if (i < output.size() - 1) System.out.print(", ");
+	private static History openHistory() {
+		String dir = System.getProperty("javacalc.history", Path.of(System.getProperty("user.home"), ".javacalc").toString());
+		try {
+			return History.open(Path.of(dir));
+		} catch (IOException | RuntimeException ex) {
+			System.err.println("history not available: " + ex);
+			return null;
 		}
-		System.out.println("]");
-	
-		return output;
 	}
 
-	// evaluate postfix expressions using a single stack, left to right scan, no precedence needed
-	// https://en.wikipedia.org/wiki/Reverse_Polish_notation
-	private BigDecimal evaluatePostfix(List<Token> postfix) {
-		Stack<BigDecimal> stack = new Stack<>();
-		for (Token t : postfix) {
-			switch (t.type) {
-				case NUMBER -> stack.push(new BigDecimal(t.value));
-				case FUNCTION -> {
-					BigDecimal a = stack.pop();
-					double rad = Math.toRadians(a.doubleValue());
-					double res;
-					switch (t.value) {
-						case "sin" -> res = Math.sin(rad);
-						case "cos" -> res = Math.cos(rad);
-						case "tan" -> res = Math.tan(rad);
-						case "sec" -> res = 1.0 / Math.cos(rad);
-						case "csc" -> res = 1.0 / Math.sin(rad);
-						case "cot" -> res = 1.0 / Math.tan(rad);
-						default -> throw new IllegalArgumentException("Unknown function: " + t.value);
-					}
-					stack.push(BigDecimal.valueOf(res));
-				}
-				case ROOT -> {
-					BigDecimal x = stack.pop();	// radicand, thing inside √
-					BigDecimal res;
-
-					String rootStr = t.value;
-					if (rootStr.equals("√")) {
-						// square root √x
-						if (x.compareTo(BigDecimal.ZERO) < 0)
-							throw new ArithmeticException("Square root of a negative number");
-						res = BigDecimal.valueOf(Math.sqrt(x.doubleValue()));
-					} else {
-						// nth root √[n]x
-						String indexStr = rootStr.substring(2, rootStr.length() - 1);	// extract n from √[n]x
-						BigDecimal n = new BigDecimal(indexStr);
-
-						if (n.compareTo(BigDecimal.ZERO) == 0)
-							throw new ArithmeticException("Root index cannot be zero");
-
-						// handle negative numbers: only for odd integer roots
-						boolean allowNegative = n.scale() == 0 && (n.intValueExact() % 2 == 1);
-						if (x.compareTo(BigDecimal.ZERO) < 0 && !allowNegative)
-							throw new ArithmeticException("Root of negative number only valid for odd integer roots");
-
-						// nth root = x^(1/n)
-						double exponent = 1.0 / n.doubleValue();
-						res = BigDecimal.valueOf(Math.pow(x.doubleValue(), exponent));
-					}
-					stack.push(res.stripTrailingZeros());
-				}
-				case FACTORIAL -> {
-					BigDecimal a = stack.pop();//.stripTrailingZeros();
-					stack.push(factorial(a));
-				}
-				case OPERATOR -> {	// order matters here, DO NOT SWAP!
-					BigDecimal b = stack.pop();
-					BigDecimal a = stack.pop();
-					switch (t.value) {
-						case "+" -> stack.push(a.add(b));
-						case "-" -> stack.push(a.subtract(b));
-						case "*" -> stack.push(a.multiply(b));
-						case "/" -> {
-							if (b.compareTo(BigDecimal.ZERO) == 0) throw new ArithmeticException("Division by zero");
-							// up to 50 digits
-							stack.push(a.divide(b, 50, RoundingMode.HALF_UP));
-						} case "%" -> {
-							if (b.compareTo(BigDecimal.ZERO) == 0) throw new ArithmeticException("Division by zero");
-							stack.push(a.remainder(b));
-						} case "^" -> {
-							// BigDecimal has no exact power for non-integers
-							// you might lose precision here
-							double res = Math.pow(a.doubleValue(), b.doubleValue());
-							stack.push(BigDecimal.valueOf(res).stripTrailingZeros());
-						}
-					}
-				}
+	// text starting with "^" is a prefix of the expression, anything else can be anywhere in the expression or result
+	private void startSearch() {
+		if (searching != null) searching.cancel();
+		searching = null;
+		String text = historySearch.getText();
+		boolean prefix = text.startsWith("^");
+		String query = prefix ? text.substring(1) : text;
+		if (history == null || query.isEmpty()) {
+			historyModel.showAll();
+			return;
+		}
+		Budget budget = new Budget(null, 0);
+		searching = budget;
+		evaluator.execute(() -> {
+			int[] found;
+			try {
+				found = budget.call(() -> history.search(query, prefix));
+			} catch (CancellationException ex) {
+				return;	// there's a newer one
 			}
+			SwingUtilities.invokeLater(() -> {
+				if (budget != searching) return;
+				searching = null;
+				historyModel.show(found);
+			});
+		});
+	}
+
+	// on historyWriter, the result as plain digits so recall() can type it back in (History cuts off one that's too
+	// long, with a "…")
+	private void record(String input, BigDecimal result, long time, long nanos) {
+		try {
+			history.append(input, ResultFormat.plain(result), time, nanos);
+			SwingUtilities.invokeLater(() -> {
+				historyModel.added();
+				if (!historySearch.getText().isEmpty()) search.restart();	// might be one of the results
+			});
+		} catch (IOException ex) {
+			System.err.println("history: " + ex);
 		}
-		if (stack.size() != 1) throw new IllegalStateException("Invalid expression, stack=" + stack);
-		return stack.pop();
 	}
 
-	// automatically inserts hidden multiplication for common math notation patterns
-	private void maybeInsertImplicitMultiply(List<Token> tokens, Token next) {
-		if (tokens.isEmpty()) return;	// nothing, skip
-		Token prev = tokens.get(tokens.size() - 1);	// look at last token
-		boolean implicit =
-			(prev.type == TokenType.NUMBER || prev.type == TokenType.RPAREN || prev.type == TokenType.FACTORIAL) &&	// previous: number/parenthesis/factorial
-			(next.type == TokenType.LPAREN || next.type == TokenType.NUMBER || next.type == TokenType.FUNCTION);	// next parenthesis/number/function
-		if (implicit) tokens.add(new Token(TokenType.OPERATOR, "*"));	// insert *
+	// puts an old result where the cursor is, same as "Ans". anything that isn't the whole number in plain digits (cut
+	// off for being too long, or written as something else) comes back as its expression instead, in parentheses so
+	// it's still one number, unless it used an "Ans" that's long gone
+	private void recall(History.Entry entry) {
+		if (entry == null || running != null) return;
+		String result = entry.result();
+		if (result.matches("-?([0-9]+(\\.[0-9]*)?|\\.[0-9]+)")) expression.type(result);
+		else if (!entry.expression().contains("Ans")) expression.type("(" + entry.expression() + ")");
+		else return;
+		updateDisplay();
+		startNewNumber = false;
 	}
 
-	// handles factorials (!), as much as possible, don't pass in ridiculously large values
-	private static BigDecimal factorial(BigDecimal n) {
-		if (n.compareTo(BigDecimal.ZERO) < 0)
-			throw new ArithmeticException("Factorial undefined for negative numbers");
-		// integer
-		if (n.scale() == 0 || (n.scale() == 0 && n.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0)) {
-			int value = n.intValueExact();
-			BigDecimal res = BigDecimal.ONE;
-			if (value <= 1) return res;
-			for (int i = 2; i <= value; i++) res = res.multiply(BigDecimal.valueOf(i));
-			return res;
-		}
-		// gamma approximation for decimals (convert n! to Γ(n+1))
-		// https://en.wikipedia.org/wiki/Gamma_function
-		// close enough
-		// https://en.wikipedia.org/wiki/Stirling%27s_approximation#Stirling's_formula_for_the_gamma_function
-		double x = n.doubleValue() + 1.0;
-		return BigDecimal.valueOf(Math.exp((x - 0.5) * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI) + (1.0/12.0) - (1.0/360.0) * (1.0 / (x * x))));
+	// lastAnswer again in the current base, when it's what the display shows
+	private void showAnswer() {
+		if (answerShown != expression.version()) return;
+		BigDecimal answer = lastAnswer;
+		int shownIn = radix;
+		evaluator.execute(() -> {
+			String text = ResultFormat.brief(answer, shownIn).text();
+			SwingUtilities.invokeLater(() -> {
+				if (answer == lastAnswer && shownIn == radix && running == null && answerShown == expression.version()) show(text);
+			});
+		});
 	}
 
-	private boolean isValidAfterOperator(char lastChar) { return "+-×÷%^() ".indexOf(lastChar) == -1; }
+	// every digit of lastAnswer in a window of its own, printed on the evaluator (a million digits take seconds)
+	private void showFullAnswer() {
+		if (lastAnswer == null) return;
+		BigDecimal answer = lastAnswer;
+		int shownIn = radix;
+		evaluator.execute(() -> {
+			String text = ResultFormat.full(answer, shownIn);
+			SwingUtilities.invokeLater(() -> {
+				JTextArea area = new JTextArea(text);
+				area.setFont(new Font("Consolas", Font.PLAIN, 14));
+				area.setLineWrap(true);
+				area.setEditable(false);
+				JDialog dialog = new JDialog(this, text.length() + " characters");
+				dialog.add(new JScrollPane(area));
+				dialog.setSize(600, 400);
+				dialog.setLocationRelativeTo(this);
+				dialog.setVisible(true);
+			});
+		});
+	}
+
+	private void showProgress() {
+		if (running == null) return;
+		show(String.format("Computing… %.1fs", running.elapsed().toMillis() / 1000.0));
+	}
 
-	private int findLastOperator(String expr) {
-		return Math.max(
-			Math.max(expr.lastIndexOf("+"), expr.lastIndexOf("-")),
-			Math.max(expr.lastIndexOf("×"), expr.lastIndexOf("÷"))
-		);
+	// runs on the evaluator thread, everything it touches is either its own or never changes once it's made, the
+	// result goes back to the EDT through finish()
+	private void evaluate(Budget budget, String input, CompiledExpression compiled, BigDecimal ans, int shownIn) {
+		BigDecimal result = null;
+		ResultFormat.Text text = null;
+		Throwable error = null;
+		try {
+			// exact fractions until the end, so 1 ÷ 3 × 3 is 1 and not 0.999...
+			result = budget.call(() -> compiled.evaluate(ans, EvaluationMode.RATIONAL).value());
+			// the display only gets what fits, printing every digit of 200000! would take longer than computing it
+			text = ResultFormat.brief(result, shownIn);
+		} catch (Throwable ex) {	// anything, or the calculator would be stuck on "Computing…"
+			error = ex;
+		}
+		BigDecimal r = result;
+		ResultFormat.Text t = text;
+		Throwable err = error;
+		SwingUtilities.invokeLater(() -> finish(budget, input, r, t, err));
 	}
 
-	private void updateDisplay() { display.setText(expression.toString()); }
+	// back on the EDT, `budget` is dropped if it was cleared while it ran
+	private void finish(Budget budget, String input, BigDecimal result, ResultFormat.Text text, Throwable error) {
+		if (budget != running) return;
+		running = null;
+		progress.stop();
+		if (error == null) {
+			lastAnswer = result;
+			if (history != null) {
+				long time = System.currentTimeMillis(), nanos = budget.elapsed().toNanos();
+				historyWriter.execute(() -> record(input, result, time, nanos));
+			}
+			show(text.text());
+			equationLabel.setText(input + " =");
+			expression.setLength(0);	// reset
+			// the number itself stays in lastAnswer, only a result that's all there goes back in as digits
+			expression.append(text.complete() ? text.text() : "Ans");
+			answerShown = expression.version();
+			startNewNumber = true;
+		} else {
+			show("Error");
+			// say why when it ran out of time/steps, "Error" alone looks like a typo in the input
+			if (error instanceof CancellationException) equationLabel.setText(input + " = " + error.getMessage());
+			expression.setLength(0);
+		}
+	}
 
 	public CalculatorGUI() {
 		setTitle("JavaCalc");
@@ -453,7 +441,9 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 		// configures the JFrame to use BorderLayout, which divides the container into five regions, NORTH, SOUTH, EAST,
 		// WEST and CENTER.
 		setLayout(new BorderLayout());
-		setSize(600, 500);
+		setSize(820, 500);
+		preview.setRepeats(false);
+		search.setRepeats(false);
 
 		// display component
 		// create a text field initialized with "0" as the starting value
@@ -473,6 +463,11 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 			@Override
 			public void keyTyped(KeyEvent e) { e.consume(); }	// ignore typed characters
 		});
+		// clicking in the expression (or the arrow keys while it has the focus) moves where typing goes
+		display.addCaretListener(e -> {
+			if (mirroring && !syncing) expression.setCursor(e.getDot());
+		});
+		expression.setEdits(this::mirror);
 		// panel to hold equation (top) + main display (bottom)
 		JPanel displayPanel = new JPanel();
 		displayPanel.setLayout(new BorderLayout());
@@ -512,8 +507,8 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 			{ "(", ")", "<<", ">>", "csc", "sec", "cot" },
 			{ "7", "8", "9", "÷", "!", "√" },
 			{ "4", "5", "6", "×", "Ans", "BACK" },
-			{ "1", "2", "3", "-" },
-			{ "0", ".", "=", "+" }
+			{ "1", "2", "3", "-", "Base", "," },
+			{ "0", ".", "=", "+", "Full", "f(x)" }
 		};
 
 		for (int row = 0; row < grid.length; row++) {
@@ -538,12 +533,100 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 		}
 		// add to center, change CENTER to something else if you want
 		add(buttonPanel, BorderLayout.CENTER);
+		if (history != null) add(historyPanel(), BorderLayout.EAST);
 		// request focus after the frame is visible
 		SwingUtilities.invokeLater(() -> { buttonPanel.requestFocusInWindow(); });
 		setVisible(true);
 		setupKeyBindings();
 	}
 
+	// search box on top, the history under it, double click or Enter puts a result back in the expression
+	private JPanel historyPanel() {
+		JList<History.Entry> list = new JList<>(historyModel);
+		// fixed cell sizes or JList measures every row up front, millions of them
+		list.setFixedCellHeight(20);
+		list.setFixedCellWidth(200);
+		list.setFont(new Font("Consolas", Font.PLAIN, 12));
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.setCellRenderer(new DefaultListCellRenderer() {
+			@Override
+			public Component getListCellRendererComponent(JList<?> l, Object value, int index, boolean selected, boolean focused) {
+				History.Entry entry = (History.Entry) value;
+				String text = entry.expression() + " = " + entry.result();
+				if (text.length() > 60) text = text.substring(0, 60) + "…";
+				return super.getListCellRendererComponent(l, text, index, selected, focused);
+			}
+		});
+		list.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2) recall(list.getSelectedValue());
+			}
+		});
+		// in the list Enter recalls, everywhere else it's "="
+		list.getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "recall");
+		list.getActionMap().put("recall", new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) { recall(list.getSelectedValue()); }
+		});
+
+		historySearch.setToolTipText("Search the history, ^ in front to match the start of the expression");
+		historySearch.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) { search.restart(); }
+			@Override
+			public void removeUpdate(DocumentEvent e) { search.restart(); }
+			@Override
+			public void changedUpdate(DocumentEvent e) { search.restart(); }
+		});
+		// so Enter in the search box doesn't also press "="
+		historySearch.addActionListener(e -> startSearch());
+
+		JPanel panel = new JPanel(new BorderLayout(0, 5));
+		panel.setBorder(BorderFactory.createEmptyBorder(10, 0, 10, 10));
+		panel.add(historySearch, BorderLayout.NORTH);
+		panel.add(new JScrollPane(list), BorderLayout.CENTER);
+		return panel;
+	}
+
+	// the history as the list sees it, entries are read from the log only when a row is drawn
+	@SuppressWarnings("serial")	// Swing models are never serialized here
+	private static final class HistoryModel extends AbstractListModel<History.Entry> {
+		private final History history;
+		private int[] shown;	// search results, null for everything
+		// entries the list has been told about, history.size() runs ahead of it on historyWriter until added() gets here
+		private int count;
+
+		HistoryModel(History history) {
+			this.history = history;
+			count = history != null ? history.size() : 0;
+		}
+
+		@Override
+		public int getSize() { return shown != null ? shown.length : count; }
+
+		@Override
+		public History.Entry getElementAt(int index) {
+			return history.get(shown != null ? shown[index] : count - 1 - index);
+		}
+
+		void showAll() {
+			shown = null;
+			fireContentsChanged(this, 0, Math.max(0, getSize() - 1));
+		}
+
+		void show(int[] entries) {
+			shown = entries;
+			fireContentsChanged(this, 0, Math.max(0, getSize() - 1));
+		}
+
+		// the newest one goes on top, counted either way so it's there once the search is cleared
+		void added() {
+			count++;
+			if (shown == null) fireIntervalAdded(this, 0, 0);
+		}
+	}
+
 	/**
 	 * Handles button click events for all calculator operations.
 	 * 
@@ -553,139 +636,156 @@ public class CalculatorGUI extends JFrame implements ActionListener {
 	public void actionPerformed(ActionEvent e) {
 		// returns "1", "2", "+", "=", etc.
 		String command = e.getActionCommand();
-		String currentText = display.getText();
+		// busy, only "C" gets through while computing
+		if (running != null && !"C".equals(command)) return;
 
+		// everything is typed where the cursor is
 		if ("0123456789".contains(command)) {	// digit buttons
-			if (startNewNumber) {
-				expression.append(command);
-				updateDisplay();
-				startNewNumber = false;
-			} else {
-				expression.append(command);
-				updateDisplay();
-			}
+			expression.type(command);
+			updateDisplay();
+			startNewNumber = false;
 		} else if (".".equals(command)) {	// decimal point
-			// find last operator to isolate current number
-			int lastOp = findLastOperator(expression.toString());
-			// extract current number being edited after the last operator
-			// if true, whole expression is current number
-			// if false, everything after the last operator
-			String currentNumber = lastOp == -1 ? expression.toString() : expression.substring(lastOp + 1).trim();
+			// the number the cursor is in, straight from the text around it
+			int start = expression.numberStart(expression.cursor()), end = expression.numberEnd(expression.cursor());
 			// prevent multiple decimals in some number
-			if (currentNumber.contains(".")) return;
-			// if nothing on display do "0.", else just append "." on existing number
-			if (startNewNumber || expression.length() == 0) expression.append("0.");
-			else expression.append(".");
+			for (int i = start; i < end; i++) if (expression.charAt(i) == '.') return;
+			// if there's no number in front of the cursor do "0.", else just "." on the existing number
+			expression.type(startNewNumber || start == expression.cursor() ? "0." : ".");
 			updateDisplay();
 			startNewNumber = false;
 		} else if ("+-×÷%^".contains(command)) {	// operator buttons
-			if (expression.length() == 0) return;	// empty
-			// check last character
-			char last = expression.charAt(expression.length() - 1);
-			// check if last char is an operator or space and blocks double operators
-			if (!isValidAfterOperator(last)) return;
+			if (expression.cursor() == 0) return;	// nothing in front of it
+			// check if the char in front of the cursor is an operator or space and blocks double operators
+			if (!isValidAfterOperator(beforeCursor())) return;
 			// do something like " + " (space operator space)
-			expression.append(" ").append(command).append(" ");
+			expression.type(" " + command + " ");
 			updateDisplay();
 			startNewNumber = true;
 		} else if (TRIG_FUNCTIONS.contains(command)) {	// trigonemetric functions
-			expression.append(command).append("(");
+			expression.type(command + "(");
+			updateDisplay();
+			startNewNumber = true;
+		} else if (",".equals(command)) {	// between a function's arguments, max(1, 2)
+			// not right after an operator, "(" or another ","
+			if (expression.cursor() == 0 || "+-×÷%^(, ".indexOf(beforeCursor()) != -1) return;
+			expression.type(", ");
 			updateDisplay();
 			startNewNumber = true;
+		} else if ("f(x)".equals(command)) {	// the formula templates and other functions, see Functions
+			if (e.getSource() instanceof JButton button) templates().show(button, 0, button.getHeight());
 		} else if ("()".contains(command)) {
-			expression.append(command);
+			expression.type(command);
 			updateDisplay();
 			startNewNumber = false;
 		} else if ("!".equals(command)) {
-			if (expression.length() == 0) return;
-			char last = expression.charAt(expression.length() - 1);
-			// check if last char is an operator or right parentheses and block them
-			if (!isValidAfterOperator(last)) return;
-			expression.append("!");
+			if (expression.cursor() == 0) return;
+			// check if the char in front of the cursor is an operator or right parentheses and block them
+			if (!isValidAfterOperator(beforeCursor())) return;
+			expression.type("!");
 			updateDisplay();
 			startNewNumber = false;
 		} else if ("√".equals(command)) {
-			if (expression.length() == 0 || startNewNumber) {
-				expression.setLength(0);	// clear any existing "0"
-				expression.append("√");
-				updateDisplay();
-				startNewNumber = true;
-			} else {
-				char last = expression.charAt(expression.length() - 1);
-				if (!isValidAfterOperator(last)) return;
-				expression.append("√");
-				updateDisplay();
-				startNewNumber = true;
-			}
+			if (expression.length() == 0 || startNewNumber) expression.setLength(0);	// clear any existing "0"
+			else if (expression.cursor() > 0 && !isValidAfterOperator(beforeCursor())) return;
+			expression.type("√");
+			updateDisplay();
+			startNewNumber = true;
 		} else if ("Ans".equals(command)) {
 			if (lastAnswer != null) {
-				expression.append(formatNumber(lastAnswer));
+				// short ones as digits like before, "Ans" stands for the rest and evaluates to lastAnswer as it is
+				ResultFormat.Text text = ResultFormat.brief(lastAnswer, 10);
+				expression.type(text.complete() && text.text().length() <= 20 ? text.text() : "Ans");
 				updateDisplay();
 				startNewNumber = false;
 			}
-		} else if ("BACK".equals(command)) {
-			// if empty do nothing
+		} else if ("<<".equals(command) || ">>".equals(command)) {
 			if (expression.length() == 0) return;
-			// delete last character
-			expression.deleteCharAt(expression.length() - 1);
-			// clean up trailing spaces for operators
-			while (expression.length() > 0 && expression.charAt(expression.length() - 1) == ' ')
-				expression.deleteCharAt(expression.length() - 1);
+			// a char to the left or right, the spaces around operators don't count
+			int step = "<<".equals(command) ? -1 : 1, c = skipSpaces(expression.cursor(), step);
+			if (c + step >= 0 && c + step <= expression.length()) c = skipSpaces(c + step, step);
+			expression.setCursor(c);
+			showCursor();
+		} else if ("Base".equals(command)) {
+			if (running != null) return;
+			radix = switch (radix) {
+				case 10 -> 16;
+				case 16 -> 2;
+				case 2 -> 8;
+				default -> 10;
+			};
+			showAnswer();
+		} else if ("Full".equals(command)) {
+			if (running != null) return;
+			showFullAnswer();
+		} else if ("BACK".equals(command)) {
+			// delete the char in front of the cursor, if there's none do nothing
+			if (!expression.backspace()) return;
+			// clean up the spaces around an operator too
+			while (beforeCursor() == ' ') expression.backspace();
 
 			if (expression.length() == 0) {	// if empty
-				display.setText("0");		// show "0"
+				show("0");		// show "0"
+				schedulePreview();
 				startNewNumber = true;
 			} else {
 				updateDisplay();
 				startNewNumber = false;
 			}
 		} else if ("±".equals(command)) {
-			if (expression.length() == 0) return;
-			try {
-				// find end of last number
-				int end = expression.length();
-				// skip trailing spaces
-				while (end > 0 && expression.charAt(end - 1) == ' ') end--;
-				// skip digits/decimal to find number start
-				while (end > 0 && (Character.isDigit(expression.charAt(end - 1)) || expression.charAt(end - 1) == '.' || expression.charAt(end - 1) == '-')) end--;
-				// now end points to start of last number including unary minus
-				if (end == expression.length()) return;	// no number found
-				// toggle the sign at the start of the number
-				if (expression.charAt(end) == '-') expression.deleteCharAt(end);
-				else expression.insert(end, '-');
-				updateDisplay();
-			} catch (Exception ex) {
-				System.err.println("± FAIL: " + ex);
-				return;
-			}
+			// the number in front of the cursor, skipping spaces
+			int end = expression.cursor();
+			while (end > 0 && expression.charAt(end - 1) == ' ') end--;
+			int start = expression.numberStart(end);
+			if (start == end) return;	// no number found
+			// toggle the sign at the start of the number
+			if (start > 0 && expression.charAt(start - 1) == '-') expression.deleteCharAt(start - 1);
+			else expression.insert(start, '-');
+			updateDisplay();
 		} else if ("=".equals(command)) {	// equals button
 			if (expression.length() == 0) {
-				display.setText("0");
+				show("0");
 				return;
 			}
+			String input = expression.toString();
+			CompiledExpression compiled;
 			try {
-				String expr = expression.toString().replace("×", "*").replace("÷", "/");
 				// converts user input to a precise result using shunting yard algorithm
 				// https://en.wikipedia.org/wiki/Shunting_yard_algorithm
 				// ex. "sin(30) + 2!" becomes:
 				//	-> [sin, (, 30, ), +, 2, !]
 				//	-> [30, sin, 2, !, +]
 				//	-> 2.49999999999999994 or 2.5
-				BigDecimal result = evaluatePostfix(toPostFix(tokenize(expr)));
-				lastAnswer = result;
-				display.setText(formatNumber(result));
-				equationLabel.setText(expression + " =");
-				expression.setLength(0);	// reset
-				expression.append(formatNumber(result));
-				startNewNumber = true;
+				// most of that happened while it was typed, see LiveExpression
+				compiled = expression.compile();
 			} catch (Exception ex) {
-				display.setText("Error");
+				show("Error");
 				expression.setLength(0);
+				return;
 			}
+			preview.stop();
+			if (previewing != null) previewing.cancel();
+			previewing = null;
+			Budget budget = new Budget(TIMEOUT_MS == 0 ? null : Duration.ofMillis(TIMEOUT_MS), MAX_STEPS);
+			running = budget;
+			show("Computing…");
+			equationLabel.setText(input + " =");
+			progress.start();
+			BigDecimal ans = lastAnswer;
+			int shownIn = radix;
+			evaluator.execute(() -> evaluate(budget, input, compiled, ans, shownIn));
 		} else if ("C".equals(command)) {
+			// stop whatever's computing, it notices at its next step and its result gets dropped by finish()
+			if (running != null) {
+				running.cancel();
+				running = null;
+				progress.stop();
+			}
 			// clear
 			expression.setLength(0);
-			display.setText("0");
+			preview.stop();
+			if (previewing != null) previewing.cancel();
+			previewing = null;
+			show("0");
 			equationLabel.setText(" ");
 			startNewNumber = true;
 		}
@@ -0,0 +1,196 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+// the calculator as a local service, so other programs get the same results without embedding the GUI. listens on
+// localhost only and speaks plain text over TCP: one expression per line in, one line out per line in, same order.
+// a result is the number with every digit, a failure is "Error: " and the reason, a blank line gets a blank line
+// requests can be pipelined, a client can send a whole batch without waiting, results come back (in order) as they're
+// done and the lines are evaluated in parallel on every core. each connection has a virtual thread reading it and one
+// writing to it, with at most PIPELINE requests in between. past that, and past 64 evaluations per core over all
+// connections, the reader stops reading, so a client sending faster than it's served is slowed down by TCP itself
+// instead of queueing up memory here
+// java CalculatorServer [--port N] [--fast | --rational | --parallel | --digits N]
+//	--port N	listens on port N, 7531 by default, 0 for any free one (printed on stderr)
+//	--fast, --rational, --parallel and --digits N are BatchCalculator's
+// every line is independent, so "Ans" is always 0, and evaluations get the GUI's time limit (-Djavacalc.timeout.ms,
+// 30 s by default). try it with nc localhost 7531
+public final class CalculatorServer implements Closeable {
+	public static final int DEFAULT_PORT = 7531;
+	// requests read from a connection ahead of their results being written
+	private static final int PIPELINE = 256;
+	// marks the end of a connection's queue for its writer
+	private static final Future<String> END = CompletableFuture.completedFuture(null);
+	private static final Future<String> BLANK = CompletableFuture.completedFuture("");
+
+	private final ServerSocket server;
+	private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+	private final ExecutorService workers;
+	// evaluations submitted and not finished yet, over all connections
+	private final Semaphore inFlight;
+	private final ExpressionCache compiledCache = new ExpressionCache(4096);
+	private final EvaluationMode mode;
+	private final MathContext mc;	// null = the calculator's usual precision
+	private final Duration timeout;	// null for none
+
+	public CalculatorServer(int port, int threads, EvaluationMode mode, MathContext mc, Duration timeout) throws IOException {
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.inFlight = new Semaphore(threads * 64);
+		this.mode = mode;
+		this.mc = mc;
+		this.timeout = timeout;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		EvaluationMode mode = EvaluationMode.EXACT;
+		MathContext mc = null;
+		for (int arg = 0; arg < args.length; arg++) {
+			if ("--port".equals(args[arg]) && arg + 1 < args.length) port = Integer.parseInt(args[++arg]);
+			else if ("--fast".equals(args[arg])) mode = EvaluationMode.FAST;
+			else if ("--rational".equals(args[arg])) mode = EvaluationMode.RATIONAL;
+			else if ("--parallel".equals(args[arg])) mode = EvaluationMode.PARALLEL;
+			else if ("--digits".equals(args[arg]) && arg + 1 < args.length) mc = new MathContext(Integer.parseInt(args[++arg]), RoundingMode.HALF_UP);
+			else throw new IllegalArgumentException("Unknown option: " + args[arg]);
+		}
+		long timeoutMs = Long.getLong("javacalc.timeout.ms", 30_000);
+		try (CalculatorServer server = new CalculatorServer(port, Runtime.getRuntime().availableProcessors(), mode, mc,
+				timeoutMs == 0 ? null : Duration.ofMillis(timeoutMs))) {
+			System.err.println("listening on " + server.server.getLocalSocketAddress());
+			server.serve();
+		}
+	}
+
+	public int port() { return server.getLocalPort(); }
+
+	// takes connections until close()
+	public void serve() throws IOException {
+		while (true) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (SocketException ex) {
+				if (server.isClosed()) return;
+				throw ex;
+			}
+			connections.execute(() -> handle(socket));
+		}
+	}
+
+	// the connection's reader, evaluations go to the workers and their futures to the writer, in order
+	private void handle(Socket socket) {
+		BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<>(PIPELINE);
+		try (socket) {
+			Thread writer = Thread.ofVirtual().start(() -> writeResults(socket, pending));
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				for (String line; (line = in.readLine()) != null; ) pending.put(line.isBlank() ? BLANK : submit(line));
+			} catch (IOException ex) {
+				// the client went away, or the writer closed the socket since it did
+			} finally {
+				pending.put(END);
+				writer.join();
+			}
+		} catch (IOException ex) {
+			// closing it, nothing left to do about it
+		} catch (InterruptedException | RejectedExecutionException ex) {
+			// shutting down
+		}
+	}
+
+	private Future<String> submit(String line) throws InterruptedException {
+		inFlight.acquire();
+		try {
+			return workers.submit(() -> {
+				try {
+					return evaluate(line);
+				} finally {
+					inFlight.release();
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			inFlight.release();
+			throw ex;
+		}
+	}
+
+	// the result with all its digits, or why there isn't one
+	String evaluate(String line) {
+		try {
+			return new Budget(timeout, 0).call(() -> {
+				CompiledExpression compiled = compiledCache.compile(line);
+				BigDecimal result = mc != null ? compiled.evaluate(BigDecimal.ZERO, mc) : compiled.evaluate(BigDecimal.ZERO, mode).value();
+				return ResultFormat.plain(result);
+			});
+		} catch (RuntimeException | StackOverflowError ex) {
+			String reason = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+			return "Error: " + reason.replace('\n', ' ');
+		}
+	}
+
+	// the connection's writer, flushes whenever the next result isn't ready yet, so a batch goes out in big writes
+	// but a lone request doesn't wait for anything
+	private void writeResults(Socket socket, BlockingQueue<Future<String>> pending) {
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+			for (Future<String> next; (next = pending.take()) != END; ) {
+				out.write(next.get());
+				out.write('\n');
+				Future<String> after = pending.peek();
+				if (after == null || !after.isDone()) out.flush();
+			}
+			out.flush();
+			socket.shutdownOutput();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | ExecutionException ex) {
+			// can't answer anymore, stop the reader too and throw away what it already queued
+			try {
+				socket.close();
+			} catch (IOException ignored) {}
+			drain(pending);
+		}
+	}
+
+	private static void drain(BlockingQueue<Future<String>> pending) {
+		try {
+			while (pending.take() != END);	// they still run, cancelling would keep them from giving back their permit
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// stops taking connections, the ones still open are cut off
+	@Override
+	public void close() throws IOException {
+		try {
+			server.close();
+		} finally {
+			connections.shutdownNow();
+			workers.shutdownNow();
+		}
+	}
+}
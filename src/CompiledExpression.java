@@ -0,0 +1,864 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// an expression that's already been tokenized and converted to postfix, see ExpressionEngine.compile()
+// never changes after it's built (except for quietly swapping in a compiled version once it's hot), so the same instance
+// can be evaluated over and over (and from any thread)
+// the tokens don't survive compiling, every one becomes a single int: the low byte is the opcode and the rest is an
+// index into the constant pool for the ones that need a number (literals and √[n] indices) or into the variables for
+// LOAD, so evaluating never looks at a string and allocates nothing but the results
+public final class CompiledExpression {
+	// opcodes
+	static final int PUSH = 0, ANS = 1, LOAD = 2;
+	static final int ADD = 3, SUB = 4, MUL = 5, DIV = 6, MOD = 7, POW = 8;
+	static final int SIN = 9, COS = 10, TAN = 11, SEC = 12, CSC = 13, COT = 14;
+	static final int SQRT = 15, ROOT = 16, FACT = 17;
+	// something the tokenizer let through but nothing can evaluate, throws when it's reached, for a function the operand
+	// is how many arguments it was given
+	static final int UNKNOWN = 18;
+	// only in Optimizer's programs: TEE copies the top of the stack into temp n (and leaves it there), TEMP pushes it
+	static final int TEE = 19, TEMP = 20;
+	// also only from Optimizer: a ^ b % m in one, with a, b and m on the stack, see Ops.modPow()
+	static final int MODPOW = 21;
+	// a function of the caller's Functions that wasn't inlined, operand = index into callees, pops its arguments
+	static final int CALL = 22;
+	static final int OPCODE_BITS = 8, OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+
+	private static final BigDecimal[] NO_VALUES = {};
+	// function bodies up to this many instructions are copied into the caller, see Builder.inline()
+	// -Djavacalc.inline.max=<instructions>, 0 calls everything
+	static final int INLINE_MAX = Integer.getInteger("javacalc.inline.max", 64);
+
+	private final int[] code;
+	// every distinct number the program uses, once
+	private final BigDecimal[] constants;
+	// same thing for the FAST path, plus how far each double is from the real number (0.1 can't be exact, 0.5 can)
+	private final double[] doubles;
+	private final double[] doubleErrors;
+	// and for RATIONAL and PARALLEL, Optimizer's program without folding, its constants as fractions and its tree,
+	// see unfolded()
+	private volatile Program unfolded;
+	private volatile Fraction[] fractions;
+	private volatile ParallelEvaluator.Tree tree;
+	// free variables in the order they first show up, LOAD's operand is an index into this
+	private final String[] variables;
+	// what the functions nobody knows were called, by instruction, for the error message (everything else toString()
+	// needs is in the code)
+	private final Map<Integer, String> unknownNames;
+	// the functions CALL calls, resolved when compiling so evaluating never looks a name up
+	private final Call[] callees;
+	// deepest the operand stack gets
+	private final int maxDepth;
+	// instructions that can run before the stack would run dry, all of them for a well formed program
+	private final int runnable;
+	private final boolean wellFormed;
+	// the program as parsed, and Optimizer's versions of it, made the first time a MathContext comes along, the only
+	// state that changes (with the programs' own compile counters, see run())
+	private final Program original;
+	private volatile Program classic;	// mc == null
+	private final Map<MathContext, Program> precise = new ConcurrentHashMap<>();
+	// a few precisions are normal, past this many it's starting over rather than growing without end
+	private static final int MAX_PRECISIONS = 16;
+
+	// relative rounding error of one double operation (2^-52, a bit generous on purpose)
+	private static final double EPS = Math.ulp(1.0);
+	// FAST results need at least this many trustworthy digits, otherwise it's redone with BigDecimal
+	private static final int FAST_MIN_DIGITS = 12;
+	// n! is exact in a double up to 22!
+	private static final double[] SMALL_FACTORIALS = new double[23];
+
+	// operand stacks, one per thread and shared by every expression, see Stacks
+	private static final ThreadLocal<Stacks> STACKS = ThreadLocal.withInitial(Stacks::new);
+
+	static {
+		SMALL_FACTORIALS[0] = 1;
+		for (int i = 1; i < SMALL_FACTORIALS.length; i++) SMALL_FACTORIALS[i] = SMALL_FACTORIALS[i - 1] * i;
+	}
+
+	CompiledExpression(List<Token> postfix) {
+		this(postfix, Functions.LIBRARY);
+	}
+
+	CompiledExpression(List<Token> postfix, Functions functions) {
+		this(builder(postfix, functions));
+	}
+
+	private static Builder builder(List<Token> postfix, Functions functions) {
+		Builder b = new Builder(functions);
+		for (Token t : postfix) b.add(t);
+		return b;
+	}
+
+	private CompiledExpression(Builder b) {
+		code = Arrays.copyOf(b.code, b.size);
+		unknownNames = b.unknownNames;
+		callees = b.callees.toArray(new Call[0]);
+		maxDepth = b.deepest;
+		runnable = b.firstBad < 0 ? code.length : b.firstBad;
+		wellFormed = b.firstBad < 0 && b.depth == 1;
+		variables = b.variableIndex.keySet().toArray(new String[0]);
+
+		constants = b.pool.toArray(new BigDecimal[0]);
+		original = new Program(code, constants, maxDepth, 0, runnable);
+		doubles = new double[constants.length];
+		doubleErrors = new double[constants.length];
+		for (int i = 0; i < constants.length; i++) {
+			doubles[i] = constants[i].doubleValue();
+			doubleErrors[i] = errorOf(doubles[i], constants[i]);
+		}
+	}
+
+	// takes the postfix one token at a time, so a parser never has to hold all of it (see ExpressionEngine.compile(Reader))
+	// a token is down to its int as soon as it's added, nothing keeps it
+	// function names are resolved here, against `functions`
+	static final class Builder {
+		private final Functions functions;
+		private int[] code = new int[16];
+		private int size;
+		private final List<BigDecimal> pool = new ArrayList<>();
+		private final Map<BigDecimal, Integer> poolIndex = new HashMap<>();	// BigDecimal.equals() keeps 2 and 2.0 apart, good
+		private final Map<String, Integer> variableIndex = new LinkedHashMap<>();
+		private final Map<Integer, String> unknownNames = new HashMap<>();
+		private final List<Call> callees = new ArrayList<>();
+		private final Map<Functions.Definition, Integer> calleeIndex = new HashMap<>();
+		private int depth, deepest = 1, firstBad = -1;
+
+		Builder(Functions functions) { this.functions = functions; }
+
+		void add(Token t) {
+			if (t.type == TokenType.FUNCTION) {
+				call(t);
+				return;
+			}
+			int op = opcode(t), operand = 0;
+			if (op == PUSH) operand = constant(new BigDecimal(t.value));
+			// extract n from √[n]x
+			else if (op == ROOT) operand = constant(new BigDecimal(t.value.substring(2, t.value.length() - 1)));
+			else if (op == LOAD) operand = variable(t.value);
+			else if (op == UNKNOWN) unknownNames.put(size, t.value);
+			emit(op, operand);
+		}
+
+		// sin and the like are opcodes, a function of `functions` is either inlined or called, anything else is an
+		// UNKNOWN that throws once it's evaluated, like it always did
+		private void call(Token t) {
+			int op = opcode(t);
+			if (op != UNKNOWN) {
+				if (t.arguments != 1) throw new IllegalArgumentException(t.value + " takes 1 argument");
+				emit(op, 0);
+				return;
+			}
+			Functions.Definition f = functions.get(t.value);
+			if (f == null) {
+				unknownNames.put(size, t.value);
+				emit(UNKNOWN, t.arguments);
+				return;
+			}
+			if (f.arity != t.arguments) throw new IllegalArgumentException(t.value + " takes " + f.arity + (f.arity == 1 ? " argument" : " arguments"));
+			if (f.body == null || !inline(f)) emit(CALL, callee(f));
+		}
+
+		// f's body in place of the call, with each argument's instructions wherever it loads that parameter, so the
+		// Optimizer and HotCompiler see straight through it (f(x) = x^2 + 3x, then f(2) is folded to 10 like 2^2 + 3*2)
+		// an argument the body uses twice is there twice, the Optimizer works it out once
+		// a call works its arguments out first, left to right, so one that can fail (1/0, √(0-1)...) has to be used
+		// exactly once, in that order, and before anything in the body that can fail, otherwise g(x) = 5 would give 5
+		// for g(1/0), or a different error come first
+		// false when it's a CALL after all: a big body, growing the program by more than INLINE_MAX, an unknown function
+		// in the arguments (those names go by position), a broken expression, arguments that can fail used any other
+		// way, or a call in the body to a function whose own variable is one of f's parameters (it gets the value f was
+		// given, there's no variable to give it here)
+		private boolean inline(Functions.Definition f) {
+			CompiledExpression body = f.body;
+			if (firstBad >= 0 || body.code.length > INLINE_MAX) return false;
+			for (Call c : body.callees)
+				if (c.binding() != null) for (int b : c.binding()) if (b < 0 && f.parameter(-1 - b) >= 0) return false;
+			// where each argument starts, walking back from the end: the last value on the stack is the last argument,
+			// and so on
+			int[] start = new int[f.arity + 1];
+			start[f.arity] = size;
+			for (int a = f.arity - 1; a >= 0; a--) {
+				int i = start[a + 1], needed = 1;
+				while (needed > 0) {
+					if (--i < 0 || (code[i] & OPCODE_MASK) == UNKNOWN) return false;
+					needed += pops(code[i] & OPCODE_MASK, code[i] >>> OPCODE_BITS) - 1;
+				}
+				start[a] = i;
+			}
+			int[][] args = new int[f.arity][];
+			boolean[] failing = new boolean[f.arity];
+			for (int a = 0; a < f.arity; a++) {
+				args[a] = Arrays.copyOfRange(code, start[a], start[a + 1]);
+				for (int arg : args[a]) failing[a] |= canFail(arg & OPCODE_MASK);
+			}
+			int[] uses = new int[f.arity];
+			int last = -1;	// the failing argument loaded last
+			boolean failed = false;	// something in the body that can fail came already
+			for (int instruction : body.code) {
+				int p = (instruction & OPCODE_MASK) == LOAD ? f.parameter(instruction >>> OPCODE_BITS) : -1;
+				if (p < 0) failed |= canFail(instruction & OPCODE_MASK);
+				else if (failing[p]) {
+					if (failed || p <= last) return false;
+					last = p;
+				}
+				if (p >= 0) uses[p]++;
+			}
+			for (int a = 0; a < f.arity; a++) if (failing[a] && uses[a] != 1) return false;
+			long inlined = 0;
+			for (int instruction : body.code) {
+				int p = (instruction & OPCODE_MASK) == LOAD ? f.parameter(instruction >>> OPCODE_BITS) : -1;
+				inlined += p >= 0 ? args[p].length : 1;
+			}
+			if (inlined - (size - start[0]) - 1 > INLINE_MAX) return false;	// f(f(f(x))) with x twice in f doubles every time
+
+			size = start[0];
+			depth -= f.arity;
+			for (int instruction : body.code) {
+				int op = instruction & OPCODE_MASK, k = instruction >>> OPCODE_BITS;
+				int p = op == LOAD ? f.parameter(k) : -1;
+				if (p >= 0) for (int arg : args[p]) emit(arg & OPCODE_MASK, arg >>> OPCODE_BITS);
+				else if (op == LOAD) emit(LOAD, variable(body.variables[k]));	// not a parameter, one of the caller's
+				else if (op == PUSH || op == ROOT) emit(op, constant(body.constants[k]));
+				else if (op == CALL) emit(CALL, callee(body.callees[k].function()));
+				else emit(op, k);
+			}
+			return true;
+		}
+
+		// anything but numbers, names, + - and *, which always give a number
+		private static boolean canFail(int op) { return !(op == PUSH || op == ANS || op == LOAD || op == ADD || op == SUB || op == MUL); }
+
+		// f's index in callees, its body's variables that aren't parameters become the caller's
+		private int callee(Functions.Definition f) {
+			Integer index = calleeIndex.get(f);
+			if (index != null) return index;
+			int[] binding = null;
+			if (f.body != null) {
+				binding = new int[f.body.variables.length];
+				for (int k = 0; k < binding.length; k++)
+					binding[k] = f.parameter(k) >= 0 ? f.parameter(k) : -1 - variable(f.body.variables[k]);
+			}
+			callees.add(new Call(f, binding));
+			calleeIndex.put(f, callees.size() - 1);
+			return callees.size() - 1;
+		}
+
+		private int constant(BigDecimal n) { return poolIndex.computeIfAbsent(n, k -> CompiledExpression.add(pool, k)); }
+
+		private int variable(String name) { return variableIndex.computeIfAbsent(name, k -> variableIndex.size()); }
+
+		private void emit(int op, int operand) {
+			if (size == code.length) code = Arrays.copyOf(code, size * 2);
+			code[size] = op | operand << OPCODE_BITS;
+
+			int pops = pops(op, operand);
+			if (firstBad < 0 && depth < pops) firstBad = size;
+			depth += 1 - pops;	// everything pushes one value
+			deepest = Math.max(deepest, depth);
+			size++;
+		}
+
+		// how many operands an instruction takes off the stack
+		private int pops(int op, int operand) {
+			if (op == PUSH || op == ANS || op == LOAD) return 0;
+			if (op >= ADD && op <= POW) return 2;
+			if (op == UNKNOWN) return operand;	// an unknown function still wants its arguments before it complains
+			if (op == CALL) return callees.get(operand).function().arity;
+			return 1;
+		}
+
+		CompiledExpression build() { return new CompiledExpression(this); }
+	}
+
+	// a CALL's function, and where the values of its body's variables() come from: parameter binding[k] when that's
+	// 0 or more, otherwise the caller's variable -1 - binding[k]. null binding for a Functions.Native
+	private record Call(Functions.Definition function, int[] binding) {
+		int arity() { return function.arity; }
+
+		// `args` in order, `ans`, `values` and `mc` are the caller's
+		BigDecimal invoke(BigDecimal[] args, BigDecimal ans, BigDecimal[] values, MathContext mc) {
+			if (binding == null) return function.impl.apply(args, mc);
+			BigDecimal[] bound = new BigDecimal[binding.length];
+			for (int k = 0; k < bound.length; k++) bound[k] = binding[k] >= 0 ? args[binding[k]] : values[-1 - binding[k]];
+			return function.body.evaluate(ans, bound, mc);
+		}
+
+		// same for RATIONAL, a Native gets the fractions' decimals like sin does
+		Fraction invoke(Fraction[] args, BigDecimal ans, Fraction[] values) {
+			if (binding == null) {
+				BigDecimal[] decimals = new BigDecimal[args.length];
+				for (int i = 0; i < args.length; i++) decimals[i] = Ops.decimal(args[i]);
+				return Fraction.valueOf(function.impl.apply(decimals, null));
+			}
+			Fraction[] bound = new Fraction[binding.length];
+			for (int k = 0; k < bound.length; k++) bound[k] = binding[k] >= 0 ? args[binding[k]] : values[-1 - binding[k]];
+			return function.body.evaluateRational(ans, null, bound);
+		}
+	}
+
+	private static int add(List<BigDecimal> pool, BigDecimal n) {
+		pool.add(n);
+		return pool.size() - 1;
+	}
+
+	private static int opcode(Token t) {
+		return switch (t.type) {
+			case NUMBER -> PUSH;
+			case ANS -> ANS;
+			case VARIABLE -> LOAD;
+			case OPERATOR -> switch (t.value) {
+				case "+" -> ADD;
+				case "-" -> SUB;
+				case "*" -> MUL;
+				case "/" -> DIV;
+				case "%" -> MOD;
+				case "^" -> POW;
+				default -> UNKNOWN;
+			};
+			case FUNCTION -> switch (t.value) {
+				case "sin" -> SIN;
+				case "cos" -> COS;
+				case "tan" -> TAN;
+				case "sec" -> SEC;
+				case "csc" -> CSC;
+				case "cot" -> COT;
+				default -> UNKNOWN;
+			};
+			case ROOT -> t.value.equals("√") ? SQRT : ROOT;
+			case FACTORIAL -> FACT;
+			default -> UNKNOWN;
+		};
+	}
+
+	// 0 when the double is exactly the decimal, otherwise a bound on the difference (infinity for overflow)
+	private static double errorOf(double d, BigDecimal exact) {
+		if (!Double.isFinite(d)) return Double.POSITIVE_INFINITY;
+		// integers below 10^15 always fit, no need to build a BigDecimal to check
+		if (exact.scale() <= 0 && exact.precision() - exact.scale() <= 15) return 0;
+		if (new BigDecimal(d).compareTo(exact) == 0) return 0;
+		return Math.max(Math.abs(d) * EPS, Double.MIN_VALUE);
+	}
+
+	// names of the free variables, evaluating takes their values in this order
+	public List<String> variables() { return List.of(variables); }
+
+	// evaluates with the requested mode, see EvaluationMode
+	public Evaluation evaluate(BigDecimal ans, EvaluationMode mode) { return evaluate(ans, NO_VALUES, mode); }
+
+	// same, `values` lines up with variables()
+	public Evaluation evaluate(BigDecimal ans, BigDecimal[] values, EvaluationMode mode) {
+		checkValues(values);
+		if (mode == EvaluationMode.FAST) {
+			BigDecimal fast = Metrics.watching() ? Metrics.evaluation(this, "fast", () -> evaluateDouble(ans, values)) : evaluateDouble(ans, values);
+			if (fast != null) return new Evaluation(fast, EvaluationMode.FAST);
+		}
+		if (mode == EvaluationMode.RATIONAL) {
+			Fraction exact = Metrics.watching() ? Metrics.evaluation(this, "rational", () -> evaluateRational(ans, values)) : evaluateRational(ans, values);
+			return new Evaluation(exact.toBigDecimal(), EvaluationMode.RATIONAL);
+		}
+		if (mode == EvaluationMode.PARALLEL) {
+			BigDecimal result = Metrics.watching() ? Metrics.evaluation(this, "parallel", () -> evaluateParallel(ans, values, null)) : evaluateParallel(ans, values, null);
+			if (result != null) return new Evaluation(result, EvaluationMode.PARALLEL);
+		}
+		return new Evaluation(evaluate(ans, values, (MathContext) null), EvaluationMode.EXACT);
+	}
+
+	// the same number evaluate(ans, values, mc) gives, with the expensive parts that don't depend on each other worked
+	// out at the same time, see ParallelEvaluator. null when nothing is expensive enough to bother
+	BigDecimal evaluateParallel(BigDecimal ans, BigDecimal[] values, MathContext mc) {
+		Program p = unfolded();
+		ParallelEvaluator.Tree t = tree;
+		return t == null ? null : ParallelEvaluator.evaluate(t, new Decimals(p.constants, ans, values, mc), ans, values, mc);
+	}
+
+	// `ans` is what "Ans" means for this evaluation
+	// trig, roots and ^ go through doubles and division keeps 50 decimal places, like the calculator always did
+	public BigDecimal evaluate(BigDecimal ans) { return evaluate(ans, (MathContext) null); }
+
+	// evaluate postfix expressions using a single stack, left to right scan, no precedence needed
+	// https://en.wikipedia.org/wiki/Reverse_Polish_notation
+	// with a MathContext, trig, roots, ^, / and non-integer ! all use BigMath at that precision instead of doubles
+	// null means the old double-based behavior, see evaluate(BigDecimal)
+	// expressions that keep getting evaluated are compiled into their own class after a while, see HotCompiler
+	public BigDecimal evaluate(BigDecimal ans, MathContext mc) { return evaluate(ans, NO_VALUES, mc); }
+
+	// same, `values` lines up with variables()
+	public BigDecimal evaluate(BigDecimal ans, BigDecimal[] values, MathContext mc) {
+		checkValues(values);
+		return Metrics.watching() ? watched(ans, values, mc) : run(ans, values, mc);
+	}
+
+	// kept out of evaluate() so it stays small enough to inline when nothing's watching
+	private BigDecimal watched(BigDecimal ans, BigDecimal[] values, MathContext mc) {
+		return Metrics.evaluation(this, mc == null ? "classic" : "precision " + mc.getPrecision(), () -> run(ans, values, mc));
+	}
+
+	// compiled or interpreted, whichever it's up to
+	private BigDecimal run(BigDecimal ans, BigDecimal[] values, MathContext mc) {
+		Program p = wellFormed ? program(mc) : original;	// a broken one just runs until it throws
+		HotCompiler.Evaluator h = p.hot;
+		if (h != null) return h.evaluate(p.constants, values, ans, mc);
+		int threshold = HotCompiler.threshold();
+		// calls isn't exact with several threads going, doesn't matter, it only has to get there eventually
+		if (threshold > 0 && wellFormed && ++p.calls >= threshold && !p.compileTried) {
+			p.compileTried = true;
+			h = HotCompiler.compile(p.code, p.temps);
+			if (h != null) {
+				p.hot = h;
+				return h.evaluate(p.constants, values, ans, mc);
+			}
+		}
+		return interpret(p, ans, values, mc);
+	}
+
+	// the optimized program for this MathContext, see Optimizer
+	// two threads may both optimize it the first time, same result either way
+	Program program(MathContext mc) {
+		Program p = mc == null ? classic : precise.get(mc);
+		if (p != null) return p;
+		p = Optimizer.optimize(code, constants, mc);
+		if (p == null) p = original;	// unknown functions and such, nothing to gain
+		if (mc == null) classic = p;
+		else {
+			if (precise.size() >= MAX_PRECISIONS) precise.clear();
+			precise.put(mc, p);
+		}
+		return p;
+	}
+
+	private void checkValues(BigDecimal[] values) {
+		if (values.length < variables.length) throw new IllegalArgumentException("No value for " + variables[values.length]);
+	}
+
+	// the cold path, also what's left for anything HotCompiler won't take
+	BigDecimal interpret(Program p, BigDecimal ans, BigDecimal[] values, MathContext mc) {
+		int[] code = p.code;
+		BigDecimal[] constants = p.constants;
+		Stacks stacks = STACKS.get();
+		int base = stacks.reserve(p.maxDepth + p.temps);
+		int temps = base + p.maxDepth;	// the temps go above the stack
+		BigDecimal[] s = stacks.big;
+		int sp = base;	// next free slot
+		try {
+			for (int i = 0; i < p.runnable; i++) {
+				int op = code[i];
+				switch (op & OPCODE_MASK) {
+					case PUSH -> s[sp++] = constants[op >>> OPCODE_BITS];
+					case ANS -> s[sp++] = ans;
+					case LOAD -> s[sp++] = values[op >>> OPCODE_BITS];
+					// order matters here, DO NOT SWAP! s[sp - 1] is the left operand once sp is decremented
+					case ADD -> { sp--; s[sp - 1] = s[sp - 1].add(s[sp]); }
+					case SUB -> { sp--; s[sp - 1] = s[sp - 1].subtract(s[sp]); }
+					case MUL -> { sp--; s[sp - 1] = s[sp - 1].multiply(s[sp]); }
+					case DIV -> { sp--; s[sp - 1] = Ops.divide(s[sp - 1], s[sp], mc); }
+					case MOD -> { sp--; s[sp - 1] = Ops.remainder(s[sp - 1], s[sp]); }
+					case POW -> { sp--; s[sp - 1] = Ops.power(s[sp - 1], s[sp], mc); }
+					case MODPOW -> { sp -= 2; s[sp - 1] = Ops.modPow(s[sp - 1], s[sp], s[sp + 1], mc); }
+					case SIN -> s[sp - 1] = Ops.sin(s[sp - 1], mc);
+					case COS -> s[sp - 1] = Ops.cos(s[sp - 1], mc);
+					case TAN -> s[sp - 1] = Ops.tan(s[sp - 1], mc);
+					case SEC -> s[sp - 1] = Ops.sec(s[sp - 1], mc);
+					case CSC -> s[sp - 1] = Ops.csc(s[sp - 1], mc);
+					case COT -> s[sp - 1] = Ops.cot(s[sp - 1], mc);
+					case SQRT -> s[sp - 1] = Ops.sqrt(s[sp - 1], mc);	// radicand, thing inside √
+					case ROOT -> s[sp - 1] = Ops.root(s[sp - 1], constants[op >>> OPCODE_BITS], mc);
+					case FACT -> s[sp - 1] = Ops.factorial(s[sp - 1], mc);
+					case TEE -> s[temps + (op >>> OPCODE_BITS)] = s[sp - 1];
+					case TEMP -> s[sp++] = s[temps + (op >>> OPCODE_BITS)];
+					case CALL -> {
+						Call c = callees[op >>> OPCODE_BITS];
+						sp -= c.arity() - 1;
+						s[sp - 1] = c.invoke(Arrays.copyOfRange(s, sp - 1, sp - 1 + c.arity()), ans, values, mc);
+					}
+					default -> throw unknown(i);
+				}
+			}
+			if (!wellFormed) throw new IllegalStateException("Invalid expression: " + this);
+			return s[base];
+		} finally {
+			// don't keep results (some of them huge) reachable from the thread
+			Arrays.fill(s, base, base + p.maxDepth + p.temps, null);
+			stacks.top = base;
+		}
+	}
+
+	// EvaluationMode.RATIONAL, the whole result as a fraction, not rounded at all unless something inexact (sin, √2...)
+	// was in it. always interpreted, Optimizer's program minus the constant folding (it would round), and big ones
+	// in parallel like EvaluationMode.PARALLEL
+	public Fraction evaluateRational(BigDecimal ans, BigDecimal[] values) {
+		checkValues(values);
+		Fraction[] exact = new Fraction[variables.length];
+		for (int i = 0; i < exact.length; i++) exact[i] = Fraction.valueOf(values[i]);
+		return evaluateRational(ans, values, exact);
+	}
+
+	// `exact` is the variables' values as fractions, a function called from a RATIONAL evaluation gets its arguments
+	// like that and no decimals (null), those are only worked out for ParallelEvaluator's cost guesses
+	private Fraction evaluateRational(BigDecimal ans, BigDecimal[] values, Fraction[] exact) {
+		Program p = unfolded();
+		Rationals math = new Rationals(fractions, p.constants, ans, exact);
+		ParallelEvaluator.Tree t = tree;
+		if (t != null) {
+			if (values == null) {
+				values = new BigDecimal[exact.length];
+				for (int i = 0; i < exact.length; i++) values[i] = Ops.decimal(exact[i]);
+			}
+			Fraction parallel = ParallelEvaluator.evaluate(t, math, ans, values, null);
+			if (parallel != null) return parallel;
+		}
+		int[] code = p.code;
+		Fraction[] s = new Fraction[p.maxDepth + p.temps];
+		int temps = p.maxDepth;	// the temps go above the stack
+		int sp = 0;
+		for (int i = 0; i < p.runnable; i++) {
+			int op = code[i];
+			switch (op & OPCODE_MASK) {
+				case PUSH, ANS, LOAD -> s[sp++] = math.leaf(op);
+				case ADD, SUB, MUL, DIV, MOD, POW -> { sp--; s[sp - 1] = math.apply(op, s[sp - 1], s[sp], null); }
+				case MODPOW -> { sp -= 2; s[sp - 1] = math.apply(op, s[sp - 1], s[sp], s[sp + 1]); }
+				case SIN, COS, TAN, SEC, CSC, COT, SQRT, ROOT, FACT -> s[sp - 1] = math.apply(op, s[sp - 1], null, null);
+				case TEE -> s[temps + (op >>> OPCODE_BITS)] = s[sp - 1];
+				case TEMP -> s[sp++] = s[temps + (op >>> OPCODE_BITS)];
+				case CALL -> {
+					Call c = callees[op >>> OPCODE_BITS];
+					sp -= c.arity() - 1;
+					s[sp - 1] = c.invoke(Arrays.copyOfRange(s, sp - 1, sp - 1 + c.arity()), ans, exact);
+				}
+				default -> throw unknown(i);
+			}
+		}
+		if (!wellFormed) throw new IllegalStateException("Invalid expression: " + this);
+		return s[0];
+	}
+
+	// the program RATIONAL and PARALLEL run, made the first time it's needed. `fractions` and `tree` are written
+	// first so whoever sees the program sees them too (two threads making it at once make the same thing)
+	private Program unfolded() {
+		Program p = unfolded;
+		if (p != null) return p;
+		p = wellFormed ? Optimizer.optimizeRational(code, constants) : null;
+		if (p == null) p = original;
+		Fraction[] k = new Fraction[p.constants.length];
+		for (int i = 0; i < k.length; i++) k[i] = Fraction.valueOf(p.constants[i]);
+		fractions = k;
+		tree = wellFormed ? ParallelEvaluator.Tree.of(p) : null;
+		unfolded = p;
+		return p;
+	}
+
+	// what interpret() does to BigDecimals, one instruction at a time, for ParallelEvaluator
+	private record Decimals(BigDecimal[] constants, BigDecimal ans, BigDecimal[] values, MathContext mc)
+		implements ParallelEvaluator.Arithmetic<BigDecimal> {
+		@Override
+		public BigDecimal leaf(int op) {
+			return switch (op & OPCODE_MASK) {
+				case PUSH -> constants[op >>> OPCODE_BITS];
+				case ANS -> ans;
+				default -> values[op >>> OPCODE_BITS];
+			};
+		}
+
+		@Override
+		public BigDecimal apply(int op, BigDecimal a, BigDecimal b, BigDecimal c) {
+			return switch (op & OPCODE_MASK) {
+				case ADD -> a.add(b);
+				case SUB -> a.subtract(b);
+				case MUL -> a.multiply(b);
+				case DIV -> Ops.divide(a, b, mc);
+				case MOD -> Ops.remainder(a, b);
+				case POW -> Ops.power(a, b, mc);
+				case MODPOW -> Ops.modPow(a, b, c, mc);
+				case SIN -> Ops.sin(a, mc);
+				case COS -> Ops.cos(a, mc);
+				case TAN -> Ops.tan(a, mc);
+				case SEC -> Ops.sec(a, mc);
+				case CSC -> Ops.csc(a, mc);
+				case COT -> Ops.cot(a, mc);
+				case SQRT -> Ops.sqrt(a, mc);
+				case ROOT -> Ops.root(a, constants[op >>> OPCODE_BITS], mc);
+				case FACT -> Ops.factorial(a, mc);
+				default -> throw new IllegalStateException("Not an operator: " + (op & OPCODE_MASK));
+			};
+		}
+	}
+
+	// RATIONAL's instructions, shared by evaluateRational() and ParallelEvaluator
+	// + - * / % and whole powers stay exact, the functions go through the classic ones on the fraction's decimal
+	private record Rationals(Fraction[] fractions, BigDecimal[] constants, BigDecimal ans, Fraction[] values)
+		implements ParallelEvaluator.Arithmetic<Fraction> {
+		@Override
+		public Fraction leaf(int op) {
+			return switch (op & OPCODE_MASK) {
+				case PUSH -> fractions[op >>> OPCODE_BITS];
+				case ANS -> Fraction.valueOf(ans);
+				default -> values[op >>> OPCODE_BITS];
+			};
+		}
+
+		@Override
+		public Fraction apply(int op, Fraction a, Fraction b, Fraction c) {
+			return switch (op & OPCODE_MASK) {
+				case ADD -> a.add(b);
+				case SUB -> a.subtract(b);
+				case MUL -> a.multiply(b);
+				case DIV -> a.divide(b);
+				case MOD -> a.remainder(b);
+				case POW -> Ops.power(a, b);
+				case MODPOW -> Ops.modPow(a, b, c);
+				case SIN -> Fraction.valueOf(Ops.sin(Ops.decimal(a), null));
+				case COS -> Fraction.valueOf(Ops.cos(Ops.decimal(a), null));
+				case TAN -> Fraction.valueOf(Ops.tan(Ops.decimal(a), null));
+				case SEC -> Fraction.valueOf(Ops.sec(Ops.decimal(a), null));
+				case CSC -> Fraction.valueOf(Ops.csc(Ops.decimal(a), null));
+				case COT -> Fraction.valueOf(Ops.cot(Ops.decimal(a), null));
+				case SQRT -> Ops.sqrt(a);
+				case ROOT -> Fraction.valueOf(Ops.root(Ops.decimal(a), constants[op >>> OPCODE_BITS], null));
+				case FACT -> Fraction.valueOf(Ops.factorial(Ops.decimal(a), null));
+				default -> throw new IllegalStateException("Not an operator: " + (op & OPCODE_MASK));
+			};
+		}
+	}
+
+	private RuntimeException unknown(int i) {
+		if (code[i] >>> OPCODE_BITS >= 1) return new IllegalArgumentException("Unknown function: " + unknownNames.get(i));
+		return new IllegalStateException("Unexpected token in postfix: " + label(i));
+	}
+
+	// same walk as evaluate(), but on doubles, every stack slot also carries a bound on how far it can be from what the
+	// BigDecimal path would have there (which itself goes through doubles for trig, roots and ^)
+	// returns null whenever the exact path should take over instead: errors (so they get thrown the same way), overflow,
+	// or when the bound leaves fewer than FAST_MIN_DIGITS correct digits
+	private BigDecimal evaluateDouble(BigDecimal ans, BigDecimal[] values) {
+		if (!wellFormed) return null;
+		Stacks stacks = STACKS.get();
+		int base = stacks.reserve(maxDepth);
+		try {
+			return evaluateDouble(ans, values, stacks.val, stacks.err, base);
+		} finally {
+			stacks.top = base;
+		}
+	}
+
+	private BigDecimal evaluateDouble(BigDecimal ans, BigDecimal[] values, double[] val, double[] err, int base) {
+		int sp = base;
+		for (int i = 0; i < code.length; i++) {
+			int op = code[i], k = op >>> OPCODE_BITS;
+			switch (op & OPCODE_MASK) {
+				case PUSH -> {
+					val[sp] = doubles[k];
+					err[sp++] = doubleErrors[k];
+				}
+				case ANS -> {
+					val[sp] = ans.doubleValue();
+					err[sp] = errorOf(val[sp], ans);
+					sp++;
+				}
+				case LOAD -> {
+					val[sp] = values[k].doubleValue();
+					err[sp] = errorOf(val[sp], values[k]);
+					sp++;
+				}
+				case SIN, COS, TAN, SEC, CSC, COT -> {
+					double a = val[sp - 1], rad = Math.toRadians(a);
+					double r, slope;	// slope = |d result / d radians|, for pushing the input error through
+					switch (op & OPCODE_MASK) {
+						case SIN -> { r = Math.sin(rad); slope = 1; }
+						case COS -> { r = Math.cos(rad); slope = 1; }
+						case TAN -> { r = Math.tan(rad); slope = 1 + r * r; }
+						case SEC -> { r = 1.0 / Math.cos(rad); slope = Math.abs(r * Math.tan(rad)); }
+						case CSC -> { r = 1.0 / Math.sin(rad); slope = Math.abs(r / Math.tan(rad)); }
+						default -> { r = 1.0 / Math.tan(rad); slope = 1 + r * r; }
+					}
+					if (!Double.isFinite(r)) return null;
+					// when the input is exact both paths feed Math.sin() the same double, only the BigDecimal.valueOf()
+					// of the result differs
+					double inputErr = err[sp - 1] == 0 ? 0 : Math.toRadians(err[sp - 1] + Math.abs(a) * EPS) * slope;
+					val[sp - 1] = r;
+					err[sp - 1] = inputErr + Math.abs(r) * EPS;
+				}
+				case SQRT, ROOT -> {
+					double x = val[sp - 1], ex = err[sp - 1];
+					if (x < 0 || (x == 0 && ex != 0)) return null;	// negatives have their own rules, leave them to the exact path
+					double r, slope;
+					if ((op & OPCODE_MASK) == SQRT) {
+						r = Math.sqrt(x);
+						slope = x == 0 ? 0 : 1 / (2 * r);
+					} else {
+						double n = doubles[k];	// the exact path uses the double too
+						if (n == 0) return null;
+						r = Math.pow(x, 1.0 / n);
+						slope = x == 0 ? 0 : Math.abs(r / (n * x));
+					}
+					if (!Double.isFinite(r)) return null;
+					val[sp - 1] = r;
+					err[sp - 1] = (ex == 0 ? 0 : (ex + x * EPS) * slope) + r * EPS;
+				}
+				case FACT -> {
+					// only small exact integers, anything else is the exact path's job
+					double a = val[sp - 1];
+					if (err[sp - 1] != 0 || a < 0 || a >= SMALL_FACTORIALS.length || a != Math.rint(a)) return null;
+					val[sp - 1] = SMALL_FACTORIALS[(int) a];
+				}
+				case ADD, SUB, MUL, DIV, MOD, POW -> {
+					double b = val[--sp], eb = err[sp];
+					double a = val[sp - 1], ea = err[sp - 1];
+					double r, e;	// e = bound for this step, on top of the inputs' own error
+					switch (op & OPCODE_MASK) {
+						case ADD -> {
+							r = a + b;
+							double bb = r - a;	// TwoSum, gives the exact rounding error
+							e = ea + eb + Math.abs((a - (r - bb)) + (b - bb));
+						}
+						case SUB -> {
+							r = a - b;
+							double bb = r - a;
+							e = ea + eb + Math.abs((a - (r - bb)) + (-b - bb));
+						}
+						case MUL -> {
+							r = a * b;
+							e = Math.abs(a) * eb + Math.abs(b) * ea + ea * eb + Math.abs(Math.fma(a, b, -r));
+						}
+						case DIV -> {
+							if (Math.abs(b) <= eb) return null;	// could be (or is) division by zero
+							r = a / b;
+							// residual a - r*b is exact with fma, the 1e-50 is the exact path rounding to 50 places
+							e = (ea + Math.abs(r) * eb) / (Math.abs(b) - eb) + Math.abs(Math.fma(-r, b, a) / b) + 0.5e-50;
+						}
+						case MOD -> {
+							// remainder jumps around, so only exact inputs (then % on doubles is exact too)
+							if (b == 0 || ea != 0 || eb != 0) return null;
+							r = a % b;
+							e = 0;
+						}
+						default -> {
+							r = Math.pow(a, b);
+							// the exact path makes the same Math.pow() call, or works out a whole power exactly
+							if (ea == 0 && eb == 0) e = 0;
+							else if (a == 0) return null;
+							else e = (ea + Math.abs(a) * EPS) * Math.abs(b * r / a) + (eb + Math.abs(b) * EPS) * Math.abs(r * Math.log(Math.abs(a)));
+							// and Math.pow() is exact itself for whole powers of whole numbers that fit in 53 bits
+							boolean exact = e == 0 && b >= 0 && a == Math.rint(a) && b == Math.rint(b) && Math.abs(r) < 0x1p53;
+							if (!exact) e += Math.abs(r) * EPS;
+						}
+					}
+					if (!Double.isFinite(r) || !Double.isFinite(e)) return null;
+					val[sp - 1] = r;
+					err[sp - 1] = e;
+				}
+				default -> { return null; }
+			}
+		}
+		double r = val[base], e = err[base];
+		if (e == 0) return new BigDecimal(r);	// nothing was ever rounded
+		if (r == 0) return null;	// can't say how many digits of 0 are right
+		double rel = e / Math.abs(r);
+		int digits = (int) Math.floor(-Math.log10(rel));
+		if (digits < FAST_MIN_DIGITS) return null;
+		// one digit of slack, and a double never has more than 17 anyway
+		int keep = Math.min(digits - 1, 17);
+		// rounding may only eat decimals, never print a wrong integer like 123456789012350000
+		if (Math.abs(r) >= Math.pow(10, keep)) return null;
+		return new BigDecimal(r).round(new MathContext(keep, RoundingMode.HALF_EVEN));
+	}
+
+	// for BulkEvaluator, which runs the same program on whole arrays of doubles, none of these get modified
+	int[] code() { return code; }
+	double[] constantDoubles() { return doubles; }
+	int maxDepth() { return maxDepth; }
+	boolean wellFormed() { return wellFormed; }
+	// the program as compiled, before Optimizer, what bench's DifferentialTest holds every other path to
+	Program original() { return original; }
+
+	// throws what evaluating would if it can't ever work (broken, or calls a function nobody has), for Functions.define()
+	void checkRunnable() {
+		for (int i = 0; i < runnable; i++) if ((code[i] & OPCODE_MASK) == UNKNOWN) throw unknown(i);
+		if (!wellFormed) throw new IllegalArgumentException("Invalid expression: " + this);
+	}
+
+	// postfix form, ex. "[30, sin, 2, !, +]"
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < code.length; i++) sb.append(i == 0 ? "" : ", ").append(label(i));
+		return sb.append(']').toString();
+	}
+
+	// the token instruction i came from, numbers as BigDecimal prints them (.5 is 0.5)
+	private String label(int i) {
+		int operand = code[i] >>> OPCODE_BITS;
+		return switch (code[i] & OPCODE_MASK) {
+			case PUSH -> constants[operand].toPlainString();
+			case ANS -> "Ans";
+			case LOAD -> variables[operand];
+			case ADD -> "+";
+			case SUB -> "-";
+			case MUL -> "*";
+			case DIV -> "/";
+			case MOD -> "%";
+			case POW -> "^";
+			case SIN -> "sin";
+			case COS -> "cos";
+			case TAN -> "tan";
+			case SEC -> "sec";
+			case CSC -> "csc";
+			case COT -> "cot";
+			case SQRT -> "√";
+			case ROOT -> "√[" + constants[operand].toPlainString() + "]";
+			case FACT -> "!";
+			case CALL -> callees[operand].function().name;
+			default -> unknownNames.getOrDefault(i, "?");
+		};
+	}
+
+	// something to run: code, its constants, and how much room it needs, plus the compiled version once it's hot
+	// the original (with `runnable` possibly short of the end, for broken ones) or one of Optimizer's
+	static final class Program {
+		final int[] code;
+		final BigDecimal[] constants;
+		final int maxDepth, temps, runnable;
+		// evaluations so far and the compiled version once there's one
+		int calls;
+		volatile boolean compileTried;
+		volatile HotCompiler.Evaluator hot;
+
+		Program(int[] code, BigDecimal[] constants, int maxDepth, int temps, int runnable) {
+			this.code = code;
+			this.constants = constants;
+			this.maxDepth = maxDepth;
+			this.temps = temps;
+			this.runnable = runnable;
+		}
+	}
+
+	// every evaluation takes maxDepth slots off the top and hands them back when it's done, so nothing gets allocated
+	// per evaluation and evaluating something from inside an evaluation still works
+	// when the arrays have to grow, whoever's running keeps using the old ones, their slots don't move, so the new ones
+	// start out empty: copies of those slots would stay reachable from the thread after they're cleared in the old ones
+	private static final class Stacks {
+		BigDecimal[] big = new BigDecimal[32];
+		double[] val = new double[32];
+		double[] err = new double[32];
+		int top;
+
+		// index of `size` free slots in all three arrays
+		int reserve(int size) {
+			int base = top;
+			if (base + size > big.length) {
+				int length = Math.max(big.length * 2, base + size);
+				big = new BigDecimal[length];
+				val = new double[length];
+				err = new double[length];
+			}
+			top = base + size;
+			return base;
+		}
+	}
+}
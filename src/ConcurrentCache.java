@@ -0,0 +1,126 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+// LruCache for caches every thread hits all the time (compiled expressions, Memo): a hit is a ConcurrentHashMap get
+// and one flag, no lock, so thousands of sessions looking things up at once don't line up behind each other
+// it's only roughly least recently used: CLOCK, every entry has a "used" flag that a hit sets, eviction goes around
+// the map and throws out the first entry whose flag isn't set, clearing the ones that are on the way (second chance)
+// the limits hold once puts are done, a put that finds another thread already evicting leaves the work to it, so the
+// cache can be a little over while several threads are putting at once
+class ConcurrentCache<K, V> {
+	private final int maxSize;
+	private final long maxWeight;
+	private final ToLongFunction<? super V> weigher;
+	private final ConcurrentHashMap<K, Node<V>> map = new ConcurrentHashMap<>();
+	private final AtomicLong weight = new AtomicLong();
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+	// one thread evicts at a time, the clock hand is its own
+	private final ReentrantLock evicting = new ReentrantLock();
+	private Iterator<Map.Entry<K, Node<V>>> hand;
+
+	private static final class Node<V> {
+		final V value;
+		final long weight;
+		// only written when it changes, so a hot entry isn't a cache line every core keeps writing to
+		boolean used;
+
+		Node(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	ConcurrentCache(int maxSize) { this(maxSize, Long.MAX_VALUE, v -> 0); }
+
+	// `weigher` has to give the same answer for a value every time, like LruCache's
+	ConcurrentCache(int maxSize, long maxWeight, ToLongFunction<? super V> weigher) {
+		if (maxSize < 1) throw new IllegalArgumentException("Cache size must be at least 1");
+		if (maxWeight < 1) throw new IllegalArgumentException("Cache weight must be at least 1");
+		this.maxSize = maxSize;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	V get(K key) {
+		Node<V> node = map.get(key);
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		if (!node.used) node.used = true;
+		return node.value;
+	}
+
+	void put(K key, V value) {
+		long w = weigher.applyAsLong(value);
+		if (w > maxWeight) return;	// would push out everything else and still not fit
+		Node<V> old = map.put(key, new Node<>(value, w));
+		weight.addAndGet(old == null ? w : w - old.weight);
+		if (map.size() > maxSize || weight.get() > maxWeight) evict();
+	}
+
+	// looks up `key`, builds it with `loader` on a miss, outside of anything so a slow load holds nobody up (two
+	// threads can build the same value at once, the first one stored wins)
+	V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+		V value = get(key);
+		if (value != null) return value;
+		V loaded = loader.apply(key);
+		long w = weigher.applyAsLong(loaded);
+		if (w > maxWeight) return loaded;
+		Node<V> raced = map.putIfAbsent(key, new Node<>(loaded, w));
+		if (raced != null) return raced.value;
+		weight.addAndGet(w);
+		if (map.size() > maxSize || weight.get() > maxWeight) evict();
+		return loaded;
+	}
+
+	private void evict() {
+		if (!evicting.tryLock()) return;	// someone's on it
+		try {
+			// twice around is enough for the hand to find one, the first time clears every flag it passes
+			int tries = 2 * map.size() + 2;
+			while ((map.size() > maxSize || weight.get() > maxWeight) && tries-- > 0) {
+				if (hand == null || !hand.hasNext()) hand = map.entrySet().iterator();
+				if (!hand.hasNext()) return;
+				Map.Entry<K, Node<V>> e = hand.next();
+				Node<V> node = e.getValue();
+				if (node.used) {
+					node.used = false;
+					continue;
+				}
+				if (map.remove(e.getKey(), node)) {
+					weight.addAndGet(-node.weight);
+					evictions.increment();
+				}
+			}
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	void clear() {
+		for (K key : map.keySet()) {
+			Node<V> node = map.remove(key);
+			if (node != null) weight.addAndGet(-node.weight);
+		}
+	}
+
+	int size() { return map.size(); }
+	int maxSize() { return maxSize; }
+	long weight() { return weight.get(); }
+	long hits() { return hits.sum(); }
+	long misses() { return misses.sum(); }
+	long evictions() { return evictions.sum(); }
+
+	@Override
+	public String toString() {
+		return "size=" + map.size() + "/" + maxSize + ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions();
+	}
+}
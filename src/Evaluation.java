@@ -0,0 +1,4 @@
+import java.math.BigDecimal;
+
+// a result plus which path actually produced it, a FAST request that fell back reports EXACT
+public record Evaluation(BigDecimal value, EvaluationMode mode) {}
@@ -0,0 +1,10 @@
+// how CompiledExpression.evaluate() does the math
+// EXACT: BigDecimal the whole way, what the calculator has always done
+// FAST: plain doubles with a running error bound, falls back to EXACT on overflow, errors, or when the bound says the
+//	printed digits can't be trusted (see CompiledExpression.evaluateDouble())
+// RATIONAL: exact fractions for + - * / % and integer ^ (1/3 * 3 is 1), only turned into a decimal at the end, the
+//	functions with no exact answer (trig, most roots) work like EXACT's, see Fraction. big expressions are split up
+//	like PARALLEL's
+// PARALLEL: EXACT's numbers, with expensive parts that don't depend on each other (1000! * 2000!) worked out on
+//	several cores, see ParallelEvaluator. reports EXACT when nothing was worth splitting up
+public enum EvaluationMode { EXACT, FAST, RATIONAL, PARALLEL }
@@ -0,0 +1,56 @@
+// remembers compiled expressions so typing (or sending) the same thing twice doesn't tokenize it twice
+// keys are normalized first, so "2×3", "2 * 3" and "2  *  3" don't all get their own entry
+// "Ans" is compiled as a placeholder (see TokenType.ANS), so cached entries stay valid when the last answer changes
+// lookups take no lock (see ConcurrentCache), one cache can serve every thread and every Session
+// function calls are resolved when compiling (see Functions), so the key has the table and its version too, "f(2)" is
+// compiled again once f is redefined or for a Session with an f of its own
+public final class ExpressionCache {
+	private final ConcurrentCache<Key, CompiledExpression> cache;
+
+	private record Key(String expr, Functions functions, long version) {}
+
+	public ExpressionCache(int maxSize) { cache = new ConcurrentCache<>(maxSize); }
+
+	public CompiledExpression compile(String expr) { return compile(expr, Functions.LIBRARY); }
+
+	public CompiledExpression compile(String expr, Functions functions) {
+		return cache.computeIfAbsent(new Key(normalize(expr), functions, functions.version()), k -> ExpressionEngine.compile(k.expr(), k.functions()));
+	}
+
+	// ×/÷ -> */ and whitespace dropped wherever the tokenizer would ignore it anyway, it mustn't change what compiles
+	// kept (as one space): between two digits/letters since "2 3" (2*3) and "23" are different things, and next to
+	// what the tokenizer reads as one piece with its neighbor, after a "-" ("- 5" isn't the number -5), between √ and
+	// [, and inside √[2]
+	static String normalize(String expr) {
+		StringBuilder sb = new StringBuilder(expr.length());
+		boolean pendingSpace = false;
+		for (int i = 0; i < expr.length(); i++) {
+			char c = expr.charAt(i);
+			if (Character.isWhitespace(c)) {
+				pendingSpace = true;
+				continue;
+			}
+			if (pendingSpace && sb.length() > 0 && keepsSpace(sb.charAt(sb.length() - 1), c)) sb.append(' ');
+			pendingSpace = false;
+			if (c == '×') c = '*';
+			else if (c == '÷') c = '/';
+			sb.append(c);
+		}
+		return sb.toString();	// leading and trailing whitespace dropped
+	}
+
+	private static boolean keepsSpace(char before, char after) {
+		return (isWordChar(before) && isWordChar(after)) || before == '-' || before == '√' || before == '[' || after == ']';
+	}
+
+	private static boolean isWordChar(char c) { return Character.isLetterOrDigit(c) || c == '.'; }
+
+	public long hits() { return cache.hits(); }
+	public long misses() { return cache.misses(); }
+	public long evictions() { return cache.evictions(); }
+	public int size() { return cache.size(); }
+	public void clear() { cache.clear(); }
+
+	@Override
+	public String toString() { return "ExpressionCache[" + cache + "]"; }
+}
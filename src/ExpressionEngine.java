@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// the parsing half of the calculator, no Swing in here so anything can use it
+// turns an expression string into a CompiledExpression that can be evaluated as many times as you want
+public final class ExpressionEngine {
+	private ExpressionEngine() {}	// static helpers only
+
+	private static final Set<String> FUNCTIONS = Set.of("sin", "cos", "tan", "sec", "csc", "cot");
+
+	// tokenize + shunting yard, done once per expression
+	// function names are looked up in Functions.LIBRARY
+	public static CompiledExpression compile(String expr) { return compile(expr, Functions.LIBRARY); }
+
+	// same, with `functions` for the names that aren't built in (a Session's own, for instance), a call is resolved
+	// here once and for all: a small function's body goes right into the program, anything else is called directly
+	// without looking its name up again, see CompiledExpression.Builder
+	public static CompiledExpression compile(String expr, Functions functions) {
+		if (!Metrics.watching()) return compile(new ExpressionReader(expr), functions);
+		// same thing, timed and counted, see Metrics
+		Metrics.ParseEvent event = new Metrics.ParseEvent();
+		event.begin();
+		try {
+			long start = Metrics.start();
+			List<Token> tokens = tokenize(expr);
+			start = Metrics.record(Metrics.Phase.TOKENIZE, start);
+			Metrics.parsed(tokens);
+			event.tokens = tokens.size();
+			CompiledExpression compiled = new CompiledExpression(toPostFix(tokens), functions);
+			Metrics.record(Metrics.Phase.TO_POSTFIX, start);
+			return compiled;
+		} catch (RuntimeException e) {
+			Metrics.error(e);
+			event.error = e.getClass().getName() + ": " + e.getMessage();
+			throw e;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.expression = expr;
+				event.commit();
+			}
+		}
+	}
+
+	// same thing for text that's already in memory but isn't a String, a CharBuffer for instance
+	public static CompiledExpression compile(CharSequence expr) { return compile(new ExpressionReader(expr), Functions.LIBRARY); }
+
+	// same thing, read as it goes: only the token being read is kept, along with the program so far and the operators
+	// still waiting for their operands (as deep as the parentheses go), so a generated expression of tens of megabytes
+	// doesn't have to be a String first. doesn't close `in`
+	public static CompiledExpression compile(Reader in) throws IOException {
+		try {
+			return compile(new ExpressionReader(in), Functions.LIBRARY);
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	// an expression file, UTF-8, mapped instead of read, up to 2 GB
+	public static CompiledExpression compile(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+			return compile(new MappedReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), utf8));
+		}
+	}
+
+	// tokenize + shunting yard in one pass, the tokens go straight into the program and are gone
+	// a token that runs into the end of what's been read so far might go on (or be followed by "(" that makes a name
+	// a function), it's read again once there's more
+	private static CompiledExpression compile(ExpressionReader expr, Functions functions) {
+		CompiledExpression.Builder program = new CompiledExpression.Builder(functions);
+		List<Token> tokens = new ArrayList<>(), output = new ArrayList<>();
+		OpStack ops = null;
+		for (int i = nextStart(expr, 0); i < expr.length(); i = nextStart(expr, i)) {
+			expr.release(i);
+			// nextToken() only ever looks at the last token
+			if (tokens.size() > 1) tokens.subList(0, tokens.size() - 1).clear();
+			int before = tokens.size(), end;
+			while (true) {
+				try {
+					end = nextToken(expr, i, tokens);
+					if (skipWhitespace(expr, end) < expr.length() || !expr.fill()) break;
+				} catch (IllegalArgumentException ex) {
+					if (!runsOff(expr, i) || !expr.fill()) throw ex;
+				}
+				tokens.subList(before, tokens.size()).clear();
+			}
+			for (int t = before; t < tokens.size(); t++) ops = shunt(tokens.get(t), output, ops);
+			for (Token t : output) program.add(t);
+			output.clear();
+			i = end;
+		}
+		flush(output, ops);
+		for (Token t : output) program.add(t);
+		return program.build();
+	}
+
+	// where the next token starts, reading on through whitespace as far as it goes
+	private static int nextStart(ExpressionReader expr, int i) {
+		for (i = skipWhitespace(expr, i); i == expr.length(); i = skipWhitespace(expr, i)) {
+			expr.release(i);
+			if (!expr.fill()) break;
+		}
+		return i;
+	}
+
+	// whether the token at i (that didn't make sense) could be missing the part that isn't read yet: √[2 and no ] so far
+	private static boolean runsOff(CharSequence expr, int i) {
+		while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || "√[-.".indexOf(expr.charAt(i)) != -1)) i++;
+		return i == expr.length();
+	}
+
+	// a mapped file as a Reader, decoded a window at a time
+	private static final class MappedReader extends Reader {
+		private final ByteBuffer bytes;
+		private final CharsetDecoder decoder;
+
+		MappedReader(ByteBuffer bytes, CharsetDecoder decoder) {
+			this.bytes = bytes;
+			this.decoder = decoder;
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			if (!bytes.hasRemaining()) return -1;
+			CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+			CoderResult result = decoder.decode(bytes, out, true);
+			if (result.isError()) result.throwException();
+			return out.position() - offset;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	// digits and points from pos[0] on, with the "-" right in front of them when includeMinus, straight out of expr
+	private static String extractNumber(CharSequence expr, int[] pos, boolean includeMinus) {
+		int start = includeMinus ? pos[0] - 1 : pos[0];
+		while (pos[0] < expr.length() && (Character.isDigit(expr.charAt(pos[0])) || expr.charAt(pos[0]) == '.'))
+			pos[0]++;	// grab all digits/decimals
+		return expr.subSequence(start, pos[0]).toString();
+	}
+
+	// tokenizes an expression string
+	static List<Token> tokenize(String expr) {
+		List<Token> tokens = new ArrayList<>();
+		for (int i = skipWhitespace(expr, 0); i < expr.length(); i = skipWhitespace(expr, i)) i = nextToken(expr, i, tokens);
+		return tokens;
+	}
+
+	// space/tab/newline, skip/do nothing
+	static int skipWhitespace(CharSequence expr, int i) {
+		while (i < expr.length() && Character.isWhitespace(expr.charAt(i))) i++;
+		return i;
+	}
+
+	// reads the one token starting at expr[i] (never whitespace) into tokens, with a "*" in front if it's implied,
+	// and returns where it ends
+	// it only looks at the last token and at expr up to the next non-whitespace after it, LiveExpression counts on that
+	static int nextToken(CharSequence expr, int i, List<Token> tokens) {
+		char c = expr.charAt(i);
+		// number (supports decimals)
+		if (Character.isDigit(c) || c == '.') {
+			int[] pos = {i};
+			String num = extractNumber(expr, pos, false);
+			i = pos[0];	// update i
+			Token t = new Token(TokenType.NUMBER, num);
+			maybeInsertImplicitMultiply(tokens, t);	// ex. 2(3) becomes 2*(3), see that function below
+			tokens.add(t);
+			return i;
+		}
+		// unary minus handling
+		if (c == '-' && (tokens.isEmpty() ||	// start of expression: "-5 + 2"
+			tokens.get(tokens.size() - 1).type == TokenType.OPERATOR ||	// after operator: "2 + -5"
+			tokens.get(tokens.size() - 1).type == TokenType.LPAREN ||	// after left parenthesis: sin(-30)
+			tokens.get(tokens.size() - 1).type == TokenType.COMMA)	// after a comma: max(1, -2)
+		) {	// treat as number
+			i++;	// skip past the '-' char
+			int[] pos = {i};
+			String num = extractNumber(expr, pos, true);	 // start with "-"
+			i = pos[0];	// grab all digits/decimals that follow
+			Token t = new Token(TokenType.NUMBER, num);
+			maybeInsertImplicitMultiply(tokens, t);
+			tokens.add(t);	// "-3.14" as one token
+			return i;
+		}
+		// operators, × and ÷ straight from the buttons too
+		if ("+-*/%^×÷".indexOf(c) != -1) {
+			tokens.add(new Token(TokenType.OPERATOR, c == '×' ? "*" : c == '÷' ? "/" : String.valueOf(c)));
+			i++;
+			return i;
+		}
+		// parentheses
+		if (c == '(') {
+			Token t = new Token(TokenType.LPAREN, "(");
+			maybeInsertImplicitMultiply(tokens, t);	// see below
+			tokens.add(t);
+			i++;
+			return i;
+		}
+		if (c == ')') {
+			tokens.add(new Token(TokenType.RPAREN, ")"));
+			i++;
+			return i;
+		}
+		if (c == ',') {
+			tokens.add(new Token(TokenType.COMMA, ","));
+			i++;
+			return i;
+		}
+		if (c == '!') {
+			tokens.add(new Token(TokenType.FACTORIAL, "!"));
+			i++;
+			return i;
+		}
+		if (c == '√') {	// nth root, handles both √x and √(y)x
+			tokens.add(new Token(TokenType.ROOT, "√"));
+			i++;
+			// check for nth root syntax
+			if (i < expr.length() && expr.charAt(i) == '[') {
+				i++;	// skip [
+				// allow negative index, but only when there's actually a minus sign
+				boolean negative = i < expr.length() && expr.charAt(i) == '-';
+				if (negative) i++;
+				int[] pos = {i};
+				String index = extractNumber(expr, pos, negative);
+				i = pos[0];
+				if (i >= expr.length() || expr.charAt(i) != ']')
+					throw new IllegalArgumentException("Missing ] after root index");
+				i++;	// skip ]
+				// store as "√[index]"
+				tokens.get(tokens.size() - 1).value = "√[" + index + "]";
+			}
+			return i;
+		}
+		// names: functions (sin, cos, tan, etc.), Ans, and variables
+		if (Character.isLetter(c)) {
+			int start = i;
+			// grab all letters, but "Ans" always ends a name so the buttons can put anything right after it (Anssin(30))
+			while (i < expr.length() && Character.isLetter(expr.charAt(i)) && !isAns(expr, start, i)) i++;
+			String name = expr.subSequence(start, i).toString();
+			Token t = new Token(nameType(name, expr, i), name);	// make token
+			maybeInsertImplicitMultiply(tokens, t);	// 2sin(30) -> 2 * sin(30), 2x -> 2 * x
+			tokens.add(t);
+			return i;
+		}
+		throw new IllegalArgumentException("Invalid character: " + c);
+	}
+
+	// sin, cos... the ones that are opcodes of their own, Functions can't have these names
+	static boolean isBuiltIn(String name) { return FUNCTIONS.contains(name); }
+
+	private static boolean isAns(CharSequence expr, int start, int end) {
+		return end - start == 3 && expr.charAt(start) == 'A' && expr.charAt(start + 1) == 'n' && expr.charAt(start + 2) == 's';
+	}
+
+	// known functions always are one, even without parentheses (sin30), any other name is a variable unless it's
+	// followed by "(", then it's a function we don't have and evaluating it says so
+	private static TokenType nameType(String name, CharSequence expr, int end) {
+		if (name.equals("Ans")) return TokenType.ANS;	// placeholder for whatever number the caller passes in when evaluating
+		if (FUNCTIONS.contains(name)) return TokenType.FUNCTION;
+		while (end < expr.length() && Character.isWhitespace(expr.charAt(end))) end++;
+		return end < expr.length() && expr.charAt(end) == '(' ? TokenType.FUNCTION : TokenType.VARIABLE;
+	}
+
+	// determine operator precedence (PEMDAS)
+	private static int precedence(Token t) {
+		if (t.type == TokenType.FACTORIAL) return 5;	// highest precedence
+		if (t.type == TokenType.ROOT) return 4;
+		if (t.type == TokenType.FUNCTION) return 4;
+		if (t.type != TokenType.OPERATOR) return 0;
+		return switch (t.value) {
+			case "+", "-" -> 1;
+			case "*", "/", "%" -> 2;
+			case "^" -> 3;
+			default -> 0;	// lowest
+		};
+	}
+
+	// shunting yard algorithm
+	static List<Token> toPostFix(List<Token> tokens) {
+		List<Token> output = new ArrayList<>();
+		OpStack ops = null;	// operator stack, empty
+		for (Token t : tokens) ops = shunt(t, output, ops);
+		flush(output, ops);
+		return output;
+	}
+
+	// the operator stack, immutable so holding on to one is a free snapshot of the parser (see LiveExpression),
+	// null is the empty stack
+	record OpStack(Token top, OpStack rest) {}
+
+	// one token of the shunting yard, returns the new operator stack
+	static OpStack shunt(Token t, List<Token> output, OpStack ops) {
+		switch (t.type) {
+			case NUMBER, ANS, VARIABLE -> output.add(t);
+			case OPERATOR -> {
+				while (
+					ops != null &&	// stack is not empty
+					(ops.top.type == TokenType.OPERATOR || ops.top.type == TokenType.FUNCTION) &&	// top of stack is an operator or function
+					precedence(ops.top) >= precedence(t)	// top has equal or higher precedence
+				) {
+					output.add(ops.top);	// pop from ops and add to output
+					ops = ops.rest;
+				}
+				ops = new OpStack(t, ops);
+			}
+			case LPAREN -> ops = new OpStack(t, ops);
+			case RPAREN -> {
+				// pop all operators until matching "("
+				while (ops != null && ops.top.type != TokenType.LPAREN) {
+					output.add(ops.top);
+					ops = ops.rest;
+				}
+				if (ops == null) throw new IllegalArgumentException("Mismatched parentheses");
+				int arguments = ops.top.value.length();	// see COMMA
+				ops = ops.rest;	// remove "("
+				// handle functions/! that were before "("
+				if (ops != null && ops.top.type == TokenType.FUNCTION) {	// sin(30)
+					Token f = ops.top;
+					if (arguments > 1) {	// a copy, LiveExpression's snapshots still have the one on the stack
+						f = new Token(TokenType.FUNCTION, f.value);
+						f.arguments = arguments;
+					}
+					output.add(f);
+					ops = ops.rest;
+				} else if (arguments > 1) {
+					throw new IllegalArgumentException("Misplaced comma");	// (1, 2)
+				}
+				if (ops != null && ops.top.type == TokenType.FACTORIAL) {	// (2 + 1)!
+					output.add(ops.top);
+					ops = ops.rest;
+				}
+			}
+			case FACTORIAL -> {
+				// factorial is postfix and highest precedence
+				// only pop other factorials
+				while (ops != null && ops.top.type == TokenType.FACTORIAL) {
+					output.add(ops.top);
+					ops = ops.rest;
+				}
+				ops = new OpStack(t, ops);
+			}
+			case FUNCTION -> ops = new OpStack(t, ops);
+			case ROOT -> ops = new OpStack(t, ops);
+			case COMMA -> {
+				// the argument in front of it is done
+				while (ops != null && ops.top.type != TokenType.LPAREN) {
+					output.add(ops.top);
+					ops = ops.rest;
+				}
+				if (ops == null) throw new IllegalArgumentException("Misplaced comma");
+				// the "(" counts the arguments: "(" is one, "(," two and so on, a new one since the stack is immutable
+				ops = new OpStack(new Token(TokenType.LPAREN, ops.top.value + ","), ops.rest);
+			}
+		}
+		return ops;
+	}
+
+	// flush remaining operators to output at end of expression and catches unmatched "("s
+	static void flush(List<Token> output, OpStack ops) {
+		for (; ops != null; ops = ops.rest) {
+			if (ops.top.type == TokenType.LPAREN) throw new IllegalArgumentException("Mismatched parentheses");
+			output.add(ops.top);
+		}
+	}
+
+	// automatically inserts hidden multiplication for common math notation patterns
+	private static void maybeInsertImplicitMultiply(List<Token> tokens, Token next) {
+		if (tokens.isEmpty()) return;	// nothing, skip
+		Token prev = tokens.get(tokens.size() - 1);	// look at last token
+		boolean implicit =
+			(prev.type == TokenType.NUMBER || prev.type == TokenType.ANS || prev.type == TokenType.VARIABLE || prev.type == TokenType.RPAREN || prev.type == TokenType.FACTORIAL) &&	// previous: number/Ans/variable/parenthesis/factorial
+			(next.type == TokenType.LPAREN || next.type == TokenType.NUMBER || next.type == TokenType.FUNCTION || next.type == TokenType.ANS || next.type == TokenType.VARIABLE);	// next parenthesis/number/function/Ans/variable
+		if (implicit) tokens.add(new Token(TokenType.OPERATOR, "*"));	// insert *
+	}
+}
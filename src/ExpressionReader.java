@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+// the text ExpressionEngine's streaming compile() tokenizes, either all of it already in memory (a String, a CharBuffer,
+// one decoded from a mapped file...) or read from a Reader a window at a time
+// positions are from the start of the whole expression, length() is how much of it has been read so far, so the
+// tokenizer works on it like on any other CharSequence. what's in front of release() is forgotten the next time the
+// window moves, a 50 MB expression never needs more than the token being read (and the window grows to fit a longer
+// one, a 100000 digit number is 100000 chars wherever it is)
+final class ExpressionReader implements CharSequence {
+	private static final int WINDOW = 1 << 16;
+
+	private final CharSequence text;	// everything, null when reading
+	private final Reader in;
+	private char[] window;
+	private int base;	// position of window[0]
+	private int end;	// position after the last char read
+	private int released;	// nothing before this is needed anymore
+	private boolean eof;
+
+	ExpressionReader(CharSequence text) {
+		this.text = text;
+		this.in = null;
+		this.end = text.length();
+		this.eof = true;
+	}
+
+	ExpressionReader(Reader in) {
+		this.text = null;
+		this.in = in;
+		this.window = new char[WINDOW];
+	}
+
+	// reads some more, false at the end of the input
+	boolean fill() {
+		if (eof) return false;
+		int keep = released - base;
+		if (end - released > window.length / 2) {
+			// mostly one long token, make room instead of moving it along
+			char[] bigger = new char[window.length * 2];
+			System.arraycopy(window, keep, bigger, 0, end - released);
+			window = bigger;
+		} else {
+			System.arraycopy(window, keep, window, 0, end - released);
+		}
+		base = released;
+		try {
+			int n = in.read(window, end - base, window.length - (end - base));
+			if (n < 0) eof = true;
+			else end += n;
+			return n >= 0;
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	// the tokenizer is past `position`, it can go
+	void release(int position) { released = position; }
+
+	@Override
+	public int length() { return end; }
+
+	@Override
+	public char charAt(int index) { return text != null ? text.charAt(index) : window[index - base]; }
+
+	// a copy, the window moves on
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return text != null ? text.subSequence(start, end).toString() : new String(window, start - base, end - start);
+	}
+
+	@Override
+	public String toString() { return text != null ? text.toString() : new String(window, released - base, end - released); }
+}
@@ -0,0 +1,139 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// everything about n!
+// multiplying 2 * 3 * ... * n one at a time is quadratic in the size of the result, so instead:
+//	- pull out all the factors of 2 and add them back at the end with one shift
+//	- multiply the odd numbers as a balanced product tree, so BigInteger gets to use Karatsuba/Toom-Cook on
+//	  similarly sized halves instead of a huge number times a tiny one
+//	- big subtrees get split across the fork-join pool
+// https://www.luschny.de/math/factorial/FastFactorialFunctions.htm (the "split recursive" one)
+public final class Factorials {
+	private Factorials() {}
+
+	// anything up to this comes straight out of a table
+	private static final int TABLE_SIZE = 256;
+	private static final BigInteger[] TABLE = new BigInteger[TABLE_SIZE + 1];
+	// product ranges with more odd numbers than this get forked
+	private static final int PARALLEL_THRESHOLD = 2048;
+	// results with more bits than this use BigInteger.parallelMultiply() for the last few (huge) multiplications
+	private static final int PARALLEL_MULTIPLY_BITS = 1 << 18;
+	// digits for non-integer factorials, same as what division gets in the evaluator
+	private static final MathContext GAMMA_CONTEXT = new MathContext(50, RoundingMode.HALF_UP);
+	// reject n above this right away instead of locking up the calling thread
+	// -Djavacalc.factorial.max=... or setMaxN()
+	private static volatile int maxN = Integer.getInteger("javacalc.factorial.max", 1_000_000);
+
+	static {
+		TABLE[0] = BigInteger.ONE;
+		for (int i = 1; i <= TABLE_SIZE; i++) TABLE[i] = TABLE[i - 1].multiply(BigInteger.valueOf(i));
+	}
+
+	public static int maxN() { return maxN; }
+
+	public static void setMaxN(int max) {
+		if (max < TABLE_SIZE) throw new IllegalArgumentException("Factorial limit must be at least " + TABLE_SIZE);
+		maxN = max;
+	}
+
+	// handles factorials (!) for the evaluator, non-integers get 50 digits
+	static BigDecimal factorial(BigDecimal n) { return factorial(n, GAMMA_CONTEXT); }
+
+	// same, with the precision for non-integers picked by the caller (integers are always exact)
+	static BigDecimal factorial(BigDecimal n, MathContext mc) {
+		if (n.compareTo(BigDecimal.valueOf(maxN)) > 0)
+			throw new ArithmeticException("Factorial too large (limit is " + maxN + "!)");
+		// integer, also when it's written like 3.0 or comes out of a division as 3.000...
+		if (n.signum() == 0 || n.stripTrailingZeros().scale() <= 0) {
+			if (n.signum() < 0)
+				throw new ArithmeticException("Factorial undefined for negative numbers");
+			return new BigDecimal(factorial(n.intValue()));
+		}
+		// n! = Γ(n + 1) for decimals, negative ones included
+		return Gamma.gamma(n.add(BigDecimal.ONE), mc);
+	}
+
+	// n! for a non-negative int
+	public static BigInteger factorial(int n) {
+		if (n < 0) throw new ArithmeticException("Factorial undefined for negative numbers");
+		if (n <= TABLE_SIZE) return TABLE[n];
+		if (n > maxN) throw new ArithmeticException("Factorial too large (limit is " + maxN + "!)");
+
+		// n! = 2^(n - bitCount(n)) * oddFactorial(n) * oddFactorial(n/2) * oddFactorial(n/4) * ...
+		// going from the smallest n/2^k up, `p` grows into the next odd factorial by multiplying in only the new odd
+		// numbers, and `r` collects them all
+		BigInteger p = BigInteger.ONE, r = BigInteger.ONE;
+		for (int k = 31 - Integer.numberOfLeadingZeros(n); k >= 0; k--) {
+			Budget.step();
+			BigInteger odd = oddProduct(n >> (k + 1), n >> k);
+			if (!odd.equals(BigInteger.ONE)) p = multiply(p, odd);
+			r = multiply(r, p);
+		}
+		return r.shiftLeft(n - Integer.bitCount(n));
+	}
+
+	// a * b, on every core once they're big, BigMath.pow() squares with it too
+	static BigInteger multiply(BigInteger a, BigInteger b) {
+		if (a.bitLength() + b.bitLength() > PARALLEL_MULTIPLY_BITS) return a.parallelMultiply(b);
+		return a.multiply(b);
+	}
+
+	// product of the odd numbers in (lo, hi]
+	static BigInteger oddProduct(int lo, int hi) {
+		int first = lo + 1 | 1, last = (hi & 1) == 1 ? hi : hi - 1;
+		if (first > last) return BigInteger.ONE;
+		int count = (last - first) / 2 + 1;
+		// the pool's threads don't have the caller's Budget, so it's passed along
+		Budget budget = Budget.current();
+		if (count > PARALLEL_THRESHOLD) return ForkJoinPool.commonPool().invoke(new OddProduct(first, last, budget));
+		return oddProductTree(first, last, budget);
+	}
+
+	// first and last are both odd
+	private static BigInteger oddProductTree(int first, int last, Budget budget) {
+		int count = (last - first) / 2 + 1;
+		if (count <= 16) {
+			Budget.step(budget);
+			// small enough to multiply straight through, longs hold a few of these before overflowing
+			BigInteger res = BigInteger.ONE;
+			long acc = 1;
+			for (long i = first; i <= last; i += 2) {
+				if (acc > Long.MAX_VALUE / i) {
+					res = res.multiply(BigInteger.valueOf(acc));
+					acc = 1;
+				}
+				acc *= i;
+			}
+			return res.multiply(BigInteger.valueOf(acc));
+		}
+		int mid = first + (count / 2) * 2;	// first odd number of the upper half
+		return oddProductTree(first, mid - 2, budget).multiply(oddProductTree(mid, last, budget));
+	}
+
+	@SuppressWarnings("serial")	// a fork/join task is never serialized
+	private static final class OddProduct extends RecursiveTask<BigInteger> {
+		private final int first, last;
+		private final Budget budget;
+
+		OddProduct(int first, int last, Budget budget) {
+			this.first = first;
+			this.last = last;
+			this.budget = budget;
+		}
+
+		@Override
+		protected BigInteger compute() {
+			int count = (last - first) / 2 + 1;
+			if (count <= PARALLEL_THRESHOLD) return oddProductTree(first, last, budget);
+			int mid = first + (count / 2) * 2;
+			OddProduct upper = new OddProduct(mid, last, budget);
+			upper.fork();
+			BigInteger lower = new OddProduct(first, mid - 2, budget).compute();
+			return multiply(lower, upper.join());
+		}
+	}
+}
@@ -0,0 +1,162 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+// an exact rational number, numerator / denominator, for EvaluationMode.RATIONAL: 1/3 * 3 is 1, not 0.999...
+// fractions aren't kept in lowest terms after every operation, a gcd costs more than the multiplications it saves
+// while the numbers are small. they're reduced once they've doubled in size since the last time (or pass
+// REDUCE_BITS), which keeps a long chain from growing without end, and whenever a reduced form is needed (equality,
+// printing, numerator()...)
+// turned into a decimal only at the end, see toBigDecimal()
+public final class Fraction implements Comparable<Fraction> {
+	public static final Fraction ZERO = new Fraction(BigInteger.ZERO, BigInteger.ONE, 0);
+	public static final Fraction ONE = new Fraction(BigInteger.ONE, BigInteger.ONE, 0);
+
+	// numbers smaller than this are never worth a gcd
+	private static final int REDUCE_BITS = 128;
+
+	private final BigInteger num, den;	// den > 0
+	// how big this was when it (or what it was made from) was last reduced
+	private final int reducedBits;
+
+	private Fraction(BigInteger num, BigInteger den, int reducedBits) {
+		this.num = num;
+		this.den = den;
+		this.reducedBits = reducedBits;
+	}
+
+	public static Fraction of(BigInteger numerator, BigInteger denominator) {
+		if (denominator.signum() == 0) throw new ArithmeticException("Division by zero");
+		if (denominator.signum() < 0) {
+			numerator = numerator.negate();
+			denominator = denominator.negate();
+		}
+		return reduce(numerator, denominator);
+	}
+
+	public static Fraction valueOf(long n) { return new Fraction(BigInteger.valueOf(n), BigInteger.ONE, 0); }
+
+	// exactly the decimal, 0.75 is 75/100 (not reduced yet)
+	public static Fraction valueOf(BigDecimal n) {
+		if (n.scale() <= 0) return new Fraction(n.toBigInteger(), BigInteger.ONE, 0);
+		return new Fraction(n.unscaledValue(), BigInteger.TEN.pow(n.scale()), 0);
+	}
+
+	// keeps it as it is unless it grew enough since the last gcd
+	private static Fraction of(BigInteger num, BigInteger den, int reducedBits) {
+		int bits = Math.max(num.bitLength(), den.bitLength());
+		if (bits > REDUCE_BITS && bits > 2 * reducedBits) return reduce(num, den);
+		return new Fraction(num, den, reducedBits);
+	}
+
+	private static Fraction reduce(BigInteger num, BigInteger den) {
+		BigInteger gcd = num.gcd(den);
+		if (gcd.signum() != 0 && !gcd.equals(BigInteger.ONE)) {
+			num = num.divide(gcd);
+			den = den.divide(gcd);
+		}
+		return lowest(num, den);
+	}
+
+	// lowest terms
+	public Fraction reduced() { return den.equals(BigInteger.ONE) ? this : reduce(num, den); }
+
+	public BigInteger numerator() { return reduced().num; }
+	public BigInteger denominator() { return reduced().den; }
+
+	public int signum() { return num.signum(); }
+
+	public boolean isInteger() { return den.equals(BigInteger.ONE) || num.mod(den).signum() == 0; }
+
+	public Fraction negate() { return new Fraction(num.negate(), den, reducedBits); }
+
+	public Fraction add(Fraction o) {
+		int bits = Math.max(reducedBits, o.reducedBits);
+		// sums of decimals with the same number of places, the usual case, don't need a common denominator
+		if (den.equals(o.den)) return of(num.add(o.num), den, bits);
+		return of(num.multiply(o.den).add(o.num.multiply(den)), den.multiply(o.den), bits);
+	}
+
+	public Fraction subtract(Fraction o) { return add(o.negate()); }
+
+	public Fraction multiply(Fraction o) {
+		return of(num.multiply(o.num), den.multiply(o.den), Math.max(reducedBits, o.reducedBits));
+	}
+
+	public Fraction divide(Fraction o) {
+		if (o.num.signum() == 0) throw new ArithmeticException("Division by zero");
+		BigInteger n = num.multiply(o.den), d = den.multiply(o.num);
+		if (d.signum() < 0) {
+			n = n.negate();
+			d = d.negate();
+		}
+		return of(n, d, Math.max(reducedBits, o.reducedBits));
+	}
+
+	// what BigDecimal.remainder() gives, the sign of this: this - o * (this / o rounded toward zero)
+	public Fraction remainder(Fraction o) {
+		if (o.num.signum() == 0) throw new ArithmeticException("Division by zero");
+		BigInteger q = num.multiply(o.den).divide(den.multiply(o.num));
+		return subtract(o.multiply(new Fraction(q, BigInteger.ONE, 0)));
+	}
+
+	// this^n, negative n too
+	public Fraction pow(int n) {
+		Fraction r = reduced();
+		if (n >= 0) return lowest(BigMath.pow(r.num, n), BigMath.pow(r.den, n));
+		if (num.signum() == 0) throw new ArithmeticException("Division by zero");
+		BigInteger a = BigMath.pow(r.den, -(long) n), b = BigMath.pow(r.num, -(long) n);
+		return b.signum() < 0 ? lowest(a.negate(), b.negate()) : lowest(a, b);
+	}
+
+	// the exact square root when both parts are perfect squares (9/4 -> 3/2), otherwise null
+	public Fraction sqrtExact() {
+		if (num.signum() < 0) return null;
+		Fraction r = reduced();
+		BigInteger n = r.num.sqrt(), d = r.den.sqrt();
+		if (!n.multiply(n).equals(r.num) || !d.multiply(d).equals(r.den)) return null;
+		return lowest(n, d);
+	}
+
+	// for parts that are known to have no common factor (powers and roots of a reduced fraction)
+	private static Fraction lowest(BigInteger num, BigInteger den) {
+		return new Fraction(num, den, Math.max(num.bitLength(), den.bitLength()));
+	}
+
+	// rounded to `scale` decimal places (exact when it fits), integers stay as they are
+	public BigDecimal toBigDecimal(int scale, RoundingMode rounding) {
+		Fraction r = reduced();
+		if (r.den.equals(BigInteger.ONE)) return new BigDecimal(r.num);
+		return new BigDecimal(r.num).divide(new BigDecimal(r.den), scale, rounding);
+	}
+
+	// rounded to `mc`'s significant digits, integers stay as they are
+	public BigDecimal toBigDecimal(MathContext mc) {
+		Fraction r = reduced();
+		if (r.den.equals(BigInteger.ONE)) return new BigDecimal(r.num);
+		return new BigDecimal(r.num).divide(new BigDecimal(r.den), mc);
+	}
+
+	// what the calculator shows: the same 50 places a plain division gets
+	public BigDecimal toBigDecimal() { return toBigDecimal(50, RoundingMode.HALF_UP); }
+
+	@Override
+	public int compareTo(Fraction o) { return num.multiply(o.den).compareTo(o.num.multiply(den)); }
+
+	@Override
+	public boolean equals(Object o) { return o instanceof Fraction f && compareTo(f) == 0; }
+
+	@Override
+	public int hashCode() {
+		Fraction r = reduced();
+		return 31 * r.num.hashCode() + r.den.hashCode();
+	}
+
+	// "7/2", "-1/3", "4"
+	@Override
+	public String toString() {
+		Fraction r = reduced();
+		return r.den.equals(BigInteger.ONE) ? r.num.toString() : r.num + "/" + r.den;
+	}
+}
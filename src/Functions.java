@@ -0,0 +1,182 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// the functions an expression can call by name besides sin, cos and the rest: formulas (f(x) = x^2 + 3x) and functions
+// written in Java. a formula is compiled once, when it's defined
+// expressions are compiled against a table (see ExpressionEngine.compile(String, Functions)) and every call is
+// resolved right then: a small formula's body goes into the caller's program with the arguments where its parameters
+// were, so the Optimizer works on it like on anything else, the rest are called directly. nothing is looked up by
+// name when evaluating
+// LIBRARY has the built in ones (min, max, gcd, round) and the common formula templates (hypot, avg, percent,
+// compound), every other table looks there for what it doesn't have itself. a formula only sees what was defined
+// before it, so nothing is recursive, and redefining a function doesn't change expressions compiled with the old one
+// (ExpressionCache compiles them again). a name in a formula that isn't one of its parameters is a variable of the
+// expression calling it
+//	Functions mine = new Functions();
+//	mine.define("f(x) = x^2 + 3x");
+//	ExpressionEngine.compile("f(2) + hypot(3, 4)", mine).evaluate(BigDecimal.ZERO);	// 15
+// defining takes a lock, looking up doesn't (the table is replaced, never changed), so threads can go on compiling
+// against a table while another one defines something
+public final class Functions {
+	// a function written in Java, `mc` is the evaluation's (null for the calculator's usual precision)
+	public interface Native {
+		BigDecimal apply(BigDecimal[] args, MathContext mc);
+	}
+
+	// "name(a, b)", letters only like the tokenizer's names, and " = body" after it for a formula
+	private static final String HEAD = "\\s*(\\p{L}+)\\s*\\(\\s*(\\p{L}+(?:\\s*,\\s*\\p{L}+)*)\\s*\\)\\s*";
+	private static final Pattern SIGNATURE = Pattern.compile(HEAD), DEFINITION = Pattern.compile(HEAD + "=(.*)", Pattern.DOTALL);
+
+	// after the patterns, library() uses them
+	public static final Functions LIBRARY = library();
+
+	private final Functions parent;	// null for LIBRARY
+	private volatile Map<String, Definition> own = Map.of();
+	// goes up with every change, see version()
+	private volatile long changes;
+
+	// a formula (body) or a Native (impl)
+	static final class Definition {
+		final String name;
+		final int arity;
+		final String text;	// "f(x) = x^2 + 3x", just "max(a, b)" for a Native
+		final CompiledExpression body;
+		final Native impl;
+		// which parameter each of the body's variables() is, -1 for one of the caller's
+		private final int[] parameters;
+
+		private Definition(String name, List<String> parameters, String text, CompiledExpression body, Native impl) {
+			this.name = name;
+			this.arity = parameters.size();
+			this.text = text;
+			this.body = body;
+			this.impl = impl;
+			List<String> variables = body == null ? List.of() : body.variables();
+			this.parameters = new int[variables.size()];
+			for (int k = 0; k < variables.size(); k++) this.parameters[k] = parameters.indexOf(variables.get(k));
+		}
+
+		int parameter(int variable) { return parameters[variable]; }
+
+		@Override
+		public String toString() { return text; }
+	}
+
+	// an empty table on top of LIBRARY
+	public Functions() { this(LIBRARY); }
+
+	// an empty table that looks in `parent` for what it doesn't have, null for none
+	public Functions(Functions parent) { this.parent = parent; }
+
+	// "f(x) = x^2 + 3x", "area(w, h) = w * h"..., replaces a function of this table with the same name
+	// the body is compiled right away against this table, so it can call whatever's been defined so far
+	// IllegalArgumentException when it isn't a definition, a name is taken (sin, Ans...), or the body doesn't compile or
+	// calls a function nobody has
+	public synchronized Functions define(String definition) {
+		Matcher m = DEFINITION.matcher(definition);
+		if (!m.matches()) throw new IllegalArgumentException("Not a definition: " + definition);
+		List<String> parameters = parameters(m);
+		CompiledExpression body = ExpressionEngine.compile(m.group(3), this);
+		body.checkRunnable();
+		put(new Definition(m.group(1), parameters, definition.strip(), body, null));
+		return this;
+	}
+
+	// a function written in Java, `signature` is its name and parameters, "round(x, places)", impl gets the arguments
+	// in that order
+	public synchronized Functions define(String signature, Native impl) {
+		Matcher m = SIGNATURE.matcher(signature);
+		if (!m.matches()) throw new IllegalArgumentException("Not a signature: " + signature);
+		List<String> parameters = parameters(m);
+		put(new Definition(m.group(1), parameters, m.group(1) + "(" + String.join(", ", parameters) + ")", null, impl));
+		return this;
+	}
+
+	// the parameters of a definition or a signature, once they've been checked along with the name
+	private static List<String> parameters(Matcher m) {
+		List<String> parameters = List.of(m.group(2).split("\\s*,\\s*"));
+		checkName(m.group(1));
+		for (int i = 0; i < parameters.size(); i++) {
+			checkName(parameters.get(i));
+			if (parameters.indexOf(parameters.get(i)) != i) throw new IllegalArgumentException("Parameter " + parameters.get(i) + " twice in " + m.group(1));
+		}
+		return parameters;
+	}
+
+	// false if this table doesn't have it (LIBRARY's can't be removed from another table)
+	public synchronized boolean remove(String name) {
+		if (!own.containsKey(name)) return false;
+		Map<String, Definition> changed = new HashMap<>(own);
+		changed.remove(name);
+		own = changed;
+		changes++;
+		return true;
+	}
+
+	private void put(Definition d) {
+		Map<String, Definition> changed = new HashMap<>(own);
+		changed.put(d.name, d);
+		own = changed;
+		changes++;
+	}
+
+	// the tokenizer has to read it as a name of its own: letters, not Ans (see ExpressionEngine.nextToken()) and not a
+	// function of its own
+	private static void checkName(String name) {
+		if (name.isEmpty() || !name.chars().allMatch(Character::isLetter) || name.startsWith("Ans") || ExpressionEngine.isBuiltIn(name))
+			throw new IllegalArgumentException("Not a function name: " + name);
+	}
+
+	// this table's, otherwise the parent's, null when nobody has it
+	Definition get(String name) {
+		Definition d = own.get(name);
+		return d != null || parent == null ? d : parent.get(name);
+	}
+
+	public boolean contains(String name) { return get(name) != null; }
+
+	// everything that can be called, this table's and the parents', by name: "f(x) = x^2 + 3x", "max(a, b)"...
+	public List<String> definitions() {
+		Map<String, String> all = new TreeMap<>();
+		for (Functions f = this; f != null; f = f.parent)
+			for (Definition d : f.own.values()) all.putIfAbsent(d.name, d.text);
+		return List.copyOf(all.values());
+	}
+
+	// different whenever something this table sees has changed, for ExpressionCache's keys
+	long version() { return changes + (parent == null ? 0 : parent.version()); }
+
+	@Override
+	public String toString() { return "Functions" + definitions(); }
+
+	private static BigInteger whole(BigDecimal n, String function) {
+		try {
+			return n.toBigIntegerExact();
+		} catch (ArithmeticException ex) {
+			throw new ArithmeticException(function + " only takes whole numbers");
+		}
+	}
+
+	private static Functions library() {
+		Functions f = new Functions(null);
+		f.define("min(a, b)", (a, mc) -> a[0].min(a[1]));
+		f.define("max(a, b)", (a, mc) -> a[0].max(a[1]));
+		f.define("gcd(a, b)", (a, mc) -> new BigDecimal(whole(a[0], "gcd").gcd(whole(a[1], "gcd"))));
+		// half up like on paper
+		f.define("round(x, places)", (a, mc) -> a[0].setScale(whole(a[1], "round").intValueExact(), RoundingMode.HALF_UP));
+		// formula templates
+		f.define("hypot(a, b) = √(a^2 + b^2)");
+		f.define("avg(a, b) = (a + b) / 2");
+		f.define("percent(p, x) = x * p / 100");
+		f.define("compound(p, r, n) = p * (1 + r)^n");
+		return f;
+	}
+}
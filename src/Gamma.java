@@ -0,0 +1,105 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Γ(x) and ln|Γ(x)| at any precision, x! is Γ(x + 1)
+// uses Spouge's approximation, its coefficients only depend on the precision so they're computed once per precision
+// and kept around, evaluating after that is one sum, one ln and one exp
+// https://en.wikipedia.org/wiki/Spouge%27s_approximation
+// negative non-integers go through the reflection formula Γ(x)Γ(1 - x) = π / sin(πx)
+public final class Gamma {
+	private Gamma() {}
+
+	private static final BigDecimal HALF = new BigDecimal("0.5");
+	// log10(2π), Spouge's relative error is below (2π)^-(a + 1/2), so every unit of `a` is worth about this many digits
+	private static final double DIGITS_PER_TERM = Math.log10(2 * Math.PI);
+
+	// precision -> Spouge coefficients
+	private static final ConcurrentHashMap<Integer, Spouge> COEFFICIENTS = new ConcurrentHashMap<>();
+
+	private record Spouge(int a, BigDecimal[] c, MathContext mc) {}
+
+	public static BigDecimal gamma(BigDecimal x, MathContext mc) {
+		checkPole(x);
+		// positive integers are just a factorial, no need to approximate
+		if (x.signum() > 0 && x.stripTrailingZeros().scale() <= 0 && x.compareTo(BigDecimal.valueOf(Factorials.maxN())) <= 0)
+			return new BigDecimal(Factorials.factorial(x.intValue() - 1)).round(mc);
+		if (x.compareTo(HALF) < 0) {
+			// Γ(x) = π / (sin(πx) Γ(1 - x))
+			MathContext wmc = BigMath.working(mc, 0);
+			BigDecimal pi = BigMath.pi(wmc);
+			BigDecimal sin = BigMath.sin(pi.multiply(x, wmc), wmc);
+			return pi.divide(sin.multiply(gamma(BigDecimal.ONE.subtract(x), wmc), wmc), mc);
+		}
+		Spouge s = coefficients(mc);
+		BigDecimal z = x.subtract(BigDecimal.ONE);
+		// Γ(z + 1) = (z + a)^(z + 1/2) e^-(z + a) * sum, the first two are folded into one exp() so neither huge nor tiny
+		// intermediate values get built
+		return BigMath.exp(powerTerm(z, s, mc), BigMath.working(mc, 0)).multiply(series(z, s), mc);
+	}
+
+	// ln|Γ(x)|, for big x where Γ(x) itself has more digits than anyone wants to see
+	public static BigDecimal logGamma(BigDecimal x, MathContext mc) {
+		checkPole(x);
+		if (x.compareTo(HALF) < 0) {
+			// ln|Γ(x)| = ln(π) - ln|sin(πx)| - ln|Γ(1 - x)|
+			MathContext wmc = BigMath.working(mc, 0);
+			BigDecimal pi = BigMath.pi(wmc);
+			BigDecimal sin = BigMath.sin(pi.multiply(x, wmc), wmc).abs();
+			return BigMath.ln(pi, wmc).subtract(BigMath.ln(sin, wmc), wmc).subtract(logGamma(BigDecimal.ONE.subtract(x), wmc), mc);
+		}
+		Spouge s = coefficients(mc);
+		BigDecimal z = x.subtract(BigDecimal.ONE);
+		MathContext wmc = BigMath.working(mc, 0);
+		return powerTerm(z, s, mc).add(BigMath.ln(series(z, s), wmc), mc);
+	}
+
+	private static void checkPole(BigDecimal x) {
+		if (x.signum() <= 0 && (x.signum() == 0 || x.stripTrailingZeros().scale() <= 0))
+			throw new ArithmeticException("Gamma undefined for zero and negative integers");
+	}
+
+	// (z + 1/2) ln(z + a) - (z + a), with enough extra digits that its absolute error is small even when it's huge
+	private static BigDecimal powerTerm(BigDecimal z, Spouge s, MathContext mc) {
+		BigDecimal za = z.add(BigDecimal.valueOf(s.a()));
+		int magnitude = Math.max(0, za.precision() - za.scale()) + 1;	// digits of z ln(z) before the decimal point
+		MathContext wmc = BigMath.working(mc, 2 * magnitude);
+		return z.add(HALF).multiply(BigMath.ln(za, wmc), wmc).subtract(za, wmc);
+	}
+
+	// c0 + c1/(z + 1) + ... + c(a-1)/(z + a - 1)
+	private static BigDecimal series(BigDecimal z, Spouge s) {
+		BigDecimal sum = s.c()[0];
+		for (int k = 1; k < s.a(); k++) {
+			Budget.step();
+			sum = sum.add(s.c()[k].divide(z.add(BigDecimal.valueOf(k)), s.mc()), s.mc());
+		}
+		return sum;
+	}
+
+	private static Spouge coefficients(MathContext mc) {
+		return COEFFICIENTS.computeIfAbsent(mc.getPrecision(), Gamma::computeCoefficients);
+	}
+
+	// c0 = sqrt(2π), ck = (-1)^(k-1) / (k-1)! * (a - k)^(k - 1/2) * e^(a - k)
+	// the terms alternate and are huge compared to the sum, so they need about as many extra digits as the result has
+	private static Spouge computeCoefficients(int digits) {
+		int a = (int) Math.ceil((digits + 3) / DIGITS_PER_TERM) + 1;
+		MathContext mc = new MathContext(digits + (int) Math.ceil(a * DIGITS_PER_TERM) + 15, RoundingMode.HALF_EVEN);
+		BigDecimal[] c = new BigDecimal[a];
+		c[0] = BigMath.sqrt(BigMath.pi(mc).multiply(BigDecimal.valueOf(2), mc), mc);
+		BigDecimal e = BigMath.exp(BigDecimal.ONE, mc);
+		// walk k downwards so e^(a - k) builds up one multiplication at a time
+		BigDecimal ePower = e;	// e^(a - k) for k = a - 1
+		for (int k = a - 1; k >= 1; k--) {
+			Budget.step();
+			BigDecimal base = BigDecimal.valueOf(a - k);
+			BigDecimal power = base.pow(k - 1, mc).multiply(BigMath.sqrt(base, mc), mc);	// (a - k)^(k - 1/2)
+			BigDecimal ck = power.multiply(ePower, mc).divide(new BigDecimal(Factorials.factorial(k - 1)), mc);
+			c[k] = (k & 1) == 1 ? ck : ck.negate();
+			ePower = ePower.multiply(e, mc);
+		}
+		return new Spouge(a, c, mc);
+	}
+}
@@ -0,0 +1,271 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// every "=" that went through, kept on disk for good: history.log is an append-only log of binary records, memory
+// mapped 64 MB at a time, history.idx is where every 128th record starts
+// opening it reads the index (a few hundred KB for millions of entries) and walks the records after its last entry,
+// nothing else, an entry is only decoded when it's asked for and searching runs over the mapped bytes
+// a record is
+//	int size	the bytes after this int, 0 where the log ends, -1 for "the rest of this segment is empty"
+//	long time	System.currentTimeMillis() when it finished
+//	long nanos	how long it took
+//	int length	of the expression in bytes
+//	expression and result, UTF-8
+// padded to a multiple of 4, records never cross a segment. the size is written last, so a record that was cut off
+// half way (the machine went down) has size 0 and just isn't there, the next one goes in its place
+// the mapped pages get to disk without the JVM's help, even if it's killed, close() only makes it happen sooner
+// appends, reads and searches can come from any thread, but only one History at a time has a log open, the next one
+// gets an IOException until it's closed
+public final class History implements Closeable {
+	public record Entry(String expression, String result, long time, long nanos) {}
+
+	private static final long MAGIC = 0x4A4348495354_0001L;	// "JCHIST" and the version
+	private static final int HEADER = 16;	// magic, when the log was made (the index has to say the same)
+	private static final int SEGMENT = 1 << 26;
+	private static final int STRIDE = 128;	// records per index entry
+	private static final int MAX_CHARS = 1 << 18;	// a million digit result is stored cut short
+	private static final int END = 0, SKIP = -1;
+
+	private final FileChannel log, idx;
+	private volatile MappedByteBuffer[] segments;
+	private long created;
+	private long[] index = new long[64];
+	private int indexed;
+	// only touched under the lock, readers copy what they need and leave
+	private int count;
+	private long end;	// where the next record goes
+	private final LruCache<Integer, Entry> decoded = new LruCache<>(1024);
+
+	private History(Path logFile, Path idxFile) throws IOException {
+		log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		idx = FileChannel.open(idxFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try {
+			// count and end are this instance's, a second calculator on the same log would write over its records, so
+			// only one gets it (the lock goes with the channel in close())
+			FileLock lock;
+			try {
+				lock = log.tryLock();
+			} catch (OverlappingFileLockException ex) {
+				lock = null;	// this JVM has it open already
+			}
+			if (lock == null) throw new IOException(logFile + " is in use by another calculator");
+			int n = (int) Math.max(1, (log.size() + SEGMENT - 1) / SEGMENT);
+			MappedByteBuffer[] mapped = new MappedByteBuffer[n];
+			for (int i = 0; i < n; i++) mapped[i] = log.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT, SEGMENT);
+			segments = mapped;
+			if (mapped[0].getLong(0) == 0) mapped[0].putLong(0, MAGIC).putLong(8, System.currentTimeMillis());
+			else if (mapped[0].getLong(0) != MAGIC) throw new IOException(logFile + " is not a history log");
+			created = mapped[0].getLong(8);
+			readIndex();
+			scan();
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	// the history in `dir` (history.log and history.idx), made if there's none yet
+	public static History open(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		return new History(dir.resolve("history.log"), dir.resolve("history.idx"));
+	}
+
+	public synchronized int size() { return count; }
+
+	// entry `i`, 0 is the oldest one
+	public Entry get(int i) {
+		Entry e = decoded.get(i);
+		if (e != null) return e;
+		long at;
+		synchronized (this) {
+			if (i < 0 || i >= count) throw new IndexOutOfBoundsException(i);
+			at = index[i / STRIDE];
+		}
+		MappedByteBuffer[] mapped = segments;
+		for (int k = i % STRIDE; k > 0; k--) at = next(mapped, at);
+		e = read(mapped, at);
+		decoded.put(i, e);
+		return e;
+	}
+
+	// returns the new entry's number
+	public synchronized int append(String expression, String result, long time, long nanos) throws IOException {
+		byte[] expr = utf8(expression), res = utf8(result);
+		int size = 20 + expr.length + res.length;
+		int space = 4 + align(size);
+		int within = (int) (end % SEGMENT);
+		if (within + space > SEGMENT) {
+			segments[(int) (end / SEGMENT)].putInt(within, SKIP);
+			end += SEGMENT - within;
+			within = 0;
+		}
+		MappedByteBuffer seg = segment((int) (end / SEGMENT));
+		seg.putLong(within + 4, time)
+			.putLong(within + 12, nanos)
+			.putInt(within + 20, expr.length)
+			.put(within + 24, expr)
+			.put(within + 24 + expr.length, res);
+		seg.putInt(within, size);	// now it's there
+		if (count % STRIDE == 0) addIndex(end);
+		end += space;
+		return count++;
+	}
+
+	// the entries whose expression starts with `text` (`prefix`) or whose expression or result contains it, newest
+	// first. it's a pass over the mapped log comparing bytes, only the matches get decoded later, by whoever shows
+	// them. takes steps from the current Budget, so a search that's no longer wanted can be cancelled
+	public int[] search(String text, boolean prefix) {
+		byte[] q = text.getBytes(StandardCharsets.UTF_8);
+		MappedByteBuffer[] mapped;
+		int n;
+		long at;
+		synchronized (this) {
+			mapped = segments;
+			n = count;
+			at = n == 0 ? HEADER : index[0];
+		}
+		Budget budget = Budget.current();
+		int[] found = new int[16];
+		int matches = 0;
+		for (int i = 0; i < n; i++, at = next(mapped, at)) {
+			if ((i & 1023) == 0) Budget.step(budget);
+			ByteBuffer seg = mapped[(int) (at / SEGMENT)];
+			int w = (int) (at % SEGMENT), size = seg.getInt(w), length = seg.getInt(w + 20);
+			int expr = w + 24, res = expr + length, stop = w + 4 + size;
+			boolean hit = prefix
+				? length >= q.length && indexOf(seg, expr, expr + q.length, q) == expr
+				: indexOf(seg, expr, res, q) >= 0 || indexOf(seg, res, stop, q) >= 0;
+			if (!hit) continue;
+			if (matches == found.length) found = Arrays.copyOf(found, matches * 2);
+			found[matches++] = i;
+		}
+		int[] newestFirst = new int[matches];
+		for (int k = 0; k < matches; k++) newestFirst[k] = found[matches - 1 - k];
+		return newestFirst;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (segments != null) for (MappedByteBuffer seg : segments) seg.force();
+		try {
+			log.close();
+		} finally {
+			idx.close();
+		}
+	}
+
+	// where the first `q` in [from, to) starts, -1 if it isn't there
+	private static int indexOf(ByteBuffer buf, int from, int to, byte[] q) {
+		if (q.length == 0) return from;
+		byte first = q[0];
+		outer:
+		for (int i = from, last = to - q.length; i <= last; i++) {
+			if (buf.get(i) != first) continue;
+			for (int k = 1; k < q.length; k++) if (buf.get(i + k) != q[k]) continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	private static Entry read(MappedByteBuffer[] mapped, long at) {
+		ByteBuffer seg = mapped[(int) (at / SEGMENT)];
+		int w = (int) (at % SEGMENT), size = seg.getInt(w), length = seg.getInt(w + 20);
+		byte[] expr = new byte[length], res = new byte[size - 20 - length];
+		seg.get(w + 24, expr).get(w + 24 + length, res);
+		return new Entry(new String(expr, StandardCharsets.UTF_8), new String(res, StandardCharsets.UTF_8),
+			seg.getLong(w + 4), seg.getLong(w + 12));
+	}
+
+	// the record after the one at `at`
+	private static long next(MappedByteBuffer[] mapped, long at) {
+		return start(mapped, at + 4 + align(mapped[(int) (at / SEGMENT)].getInt((int) (at % SEGMENT))));
+	}
+
+	// `at` or, if its segment is done, the start of the next one
+	private static long start(MappedByteBuffer[] mapped, long at) {
+		int s = (int) (at / SEGMENT);
+		if (s < mapped.length && mapped[s].getInt((int) (at % SEGMENT)) == SKIP) return (s + 1L) * SEGMENT;
+		return at;
+	}
+
+	// the size of the record at `at`, END past the mapped part or when it doesn't make sense (damaged file)
+	private static int sizeAt(MappedByteBuffer[] mapped, long at) {
+		int s = (int) (at / SEGMENT), w = (int) (at % SEGMENT);
+		if (s >= mapped.length) return END;
+		int size = mapped[s].getInt(w);
+		if (size == SKIP) return SKIP;
+		if (size < 20 || w + 4L + size > SEGMENT || mapped[s].getInt(w + 20) > size - 20 || mapped[s].getInt(w + 20) < 0) return END;
+		return size;
+	}
+
+	private static int align(int n) { return n + 3 & ~3; }
+
+	private static byte[] utf8(String s) {
+		if (s.length() > MAX_CHARS) s = s.substring(0, MAX_CHARS) + "…";
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private MappedByteBuffer segment(int s) throws IOException {
+		MappedByteBuffer[] mapped = segments;
+		if (s < mapped.length) return mapped[s];
+		mapped = Arrays.copyOf(mapped, s + 1);
+		mapped[s] = log.map(FileChannel.MapMode.READ_WRITE, (long) s * SEGMENT, SEGMENT);
+		segments = mapped;
+		return mapped[s];
+	}
+
+	// keeps the index entries that still make sense, a stale or foreign index is dropped and rebuilt by scan()
+	private void readIndex() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(idx.size(), Integer.MAX_VALUE - 8));
+		while (buf.hasRemaining() && idx.read(buf, buf.position()) > 0) {}
+		buf.flip();
+		if (buf.limit() < HEADER || buf.getLong(0) != MAGIC || buf.getLong(8) != created) {
+			idx.truncate(0);
+			idx.write(ByteBuffer.allocate(HEADER).putLong(0, MAGIC).putLong(8, created), 0);
+			return;
+		}
+		int n = (buf.limit() - HEADER) / 8;
+		index = new long[Math.max(64, n)];
+		long previous = -1;
+		for (int k = 0; k < n; k++) {
+			long at = buf.getLong(HEADER + 8 * k);
+			if (at <= previous || sizeAt(segments, at) <= 0) break;
+			index[indexed++] = previous = at;
+		}
+	}
+
+	// counts the records from the last indexed one to the end of the log, indexing them as it goes
+	private void scan() throws IOException {
+		MappedByteBuffer[] mapped = segments;
+		int c = indexed == 0 ? 0 : (indexed - 1) * STRIDE;
+		long at = indexed == 0 ? HEADER : index[indexed - 1];
+		for (int size; (size = sizeAt(mapped, at)) != END; ) {
+			if (size == SKIP) {
+				at = (at / SEGMENT + 1) * SEGMENT;
+				continue;
+			}
+			if (c % STRIDE == 0 && c / STRIDE == indexed) addIndex(at);
+			at += 4 + align(size);
+			c++;
+		}
+		count = c;
+		end = at;
+		idx.truncate(HEADER + 8L * indexed);
+	}
+
+	private void addIndex(long at) throws IOException {
+		if (indexed == index.length) index = Arrays.copyOf(index, indexed * 2);
+		idx.write(ByteBuffer.allocate(8).putLong(0, at), HEADER + 8L * indexed);
+		index[indexed++] = at;
+	}
+}
@@ -0,0 +1,286 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// turns a postfix program into its own class, so the JIT sees straight-line code calling BigDecimal and Ops directly
+// instead of the interpreter's loop with a switch per token
+// CompiledExpression switches over once it's been evaluated `threshold` times
+// the class file is written by hand, it's tiny: no fields, no branches (so no stack map frames), one method that
+// pushes and calls, ex. Ans * 2 + x becomes
+//	aload_3 aload_1 iconst_0 aaload invokevirtual multiply aload_2 iconst_0 aaload invokevirtual add areturn
+// it's loaded as a hidden class, which gets unloaded again once nothing uses it
+// https://docs.oracle.com/javase/specs/jvms/se21/html/jvms-4.html
+final class HotCompiler {
+	private HotCompiler() {}
+
+	// what the generated classes implement, `constants` is the CompiledExpression's constant pool and `values` the
+	// variables' values
+	interface Evaluator {
+		BigDecimal evaluate(BigDecimal[] constants, BigDecimal[] values, BigDecimal ans, MathContext mc);
+	}
+
+	// evaluations before an expression gets compiled, 0 turns compiling off
+	// -Djavacalc.compile.threshold=... or setThreshold()
+	private static volatile int threshold = Integer.getInteger("javacalc.compile.threshold", 1000);
+
+	public static int threshold() { return threshold; }
+
+	public static void setThreshold(int calls) {
+		if (calls < 0) throw new IllegalArgumentException("Compile threshold can't be negative");
+		threshold = calls;
+	}
+
+	// HotSpot never JIT compiles methods with more bytecode than this (-XX:-DontCompileHugeMethods), a generated
+	// method that only ever runs in the JVM's own interpreter is slower than ours, so longer expressions stay interpreted
+	private static final int MAX_CODE = 8000;
+
+	private static final String NAME = "HotCompiler$Expression";	// the JVM appends a unique suffix
+	private static final String EVALUATOR = "HotCompiler$Evaluator";
+	private static final String OPS = "Ops";
+	private static final String BIG_DECIMAL = "java/math/BigDecimal";
+	private static final String BD = "Ljava/math/BigDecimal;", MC = "Ljava/math/MathContext;";
+	private static final String UNARY = "(" + BD + MC + ")" + BD;
+	private static final String BINARY = "(" + BD + BD + MC + ")" + BD;
+	private static final String TERNARY = "(" + BD + BD + BD + MC + ")" + BD;
+
+	private static final int VERSION = 61;	// Java 17, new enough for everything here
+	private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11;
+	private static final int ALOAD = 0x19, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, ALOAD_3 = 0x2d, AALOAD = 0x32;
+	private static final int ASTORE = 0x3a, DUP = 0x59, ARETURN = 0xb0, RETURN = 0xb1;
+	private static final int FIRST_TEMP = 5;
+	private static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+	// null when the program can't be compiled (unknown instructions, too long...), the interpreter handles those and
+	// throws whatever it throws
+	// `temps` is how many TEE/TEMP slots the program uses, they become locals after mc
+	static Evaluator compile(int[] program, int temps) {
+		if (FIRST_TEMP + temps > 256) return null;	// past what aload/astore can reach without wide
+		ConstantPool cp = new ConstantPool();
+		Bytes code = new Bytes();
+		// locals: 0 = this, 1 = constants, 2 = values, 3 = ans, 4 = mc, then the temps
+		int depth = 0, deepest = 0;
+		for (int instruction : program) {
+			int op = instruction & CompiledExpression.OPCODE_MASK, k = instruction >>> CompiledExpression.OPCODE_BITS;
+			switch (op) {
+				case CompiledExpression.PUSH -> {
+					if (!loadConstant(code, k)) return null;
+					depth++;
+				}
+				case CompiledExpression.ANS -> {
+					code.u1(ALOAD_3);
+					depth++;
+				}
+				case CompiledExpression.LOAD -> {
+					if (!loadElement(code, ALOAD_2, k)) return null;
+					depth++;
+				}
+				case CompiledExpression.TEE -> {
+					if (depth < 1) return null;
+					code.u1(DUP);
+					code.u1(ASTORE);
+					code.u1(FIRST_TEMP + k);
+				}
+				case CompiledExpression.TEMP -> {
+					code.u1(ALOAD);
+					code.u1(FIRST_TEMP + k);
+					depth++;
+				}
+				case CompiledExpression.ROOT -> {
+					if (depth < 1 || !loadConstant(code, k)) return null;
+					loadMathContext(code);
+					code.invoke(INVOKESTATIC, cp.method(OPS, "root", BINARY));
+				}
+				// a is already under b, so a.add(b) is just the call
+				case CompiledExpression.ADD, CompiledExpression.SUB, CompiledExpression.MUL -> {
+					if (depth-- < 2) return null;
+					String name = op == CompiledExpression.ADD ? "add" : op == CompiledExpression.SUB ? "subtract" : "multiply";
+					code.invoke(INVOKEVIRTUAL, cp.method(BIG_DECIMAL, name, "(" + BD + ")" + BD));
+				}
+				case CompiledExpression.MOD -> {
+					if (depth-- < 2) return null;
+					code.invoke(INVOKESTATIC, cp.method(OPS, "remainder", "(" + BD + BD + ")" + BD));
+				}
+				case CompiledExpression.DIV, CompiledExpression.POW -> {
+					if (depth-- < 2) return null;
+					loadMathContext(code);
+					code.invoke(INVOKESTATIC, cp.method(OPS, op == CompiledExpression.DIV ? "divide" : "power", BINARY));
+				}
+				case CompiledExpression.MODPOW -> {
+					if (depth < 3) return null;
+					depth -= 2;
+					loadMathContext(code);
+					code.invoke(INVOKESTATIC, cp.method(OPS, "modPow", TERNARY));
+				}
+				default -> {
+					String name = unary(op);
+					if (depth < 1 || name == null) return null;
+					loadMathContext(code);
+					code.invoke(INVOKESTATIC, cp.method(OPS, name, UNARY));
+				}
+			}
+			deepest = Math.max(deepest, depth);
+			if (code.size() > MAX_CODE) return null;
+		}
+		if (depth != 1) return null;
+		code.u1(ARETURN);
+
+		Bytes cls = new Bytes();
+		int thisClass = cp.classRef(NAME), superClass = cp.classRef("java/lang/Object"), evaluator = cp.classRef(EVALUATOR);
+		int objectInit = cp.method("java/lang/Object", "<init>", "()V");
+		int init = cp.utf8("<init>"), initType = cp.utf8("()V");
+		int evaluate = cp.utf8("evaluate"), evaluateType = cp.utf8("([" + BD + "[" + BD + BD + MC + ")" + BD);
+		int codeName = cp.utf8("Code");
+
+		cls.u4(0xCAFEBABE);
+		cls.u2(0);
+		cls.u2(VERSION);
+		cls.u2(cp.count);
+		cls.write(cp.bytes.toByteArray(), 0, cp.bytes.size());
+		cls.u2(ACC_FINAL | ACC_SUPER);
+		cls.u2(thisClass);
+		cls.u2(superClass);
+		cls.u2(1);
+		cls.u2(evaluator);
+		cls.u2(0);	// fields
+		cls.u2(2);	// methods
+		Bytes ctor = new Bytes();
+		ctor.u1(ALOAD_0);
+		ctor.invoke(INVOKESPECIAL, objectInit);
+		ctor.u1(RETURN);
+		method(cls, init, initType, codeName, 1, 1, ctor);
+		// the stack never holds more than the operands plus the array and index of a constant being loaded
+		method(cls, evaluate, evaluateType, codeName, deepest + 2, FIRST_TEMP + temps, code);
+		cls.u2(0);	// attributes
+
+		try {
+			Class<?> c = MethodHandles.lookup().defineHiddenClass(cls.toByteArray(), true).lookupClass();
+			return (Evaluator) c.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;	// stays interpreted, same results either way
+		}
+	}
+
+	// the Ops method for the one-argument instructions
+	private static String unary(int op) {
+		return switch (op) {
+			case CompiledExpression.SIN -> "sin";
+			case CompiledExpression.COS -> "cos";
+			case CompiledExpression.TAN -> "tan";
+			case CompiledExpression.SEC -> "sec";
+			case CompiledExpression.CSC -> "csc";
+			case CompiledExpression.COT -> "cot";
+			case CompiledExpression.SQRT -> "sqrt";
+			case CompiledExpression.FACT -> "factorial";
+			default -> null;
+		};
+	}
+
+	private static boolean loadConstant(Bytes code, int i) { return loadElement(code, ALOAD_1, i); }
+
+	private static void loadMathContext(Bytes code) {
+		code.u1(ALOAD);
+		code.u1(4);
+	}
+
+	// array[i], the index goes in the instruction itself when it fits
+	private static boolean loadElement(Bytes code, int aloadArray, int i) {
+		code.u1(aloadArray);
+		if (i <= 5) code.u1(ICONST_0 + i);
+		else if (i <= Byte.MAX_VALUE) {
+			code.u1(BIPUSH);
+			code.u1(i);
+		} else if (i <= Short.MAX_VALUE) {
+			code.u1(SIPUSH);
+			code.u2(i);
+		} else return false;
+		code.u1(AALOAD);
+		return true;
+	}
+
+	// a public method with just a Code attribute
+	private static void method(Bytes cls, int name, int type, int codeName, int maxStack, int maxLocals, Bytes code) {
+		cls.u2(ACC_PUBLIC);
+		cls.u2(name);
+		cls.u2(type);
+		cls.u2(1);
+		cls.u2(codeName);
+		cls.u4(12 + code.size());	// max_stack, max_locals, code_length, exception_table_length, attributes_count
+		cls.u2(maxStack);
+		cls.u2(maxLocals);
+		cls.u4(code.size());
+		cls.write(code.toByteArray(), 0, code.size());
+		cls.u2(0);
+		cls.u2(0);
+	}
+
+	// big endian, like everything in a class file
+	private static final class Bytes extends ByteArrayOutputStream {
+		void u1(int b) { write(b); }
+
+		void u2(int v) {
+			write(v >>> 8);
+			write(v);
+		}
+
+		void u4(int v) {
+			u2(v >>> 16);
+			u2(v);
+		}
+
+		void invoke(int opcode, int method) {
+			u1(opcode);
+			u2(method);
+		}
+	}
+
+	// entries are deduplicated, so every method gets its constants only once however often it's called
+	private static final class ConstantPool {
+		private static final int UTF8 = 1, CLASS = 7, METHODREF = 10, NAME_AND_TYPE = 12;
+
+		final Bytes bytes = new Bytes();
+		int count = 1;	// entry 0 doesn't exist
+		private final Map<String, Integer> index = new HashMap<>();
+
+		int utf8(String s) {
+			// only ever ASCII names here, which is the same in the class file's modified UTF-8
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			return entry(UTF8, s, out -> {
+				out.u2(b.length);
+				out.write(b, 0, b.length);
+			});
+		}
+
+		int classRef(String name) {
+			int n = utf8(name);
+			return entry(CLASS, name, out -> out.u2(n));
+		}
+
+		int method(String owner, String name, String type) {
+			int c = classRef(owner);
+			int n = utf8(name), t = utf8(type);
+			int nt = entry(NAME_AND_TYPE, name + ' ' + type, out -> {
+				out.u2(n);
+				out.u2(t);
+			});
+			return entry(METHODREF, owner + '.' + name + type, out -> {
+				out.u2(c);
+				out.u2(nt);
+			});
+		}
+
+		// tag + text is the key, so a class and a string with the same name don't collide
+		private int entry(int tag, String text, Consumer<Bytes> body) {
+			return index.computeIfAbsent(tag + ":" + text, k -> {
+				bytes.u1(tag);
+				body.accept(bytes);
+				return count++;
+			});
+		}
+	}
+}
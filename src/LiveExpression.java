@@ -0,0 +1,268 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// an expression that's being typed, kept tokenized and half way through the shunting yard while it's edited, so a
+// keystroke only redoes the end of it instead of the whole thing
+// it remembers the tokenizer/parser state in front of every token, an edit at position p goes back to the last token
+// starting before p (that one can change too: 12 -> 123, x -> x( makes x a function) and carries on from there,
+// everything in front of it stays as it is
+// typing at the end, backspace and ± (which flips the last number) only ever touch the last token or two, so they
+// cost the same whether the expression is 5 or 5000 characters long
+// edits themselves just note where they happened, the tokenizing catches up when compile() or preview() need it
+// the text is a gap buffer with a cursor: the free space sits where the last edit was, so typing, backspace and
+// anything else at the cursor is just writing into (or widening) the gap. moving the cursor is free, the gap only
+// follows it at the next edit
+public final class LiveExpression implements CharSequence {
+	private char[] buffer = new char[64];
+	private int gapStart, gapEnd = buffer.length;	// buffer[gapStart, gapEnd) isn't text
+	private int cursor;
+	// told about every edit, so a copy of the text (the display) can do the same edit instead of starting over
+	private Edits edits;
+	private final List<Token> tokens = new ArrayList<>();
+	private final List<Token> output = new ArrayList<>();	// postfix so far
+	private ExpressionEngine.OpStack ops;	// operators still waiting
+	private int open;	// "("s without a ")" yet
+	// the state in front of every token, in order
+	private final List<Checkpoint> checkpoints = new ArrayList<>();
+	// what the last token threw (Invalid character, √[ without ]...), nothing after it is tokenized
+	private RuntimeException error;
+	// where the earliest edit since the last catch up was, MAX_VALUE when there's none
+	private int dirty = Integer.MAX_VALUE;
+	private int version;
+	private CompiledExpression compiled;	// compile() for this version
+
+	private record Checkpoint(int start, int tokens, int output, ExpressionEngine.OpStack ops, int open) {}
+
+	// `removed` chars at `offset` were replaced with `inserted`
+	public interface Edits {
+		void replaced(int offset, int removed, String inserted);
+	}
+
+	public void setEdits(Edits edits) { this.edits = edits; }
+
+	// typing, at the cursor, which ends up after it
+	public LiveExpression type(String s) {
+		replace(cursor, 0, s);
+		return this;
+	}
+
+	// deletes the char in front of the cursor, false when there's none
+	public boolean backspace() {
+		if (cursor == 0) return false;
+		replace(cursor - 1, 1, "");
+		return true;
+	}
+
+	public int cursor() { return cursor; }
+
+	public void setCursor(int position) { cursor = Math.max(0, Math.min(position, length())); }
+
+	// the number (digits and points, what the tokenizer makes a number of) around `position`: where it starts and
+	// where it ends, the same position for both when there's none. only looks at the number itself
+	public int numberStart(int position) {
+		while (position > 0 && isNumberChar(charAt(position - 1))) position--;
+		return position;
+	}
+
+	public int numberEnd(int position) {
+		while (position < length() && isNumberChar(charAt(position))) position++;
+		return position;
+	}
+
+	private static boolean isNumberChar(char c) { return Character.isDigit(c) || c == '.'; }
+
+	// StringBuilder's editing methods, the ones the calculator uses anyway. a cursor at or after an edit moves along
+	// with the text it's in front of
+
+	public LiveExpression append(String s) {
+		replace(length(), 0, s);
+		return this;
+	}
+
+	public LiveExpression append(char c) { return append(String.valueOf(c)); }
+
+	public LiveExpression insert(int offset, char c) {
+		replace(offset, 0, String.valueOf(c));
+		return this;
+	}
+
+	public LiveExpression deleteCharAt(int index) {
+		if (index < 0 || index >= length()) throw new StringIndexOutOfBoundsException(index);
+		replace(index, 1, "");
+		return this;
+	}
+
+	public void setLength(int length) {
+		if (length < length()) replace(length, length() - length, "");
+		else if (length > length()) replace(length(), 0, "\0".repeat(length - length()));
+	}
+
+	private void replace(int offset, int removed, String inserted) {
+		if (offset < 0 || offset > length()) throw new StringIndexOutOfBoundsException(offset);
+		moveGap(offset);
+		gapEnd += removed;
+		if (gapEnd - gapStart < inserted.length()) grow(inserted.length());
+		inserted.getChars(0, inserted.length(), buffer, gapStart);
+		gapStart += inserted.length();
+		if (cursor >= offset + removed) cursor += inserted.length() - removed;
+		else if (cursor > offset) cursor = offset;
+		edited(offset);
+		if (edits != null) edits.replaced(offset, removed, inserted);
+	}
+
+	// the gap to `position`, only what's between the two moves
+	private void moveGap(int position) {
+		if (position < gapStart) {
+			int n = gapStart - position;
+			System.arraycopy(buffer, position, buffer, gapEnd - n, n);
+			gapStart -= n;
+			gapEnd -= n;
+		} else if (position > gapStart) {
+			int n = position - gapStart;
+			System.arraycopy(buffer, gapEnd, buffer, gapStart, n);
+			gapStart += n;
+			gapEnd += n;
+		}
+	}
+
+	// room for at least `needed` more, doubling so typing stays amortized O(1)
+	private void grow(int needed) {
+		int length = length();
+		char[] bigger = new char[Math.max(buffer.length * 2, length + needed + 16)];
+		int after = buffer.length - gapEnd;
+		System.arraycopy(buffer, 0, bigger, 0, gapStart);
+		System.arraycopy(buffer, gapEnd, bigger, bigger.length - after, after);
+		buffer = bigger;
+		gapEnd = bigger.length - after;
+	}
+
+	@Override
+	public int length() { return buffer.length - (gapEnd - gapStart); }
+
+	@Override
+	public char charAt(int index) { return index < gapStart ? buffer[index] : buffer[index + gapEnd - gapStart]; }
+
+	@Override
+	public CharSequence subSequence(int start, int end) { return substring(start, end); }
+
+	public String substring(int start, int end) {
+		if (start < 0 || end > length() || start > end) throw new StringIndexOutOfBoundsException(start);
+		if (end <= gapStart) return new String(buffer, start, end - start);
+		if (start >= gapStart) return new String(buffer, start + gapEnd - gapStart, end - start);
+		return new StringBuilder(end - start).append(buffer, start, gapStart - start).append(buffer, gapEnd, end - gapStart).toString();
+	}
+
+	@Override
+	public String toString() { return substring(0, length()); }
+
+	// goes up with every edit, so a result worked out for an older version can be recognized and thrown away
+	public int version() { return version; }
+
+	// the whole expression, the same program ExpressionEngine.compile(toString()) would make (and it throws for the same
+	// inputs, maybe complaining about a different mistake when there's more than one) but without starting over
+	public CompiledExpression compile() {
+		long start = Metrics.start();
+		catchUp();
+		start = Metrics.record(Metrics.Phase.CATCH_UP, start);
+		if (compiled != null) return compiled;
+		if (error != null) {
+			Metrics.error(error);
+			throw error;
+		}
+		List<Token> postfix = new ArrayList<>(output);
+		try {
+			ExpressionEngine.flush(postfix, ops);
+		} catch (RuntimeException e) {
+			Metrics.error(e);
+			throw e;
+		}
+		Metrics.parsed(tokens);
+		compiled = new CompiledExpression(postfix);
+		Metrics.record(Metrics.Phase.TO_POSTFIX, start);
+		return compiled;
+	}
+
+	// what "=" would give if the expression was finished the obvious way: open parentheses get closed and a trailing
+	// operator or a half typed token (√[3 without the ]) is left out
+	// null when there's nothing to show, that's also the case for a lone number, it's its own result
+	public CompiledExpression preview() {
+		catchUp();
+		if (tokens.size() < 2 && error == null) return null;
+		// after an error the state is the one in front of the broken token already
+		int c = checkpoints.size() - (error != null ? 1 : 0);
+		if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).type == TokenType.OPERATOR) c--;
+		List<Token> postfix = output;
+		ExpressionEngine.OpStack o = ops;
+		int n = open;
+		if (c < checkpoints.size()) {
+			Checkpoint cp = checkpoints.get(c);
+			postfix = output.subList(0, cp.output);
+			o = cp.ops;
+			n = cp.open;
+		}
+		postfix = new ArrayList<>(postfix);
+		try {
+			for (int i = 0; i < n; i++) o = ExpressionEngine.shunt(new Token(TokenType.RPAREN, ")"), postfix, o);
+			ExpressionEngine.flush(postfix, o);
+			CompiledExpression preview = new CompiledExpression(postfix);
+			return preview.wellFormed() ? preview : null;
+		} catch (RuntimeException e) {
+			return null;	// "1 + -", "sin(" and so on
+		}
+	}
+
+	private void edited(int at) {
+		dirty = Math.min(dirty, at);
+		version++;
+		compiled = null;
+	}
+
+	// back to the last token that starts before the first edit, then tokenize and shunt from there to the end
+	private void catchUp() {
+		if (dirty == Integer.MAX_VALUE) return;
+		int c = checkpoints.size() - 1;
+		while (c >= 0 && checkpoints.get(c).start >= dirty) c--;
+		int from = 0;
+		if (c >= 0) {
+			Checkpoint cp = checkpoints.get(c);
+			from = cp.start;
+			tokens.subList(cp.tokens, tokens.size()).clear();
+			output.subList(cp.output, output.size()).clear();
+			ops = cp.ops;
+			open = cp.open;
+			checkpoints.subList(c, checkpoints.size()).clear();
+		} else {
+			tokens.clear();
+			output.clear();
+			ops = null;
+			open = 0;
+			checkpoints.clear();
+		}
+		dirty = Integer.MAX_VALUE;
+		error = null;
+
+		for (int i = ExpressionEngine.skipWhitespace(this, from); i < length(); ) {
+			Checkpoint cp = new Checkpoint(i, tokens.size(), output.size(), ops, open);
+			checkpoints.add(cp);
+			try {
+				int end = ExpressionEngine.nextToken(this, i, tokens);
+				// usually one token, two with an implied "*" in front
+				for (int k = cp.tokens; k < tokens.size(); k++) {
+					Token t = tokens.get(k);
+					ops = ExpressionEngine.shunt(t, output, ops);
+					if (t.type == TokenType.LPAREN) open++;
+					else if (t.type == TokenType.RPAREN) open--;
+				}
+				i = ExpressionEngine.skipWhitespace(this, end);
+			} catch (RuntimeException e) {
+				// stop here, the next edit after this point starts over from this token
+				error = e;
+				tokens.subList(cp.tokens, tokens.size()).clear();
+				output.subList(cp.output, output.size()).clear();
+				ops = cp.ops;
+				open = cp.open;
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+// small size-bounded cache that throws out the least recently used entry when it's full
+// optionally bounded by weight too (ex. bytes), then it throws out as many as it takes to get back under both limits
+// every method is synchronized, so it's fine to share between threads
+class LruCache<K, V> {
+	private final int maxSize;
+	private final long maxWeight;
+	private final ToLongFunction<? super V> weigher;
+	private final LinkedHashMap<K, V> map;
+	private long weight;
+	private long hits, misses, evictions;
+
+	LruCache(int maxSize) { this(maxSize, Long.MAX_VALUE, v -> 0); }
+
+	// `weigher` has to give the same answer for a value every time, it's asked again when the value leaves
+	LruCache(int maxSize, long maxWeight, ToLongFunction<? super V> weigher) {
+		if (maxSize < 1) throw new IllegalArgumentException("Cache size must be at least 1");
+		if (maxWeight < 1) throw new IllegalArgumentException("Cache weight must be at least 1");
+		this.maxSize = maxSize;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		// access order = true makes get() move the entry to the end, so the first one is always the LRU one
+		this.map = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	synchronized V get(K key) {
+		V value = map.get(key);
+		if (value == null) misses++;
+		else hits++;
+		return value;
+	}
+
+	synchronized void put(K key, V value) {
+		long w = weigher.applyAsLong(value);
+		if (w > maxWeight) return;	// would push out everything else and still not fit
+		V old = map.put(key, value);
+		if (old != null) weight -= weigher.applyAsLong(old);
+		weight += w;
+		// oldest first
+		Iterator<V> it = map.values().iterator();
+		while (map.size() > maxSize || weight > maxWeight) {
+			weight -= weigher.applyAsLong(it.next());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	// looks up `key`, builds it with `loader` on a miss
+	// the loader runs outside the lock so a slow load doesn't block everyone else, which means two threads can
+	// build the same value at once, the first one stored wins
+	V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+		V value = get(key);
+		if (value != null) return value;
+		V loaded = loader.apply(key);
+		synchronized (this) {
+			V raced = map.get(key);
+			if (raced != null) return raced;
+			put(key, loaded);
+			return loaded;
+		}
+	}
+
+	synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	synchronized int size() { return map.size(); }
+	int maxSize() { return maxSize; }
+	synchronized long weight() { return weight; }
+	synchronized long hits() { return hits; }
+	synchronized long misses() { return misses; }
+	synchronized long evictions() { return evictions; }
+
+	@Override
+	public synchronized String toString() {
+		return "size=" + map.size() + "/" + maxSize + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+	}
+}
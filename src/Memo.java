@@ -0,0 +1,69 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.function.Supplier;
+
+// remembers what the pure functions (trig, √, √[n], !) gave for an argument and a precision, across every expression
+// and every thread, since the same few show up over and over: sin(30), cos(90), tan(180), 20!...
+// only the expensive ones go in: anything with a MathContext (BigMath series) and factorials. the classic double trig
+// and roots are a single Math call, cheaper than looking them up
+// bounded by entries and by an estimate of the bytes they hold (a big factorial is megabytes), least recently used goes
+// first (roughly, see ConcurrentCache). a hit takes no lock, so threads evaluating in parallel don't queue up on it
+// -Djavacalc.memo=false (or setEnabled(false)) turns it off, -Djavacalc.memo.size / -Djavacalc.memo.bytes set the limits
+public final class Memo {
+	private Memo() {}
+
+	enum Function { SIN, COS, TAN, SEC, CSC, COT, SQRT, ROOT, FACTORIAL }
+
+	// mc null is the classic mode, `index` only for ROOT
+	private record Key(Function function, BigDecimal argument, BigDecimal index, MathContext mc) {}
+
+	private record Entry(BigDecimal value, long weight) {}
+
+	private static volatile boolean enabled = !"false".equals(System.getProperty("javacalc.memo"));
+	private static final ConcurrentCache<Key, Entry> CACHE = new ConcurrentCache<>(
+		Integer.getInteger("javacalc.memo.size", 4096),
+		Long.getLong("javacalc.memo.bytes", 64L << 20),
+		Entry::weight
+	);
+
+	public static boolean enabled() { return enabled; }
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+		if (!on) clear();
+	}
+
+	// `compute` on a miss, whatever it throws isn't remembered (so it throws again next time)
+	static BigDecimal get(Function function, BigDecimal argument, BigDecimal index, MathContext mc, Supplier<BigDecimal> compute) {
+		if (!enabled) return compute.get();
+		Key key = new Key(function, argument, index, mc);
+		Entry hit = CACHE.get(key);
+		if (hit != null) return hit.value;
+		BigDecimal value = compute.get();
+		// the argument is held on to as well, sin(100000!) shouldn't look cheap
+		CACHE.put(key, new Entry(value, bytes(value) + bytes(argument)));
+		return value;
+	}
+
+	// roughly what a BigDecimal costs on the heap, the digits plus the objects around them
+	private static long bytes(BigDecimal n) { return 64 + n.unscaledValue().bitLength() / 8; }
+
+	public static void clear() { CACHE.clear(); }
+
+	public static long hits() { return CACHE.hits(); }
+	public static long misses() { return CACHE.misses(); }
+	public static long evictions() { return CACHE.evictions(); }
+	public static int size() { return CACHE.size(); }
+	public static long bytes() { return CACHE.weight(); }
+
+	// hits / lookups, 0 before the first one
+	public static double hitRate() {
+		long h = hits(), lookups = h + misses();
+		return lookups == 0 ? 0 : (double) h / lookups;
+	}
+
+	public static String stats() {
+		return String.format("memo %s: size %d, %d KB, hits %d, misses %d (%.1f%% hit rate), evictions %d",
+			enabled ? "on" : "off", size(), bytes() >> 10, hits(), misses(), hitRate() * 100, evictions());
+	}
+}
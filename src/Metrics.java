@@ -0,0 +1,219 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// what the calculator measures about itself: how long each phase takes (tokenize, toPostFix, evaluate...) and how
+// many tokens, operators, evaluations and errors go through it
+// off unless -Djavacalc.metrics=true (or setEnabled(true)), then a report goes to stderr when the JVM exits, and it's
+// cheap enough to leave on: LongAdders and power of two histograms, no locks
+// separately from that every parse and evaluation is a JFR event, those are off too until a recording wants them:
+//	java -XX:StartFlightRecording:filename=calc.jfr ...
+//	jfr print --events javacalc.Evaluation calc.jfr
+// only the ones slower than 1 ms are recorded by default, the slow expressions are what they're for
+// with both off, the hot paths pay for two volatile reads, see watching()
+public final class Metrics {
+	private Metrics() {}
+
+	enum Phase {
+		TOKENIZE("tokenize"), TO_POSTFIX("toPostFix"), CATCH_UP("catchUp"), EVALUATE("evaluate");
+
+		final String label;
+
+		Phase(String label) { this.label = label; }
+	}
+
+	private static volatile boolean enabled = Boolean.getBoolean("javacalc.metrics");
+
+	private static final Histogram[] PHASES = new Histogram[Phase.values().length];
+	private static final LongAdder PARSES = new LongAdder(), TOKENS = new LongAdder(), OPERATORS = new LongAdder();
+	private static final LongAdder EVALUATIONS = new LongAdder(), ERRORS = new LongAdder();
+	private static final Map<String, LongAdder> EXCEPTIONS = new ConcurrentHashMap<>();
+
+	static {
+		for (int i = 0; i < PHASES.length; i++) PHASES[i] = new Histogram();
+		if (enabled) Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(report())));
+	}
+
+	public static boolean enabled() { return enabled; }
+
+	public static void setEnabled(boolean on) { enabled = on; }
+
+	// whether there's anything to measure for at all, the instrumented paths skip everything when there isn't
+	// FlightRecorder.isInitialized() stays false until some recording starts
+	static boolean watching() { return enabled || FlightRecorder.isInitialized(); }
+
+	// for timing a phase: start() before, record() after, which returns the time again for the next phase
+	static long start() { return enabled ? System.nanoTime() : 0; }
+
+	static long record(Phase phase, long start) {
+		if (!enabled) return 0;
+		long now = System.nanoTime();
+		PHASES[phase.ordinal()].record(now - start);
+		return now;
+	}
+
+	static void parsed(Iterable<Token> tokens) {
+		if (!enabled) return;
+		int count = 0, operators = 0;
+		for (Token t : tokens) {
+			count++;
+			if (t.type == TokenType.OPERATOR || t.type == TokenType.FUNCTION || t.type == TokenType.FACTORIAL || t.type == TokenType.ROOT) operators++;
+		}
+		PARSES.increment();
+		TOKENS.add(count);
+		OPERATORS.add(operators);
+	}
+
+	static void error(Throwable e) {
+		if (!enabled) return;
+		ERRORS.increment();
+		EXCEPTIONS.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+	}
+
+	// one evaluation of `expr`, timed, counted and turned into an EvaluationEvent if a recording wants those
+	static <T> T evaluation(CompiledExpression expr, String mode, Supplier<T> work) {
+		EvaluationEvent event = new EvaluationEvent();
+		event.begin();
+		long start = start();
+		try {
+			return work.get();
+		} catch (RuntimeException | Error e) {
+			error(e);
+			event.error = e.getClass().getName();
+			throw e;
+		} finally {
+			if (enabled) EVALUATIONS.increment();
+			record(Phase.EVALUATE, start);
+			event.end();	// shouldCommit() goes by the duration, which needs the end
+			if (event.shouldCommit()) {
+				event.expression = expr.toString();
+				event.mode = mode;
+				event.commit();
+			}
+		}
+	}
+
+	public static void reset() {
+		for (Histogram h : PHASES) h.reset();
+		PARSES.reset();
+		TOKENS.reset();
+		OPERATORS.reset();
+		EVALUATIONS.reset();
+		ERRORS.reset();
+		EXCEPTIONS.clear();
+	}
+
+	// everything so far, ex.
+	//	tokenize    n=3  mean=12.4µs  p50<16µs  p99<32µs  max=20.1µs
+	//	...
+	//	parses 3, tokens 41, operators 17, evaluations 3, errors 1 (ArithmeticException 1)
+	//	memo on: size 2, 1 KB, hits 4, misses 2 (66.7% hit rate), evictions 0
+	public static String report() {
+		StringBuilder sb = new StringBuilder();
+		for (Phase p : Phase.values()) sb.append(String.format("%-11s %s%n", p.label, PHASES[p.ordinal()]));
+		sb.append("parses ").append(PARSES.sum())
+			.append(", tokens ").append(TOKENS.sum())
+			.append(", operators ").append(OPERATORS.sum())
+			.append(", evaluations ").append(EVALUATIONS.sum())
+			.append(", errors ").append(ERRORS.sum());
+		if (!EXCEPTIONS.isEmpty()) {
+			StringBuilder types = new StringBuilder();
+			new TreeMap<>(EXCEPTIONS).forEach((type, n) -> types.append(types.isEmpty() ? "" : ", ").append(type).append(' ').append(n.sum()));
+			sb.append(" (").append(types).append(')');
+		}
+		sb.append(System.lineSeparator()).append(Memo.stats());
+		return sb.append(System.lineSeparator()).toString();
+	}
+
+	// durations in buckets by their highest bit, [2^(b-1), 2^b) ns in bucket b, so percentiles are only good to a
+	// factor of two but recording is a couple of adds
+	static final class Histogram {
+		private final LongAdder[] buckets = new LongAdder[65];
+		private final LongAdder count = new LongAdder(), sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			if (nanos < 0) nanos = 0;
+			buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+			count.increment();
+			sum.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		// upper bound of the bucket the q quantile falls in
+		long percentile(double q) {
+			long n = count.sum(), seen = 0, target = (long) Math.ceil(q * n);
+			for (int b = 0; b < buckets.length; b++) {
+				seen += buckets[b].sum();
+				if (seen >= target && seen > 0) return b == 64 ? Long.MAX_VALUE : 1L << b;
+			}
+			return 0;
+		}
+
+		void reset() {
+			for (LongAdder b : buckets) b.reset();
+			count.reset();
+			sum.reset();
+			max.reset();
+		}
+
+		@Override
+		public String toString() {
+			long n = count.sum();
+			if (n == 0) return "n=0";
+			return "n=" + n + "  mean=" + time(sum.sum() / (double) n) + "  p50<" + time(percentile(0.5))
+				+ "  p99<" + time(percentile(0.99)) + "  max=" + time(max.get());
+		}
+
+		private static String time(double nanos) {
+			if (nanos < 1e3) return String.format("%.0fns", nanos);
+			if (nanos < 1e6) return String.format("%.1fus", nanos / 1e3);
+			if (nanos < 1e9) return String.format("%.1fms", nanos / 1e6);
+			return String.format("%.2fs", nanos / 1e9);
+		}
+	}
+
+	@Name("javacalc.Parse")
+	@Label("Parse")
+	@Category("JavaCalc")
+	@Description("An expression string tokenized and converted to postfix")
+	@Threshold("1 ms")
+	static final class ParseEvent extends Event {
+		@Label("Expression")
+		String expression;
+		@Label("Tokens")
+		int tokens;
+		@Label("Error")
+		String error;
+	}
+
+	@Name("javacalc.Evaluation")
+	@Label("Evaluation")
+	@Category("JavaCalc")
+	@Description("A compiled expression evaluated once")
+	@Threshold("1 ms")
+	static final class EvaluationEvent extends Event {
+		@Label("Expression")
+		@Description("The postfix program")
+		String expression;
+		@Label("Mode")
+		String mode;
+		@Label("Error")
+		String error;
+	}
+}
@@ -0,0 +1,157 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+// what every operator/function does to BigDecimals, shared by the interpreter in CompiledExpression and the classes
+// HotCompiler generates, so both always agree (same results, same exceptions)
+// `mc` null means the calculator's classic behavior: doubles for trig/roots/^ and 50 decimal places for division, except
+// whole powers, which are exact up to BigMath.maxExactDigits()
+// the BigMath functions and factorials go through Memo, they're pure and far slower than a lookup
+final class Ops {
+	private Ops() {}
+
+	static BigDecimal sin(BigDecimal a, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.SIN, a, null, mc, () -> BigMath.sinDegrees(a, mc));
+		return BigDecimal.valueOf(Math.sin(Math.toRadians(a.doubleValue())));
+	}
+
+	static BigDecimal cos(BigDecimal a, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.COS, a, null, mc, () -> BigMath.cosDegrees(a, mc));
+		return BigDecimal.valueOf(Math.cos(Math.toRadians(a.doubleValue())));
+	}
+
+	static BigDecimal tan(BigDecimal a, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.TAN, a, null, mc, () -> BigMath.tanDegrees(a, mc));
+		return BigDecimal.valueOf(Math.tan(Math.toRadians(a.doubleValue())));
+	}
+
+	static BigDecimal sec(BigDecimal a, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.SEC, a, null, mc, () -> BigMath.secDegrees(a, mc));
+		return BigDecimal.valueOf(1.0 / Math.cos(Math.toRadians(a.doubleValue())));
+	}
+
+	static BigDecimal csc(BigDecimal a, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.CSC, a, null, mc, () -> BigMath.cscDegrees(a, mc));
+		return BigDecimal.valueOf(1.0 / Math.sin(Math.toRadians(a.doubleValue())));
+	}
+
+	static BigDecimal cot(BigDecimal a, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.COT, a, null, mc, () -> BigMath.cotDegrees(a, mc));
+		return BigDecimal.valueOf(1.0 / Math.tan(Math.toRadians(a.doubleValue())));
+	}
+
+	// square root √x
+	static BigDecimal sqrt(BigDecimal x, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.SQRT, x, null, mc, () -> BigMath.sqrt(x, mc).stripTrailingZeros());
+		if (x.compareTo(BigDecimal.ZERO) < 0)
+			throw new ArithmeticException("Square root of a negative number");
+		return BigDecimal.valueOf(Math.sqrt(x.doubleValue())).stripTrailingZeros();
+	}
+
+	// nth root √[n]x
+	static BigDecimal root(BigDecimal x, BigDecimal n, MathContext mc) {
+		if (mc != null) return Memo.get(Memo.Function.ROOT, x, n, mc, () -> BigMath.root(x, n, mc).stripTrailingZeros());
+		if (n.compareTo(BigDecimal.ZERO) == 0)
+			throw new ArithmeticException("Root index cannot be zero");
+
+		// handle negative numbers: only for odd integer roots
+		boolean allowNegative = n.scale() == 0 && (n.intValueExact() % 2 == 1);
+		if (x.compareTo(BigDecimal.ZERO) < 0 && !allowNegative)
+			throw new ArithmeticException("Root of negative number only valid for odd integer roots");
+
+		// nth root = x^(1/n)
+		double exponent = 1.0 / n.doubleValue();
+		return BigDecimal.valueOf(Math.pow(x.doubleValue(), exponent)).stripTrailingZeros();
+	}
+
+	static BigDecimal factorial(BigDecimal a, MathContext mc) {
+		return Memo.get(Memo.Function.FACTORIAL, a, null, mc, () -> mc == null ? Factorials.factorial(a) : Factorials.factorial(a, mc));
+	}
+
+	static BigDecimal divide(BigDecimal a, BigDecimal b, MathContext mc) {
+		if (b.compareTo(BigDecimal.ZERO) == 0) throw new ArithmeticException("Division by zero");
+		// up to 50 digits
+		return mc == null ? a.divide(b, 50, RoundingMode.HALF_UP) : a.divide(b, mc);
+	}
+
+	static BigDecimal remainder(BigDecimal a, BigDecimal b) {
+		if (b.compareTo(BigDecimal.ZERO) == 0) throw new ArithmeticException("Division by zero");
+		return a.remainder(b);
+	}
+
+	static BigDecimal power(BigDecimal a, BigDecimal b, MathContext mc) {
+		if (mc != null) return BigMath.pow(a, b, mc);
+		// 2^200 has every digit, a negative exponent is 1 / a^n with a division's 50 places
+		// only a whole base is exact, anything else may be a rounded quotient (1/3) and its last place would be raised
+		// to the power and shown as digits, so it gets a division's 50 places too
+		long n = whole(b);
+		if (n != NOT_WHOLE && BigMath.exactPowerDigits(a, Math.abs(n)) <= BigMath.maxExactDigits()) {
+			BigDecimal r = BigMath.powExact(a, Math.abs(n));
+			if (n < 0) return divide(BigDecimal.ONE, r, null);
+			return isWhole(a) || r.scale() <= 50 ? r : r.setScale(50, RoundingMode.HALF_UP);
+		}
+		// BigDecimal has no exact power for non-integers
+		// you might lose precision here
+		double res = Math.pow(a.doubleValue(), b.doubleValue());
+		if (Double.isInfinite(res)) throw new ArithmeticException("Power too large, over " + BigMath.maxExactDigits() + " digits");
+		return BigDecimal.valueOf(res).stripTrailingZeros();
+	}
+
+	// a ^ b % m in one go, Optimizer puts it in place of the two. for whole numbers (b >= 0) it's BigInteger.modPow(),
+	// which never holds anything bigger than m^2, so 7^123456789 % 1000 is instant where a^b alone would be too big to
+	// compute. the sign is what % would have given a^b. anything else is just the two steps
+	static BigDecimal modPow(BigDecimal a, BigDecimal b, BigDecimal m, MathContext mc) {
+		if (!isWhole(a) || !isWhole(b) || !isWhole(m) || b.signum() < 0) return remainder(power(a, b, mc), m);
+		if (m.signum() == 0) throw new ArithmeticException("Division by zero");
+		return new BigDecimal(modPow(a.toBigInteger(), b.toBigInteger(), m.toBigInteger()));
+	}
+
+	private static BigInteger modPow(BigInteger a, BigInteger b, BigInteger m) {
+		BigInteger r = a.abs().modPow(b, m.abs());
+		return a.signum() < 0 && b.testBit(0) ? r.negate() : r;
+	}
+
+	private static final long NOT_WHOLE = Long.MIN_VALUE;
+
+	// b as a long when it's a whole number that fits, NOT_WHOLE otherwise
+	private static long whole(BigDecimal b) {
+		if (!isWhole(b)) return NOT_WHOLE;
+		BigInteger n = b.toBigInteger();
+		return n.bitLength() < 63 ? n.longValue() : NOT_WHOLE;
+	}
+
+	// without stripTrailingZeros(), which is slow on big integers (see ResultFormat)
+	private static boolean isWhole(BigDecimal v) { return v.scale() <= 0 || v.setScale(0, RoundingMode.DOWN).compareTo(v) == 0; }
+
+	// EvaluationMode.RATIONAL: + - * / % stay exact as Fractions, so do integer powers and square roots of perfect
+	// squares. everything else has no exact answer anyway and goes through the classic functions above
+
+	// what the classic functions would have been given, a division's 50 places
+	static BigDecimal decimal(Fraction a) { return a.toBigDecimal(); }
+
+	// same size limit as the decimal power, on the bigger of numerator and denominator
+	static Fraction power(Fraction a, Fraction b) {
+		if (b.isInteger()) {
+			BigInteger n = b.numerator();
+			if (n.bitLength() < 32) {
+				long e = Math.abs(n.longValue());
+				double digits = Math.max(BigMath.exactPowerDigits(new BigDecimal(a.numerator()), e),
+					BigMath.exactPowerDigits(new BigDecimal(a.denominator()), e));
+				if (digits <= BigMath.maxExactDigits()) return a.pow(n.intValue());
+			}
+		}
+		return Fraction.valueOf(power(decimal(a), decimal(b), null));
+	}
+
+	static Fraction modPow(Fraction a, Fraction b, Fraction m) {
+		if (!a.isInteger() || !b.isInteger() || !m.isInteger() || b.signum() < 0) return power(a, b).remainder(m);
+		if (m.signum() == 0) throw new ArithmeticException("Division by zero");
+		return Fraction.of(modPow(a.numerator(), b.numerator(), m.numerator()), BigInteger.ONE);
+	}
+
+	static Fraction sqrt(Fraction a) {
+		Fraction exact = a.sqrtExact();
+		return exact != null ? exact : Fraction.valueOf(sqrt(decimal(a), null));
+	}
+}
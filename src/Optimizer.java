@@ -0,0 +1,240 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+// rewrites a program for one MathContext before it runs: the postfix code becomes a tree (a DAG really, see below),
+// the tree gets simplified and turned back into code
+//	- constant subtrees are worked out once, sin(30), (22 / 7)^2, 5!... become plain numbers, with the same Ops calls
+//	  the interpreter would make, which is why it's per MathContext (sin(30) isn't the same number in every mode)
+//	- identical subtrees are only built once, so sin(x) + sin(x) computes sin(x) a single time and keeps it in a
+//	  temp (TEE stores it, TEMP loads it again)
+//	- x*1, 1*x, x+0, 0+x and x-0 become x
+//	- a ^ b % m becomes a single MODPOW when m is a number or a name, see Ops.modPow()
+// nothing here changes a result: folding something that throws (1/0, 5000000!) just leaves it alone so it throws
+// when it's evaluated like it always did, and x^1 and x/1 stay since neither is exactly x in this calculator (^ goes
+// through doubles or rounds to the precision, / rounds to 50 places or the precision). MODPOW is the exception, it's
+// exact where a ^ b alone had to be rounded or was too big to compute, same result otherwise
+// EvaluationMode.RATIONAL gets the same treatment minus the folding, which works on BigDecimals, see optimizeRational()
+final class Optimizer {
+	// one node per distinct subtree, `value` is the number for PUSH (and for ROOT, its index)
+	private static final class Node {
+		final int op, operand;
+		final BigDecimal value;
+		final Node a, b, c;	// c only for MODPOW's modulus
+		int uses;	// parents in the final tree
+		int state;	// while emitting: 0 not yet, 1 children pushed, 2 done
+		int temp = -1;
+
+		Node(int op, int operand, BigDecimal value, Node a, Node b, Node c) {
+			this.op = op;
+			this.operand = operand;
+			this.value = value;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+
+		boolean constant() { return op == CompiledExpression.PUSH; }
+	}
+
+	// nodes are unique by this, the children are already unique so comparing them by identity is enough
+	private record Key(int op, int operand, BigDecimal value, Node a, Node b, Node c) {}
+
+	private final Map<Key, Node> unique = new HashMap<>();
+	private final MathContext mc;
+	private final boolean folding;
+
+	private Optimizer(MathContext mc, boolean folding) {
+		this.mc = mc;
+		this.folding = folding;
+	}
+
+	// null when there's nothing it can do, it only takes well formed programs without unknown functions
+	static CompiledExpression.Program optimize(int[] code, BigDecimal[] constants, MathContext mc) {
+		return new Optimizer(mc, true).run(code, constants);
+	}
+
+	// for CompiledExpression.evaluateRational(), constants stay as they are since working them out here would round them
+	static CompiledExpression.Program optimizeRational(int[] code, BigDecimal[] constants) {
+		return new Optimizer(null, false).run(code, constants);
+	}
+
+	private CompiledExpression.Program run(int[] code, BigDecimal[] constants) {
+		Deque<Node> stack = new ArrayDeque<>();
+		boolean[] moduli = powersUnderMod(code);
+		for (int i = 0; i < code.length; i++) {
+			int op = code[i] & CompiledExpression.OPCODE_MASK, k = code[i] >>> CompiledExpression.OPCODE_BITS;
+			switch (op) {
+				case CompiledExpression.PUSH -> stack.push(constant(constants[k]));
+				case CompiledExpression.ANS -> stack.push(node(op, 0, null, null, null));
+				case CompiledExpression.LOAD -> stack.push(node(op, k, null, null, null));
+				case CompiledExpression.ADD, CompiledExpression.SUB, CompiledExpression.MUL, CompiledExpression.DIV,
+					CompiledExpression.MOD, CompiledExpression.POW -> {
+					if (stack.size() < 2) return null;
+					Node b = stack.pop(), a = stack.pop();
+					stack.push(binary(op, a, b, moduli[i]));
+				}
+				case CompiledExpression.UNKNOWN, CompiledExpression.CALL -> { return null; }
+				default -> {
+					if (stack.isEmpty()) return null;
+					stack.push(unary(op, op == CompiledExpression.ROOT ? constants[k] : null, stack.pop()));
+				}
+			}
+		}
+		if (stack.size() != 1) return null;
+		return emit(stack.pop());
+	}
+
+	private Node constant(BigDecimal value) { return node(CompiledExpression.PUSH, 0, value, null, null); }
+
+	private Node node(int op, int operand, BigDecimal value, Node a, Node b) { return node(op, operand, value, a, b, null); }
+
+	private Node node(int op, int operand, BigDecimal value, Node a, Node b, Node c) {
+		return unique.computeIfAbsent(new Key(op, operand, value, a, b, c), k -> new Node(op, operand, value, a, b, c));
+	}
+
+	// `underMod` is a ^ b whose result goes straight into a %, it's left for the % to fuse even when it could be
+	// folded, 7^12345 would be worked out in full otherwise
+	private Node binary(int op, Node a, Node b, boolean underMod) {
+		if (folding && !underMod && a.constant() && b.constant()) {
+			BigDecimal v = fold(op, a.value, b.value, null, null);
+			if (v != null) return constant(v);
+		}
+		// MODPOW has the modulus before it works out the power, so only one that can't throw (a number, Ans, a
+		// variable), otherwise its error could come first where the power's did
+		if (op == CompiledExpression.MOD && a.op == CompiledExpression.POW && b.a == null) return modPow(a.a, a.b, b);
+		if (op == CompiledExpression.MUL && isOne(b)) return a;
+		if (op == CompiledExpression.MUL && isOne(a)) return b;
+		if ((op == CompiledExpression.ADD || op == CompiledExpression.SUB) && isZero(b)) return a;
+		if (op == CompiledExpression.ADD && isZero(a)) return b;
+		return node(op, 0, null, a, b);
+	}
+
+	private Node unary(int op, BigDecimal index, Node a) {
+		if (folding && a.constant()) {
+			BigDecimal v = fold(op, a.value, null, null, index);
+			if (v != null) return constant(v);
+		}
+		return node(op, 0, index, a, null);
+	}
+
+	private Node modPow(Node a, Node b, Node m) {
+		if (folding && a.constant() && b.constant() && m.constant()) {
+			BigDecimal v = fold(CompiledExpression.MODPOW, a.value, b.value, m.value, null);
+			if (v != null) return constant(v);
+		}
+		return node(CompiledExpression.MODPOW, 0, null, a, b, m);
+	}
+
+	// which instructions are a ^ whose result is the left operand of a %, one pass keeping track of what made each
+	// value on the stack
+	static boolean[] powersUnderMod(int[] code) {
+		boolean[] found = new boolean[code.length];
+		int[] made = new int[code.length];	// the stack, holding the instruction that pushed each value
+		int sp = 0;
+		for (int i = 0; i < code.length; i++) {
+			int op = code[i] & CompiledExpression.OPCODE_MASK;
+			int pops = op == CompiledExpression.PUSH || op == CompiledExpression.ANS || op == CompiledExpression.LOAD ? 0
+				: op >= CompiledExpression.ADD && op <= CompiledExpression.POW ? 2 : 1;
+			if (sp < pops) break;	// run() gives up on it anyway
+			if (op == CompiledExpression.MOD && (code[made[sp - 2]] & CompiledExpression.OPCODE_MASK) == CompiledExpression.POW)
+				found[made[sp - 2]] = true;
+			sp -= pops;
+			made[sp++] = i;
+		}
+		return found;
+	}
+
+	private static boolean isOne(Node n) { return n.constant() && n.value.compareTo(BigDecimal.ONE) == 0; }
+
+	private static boolean isZero(Node n) { return n.constant() && n.value.signum() == 0; }
+
+	// what the interpreter would do with these operands, null if it throws
+	private BigDecimal fold(int op, BigDecimal a, BigDecimal b, BigDecimal c, BigDecimal index) {
+		try {
+			return switch (op) {
+				case CompiledExpression.ADD -> a.add(b);
+				case CompiledExpression.SUB -> a.subtract(b);
+				case CompiledExpression.MUL -> a.multiply(b);
+				case CompiledExpression.DIV -> Ops.divide(a, b, mc);
+				case CompiledExpression.MOD -> Ops.remainder(a, b);
+				case CompiledExpression.POW -> Ops.power(a, b, mc);
+				case CompiledExpression.MODPOW -> Ops.modPow(a, b, c, mc);
+				case CompiledExpression.SIN -> Ops.sin(a, mc);
+				case CompiledExpression.COS -> Ops.cos(a, mc);
+				case CompiledExpression.TAN -> Ops.tan(a, mc);
+				case CompiledExpression.SEC -> Ops.sec(a, mc);
+				case CompiledExpression.CSC -> Ops.csc(a, mc);
+				case CompiledExpression.COT -> Ops.cot(a, mc);
+				case CompiledExpression.SQRT -> Ops.sqrt(a, mc);
+				case CompiledExpression.ROOT -> Ops.root(a, index, mc);
+				case CompiledExpression.FACT -> Ops.factorial(a, mc);
+				default -> null;
+			};
+		} catch (CancellationException e) {
+			throw e;	// out of budget, the whole evaluation stops
+		} catch (RuntimeException e) {
+			return null;	// stays in the program and throws there, in its turn
+		}
+	}
+
+	// back to postfix, without recursion since trees can be thousands deep (1+2+3+...)
+	private CompiledExpression.Program emit(Node root) {
+		Deque<Node> todo = new ArrayDeque<>();
+		// parents per node, a node used more than once gets a temp
+		todo.push(root);
+		while (!todo.isEmpty()) {
+			Node n = todo.pop();
+			if (n.uses++ > 0) continue;	// its children are counted already
+			if (n.c != null) todo.push(n.c);
+			if (n.b != null) todo.push(n.b);
+			if (n.a != null) todo.push(n.a);
+		}
+
+		List<Integer> code = new ArrayList<>();
+		List<BigDecimal> pool = new ArrayList<>();
+		Map<BigDecimal, Integer> poolIndex = new HashMap<>();
+		int temps = 0, depth = 0, deepest = 1;
+		todo.push(root);
+		while (!todo.isEmpty()) {
+			Node n = todo.peek();
+			if (n.state == 2) {	// shared and already computed
+				todo.pop();
+				code.add(CompiledExpression.TEMP | n.temp << CompiledExpression.OPCODE_BITS);
+				deepest = Math.max(deepest, ++depth);
+				continue;
+			}
+			if (n.state == 0 && n.a != null) {
+				n.state = 1;
+				if (n.c != null) todo.push(n.c);
+				if (n.b != null) todo.push(n.b);
+				todo.push(n.a);
+				continue;
+			}
+			todo.pop();
+			n.state = 2;
+			int operand = n.operand;
+			if (n.value != null) operand = poolIndex.computeIfAbsent(n.value, v -> {
+				pool.add(v);
+				return pool.size() - 1;
+			});
+			code.add(n.op | operand << CompiledExpression.OPCODE_BITS);
+			if (n.a == null) depth++;
+			else if (n.b != null) depth -= n.c != null ? 2 : 1;
+			deepest = Math.max(deepest, depth);
+			// leaves are as cheap to redo as to load from a temp
+			if (n.uses > 1 && n.a != null) {
+				n.temp = temps++;
+				code.add(CompiledExpression.TEE | n.temp << CompiledExpression.OPCODE_BITS);
+			} else if (n.uses > 1) n.state = 0;
+		}
+		int[] program = code.stream().mapToInt(Integer::intValue).toArray();
+		return new CompiledExpression.Program(program, pool.toArray(new BigDecimal[0]), deepest, temps, program.length);
+	}
+}
@@ -0,0 +1,377 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// evaluates one big expression on several cores. the program is read back into its tree and every subtree gets a
+// rough cost, from a factorial's n, how many digits its numbers have, the precision BigMath works at... wherever two or
+// more operands of the same operator each cost more than FORK_COST, the later ones are forked onto the common pool
+// while the first one is worked out on this thread (1000! * 2000! is two tasks, 1000! + 1 is none). anything cheaper
+// runs as its slice of the postfix code, the same way the interpreter would
+// results and exceptions are the sequential ones. an operand's failure only counts once everything left of it (in
+// postfix order) succeeded, which makes it the first failure the interpreter would have run into, and a task's
+// exception comes back as it was thrown instead of the copy ForkJoinTask.join() would make
+// shared subtrees (Optimizer's TEE/TEMP) are worked out once, whoever needs one while another thread is on it waits
+// for that one
+// works for BigDecimals and Fractions, see Arithmetic
+final class ParallelEvaluator {
+	private ParallelEvaluator() {}
+
+	// operands cheaper than this, roughly microseconds, aren't worth a task (-Djavacalc.parallel.cost, 0 forks
+	// everything it can)
+	static final double FORK_COST = Integer.getInteger("javacalc.parallel.cost", 500);
+	// nested this deep it goes back to slices, a 10000 term sum must not run off the end of the stack
+	private static final int MAX_DEPTH = 256;
+
+	// what the numbers are and what each instruction does to them, the same calls the interpreters make
+	interface Arithmetic<T> {
+		// PUSH, ANS and LOAD
+		T leaf(int instruction);
+
+		// everything else except TEE and TEMP, b and c are null when the instruction doesn't take them
+		T apply(int instruction, T a, T b, T c);
+	}
+
+	// the shape of a program, made once per program. node i is the value instruction i leaves on the stack, its
+	// operands are the instructions that left theirs (a TEMP stands for the node TEE saved)
+	static final class Tree {
+		final int[] code;
+		final BigDecimal[] constants;
+		final int[] a, b, c;	// -1 when there's no such operand
+		final int[] first;	// node i is code[first[i]..i]
+		final int[] temp;	// the temp a node is saved in, -1 when it isn't shared
+		final int[] saved;	// temp -> the node saved in it
+		final int root, maxDepth;
+
+		private Tree(int[] code, BigDecimal[] constants, int temps, int maxDepth) {
+			int n = code.length;
+			this.code = code;
+			this.constants = constants;
+			this.maxDepth = maxDepth;
+			a = new int[n];
+			b = new int[n];
+			c = new int[n];
+			first = new int[n];
+			temp = new int[n];
+			saved = new int[temps];
+			Arrays.fill(temp, -1);
+			int[] stack = new int[n];
+			int sp = 0;
+			for (int i = 0; i < n; i++) {
+				int op = code[i] & CompiledExpression.OPCODE_MASK, k = code[i] >>> CompiledExpression.OPCODE_BITS;
+				a[i] = b[i] = c[i] = -1;
+				first[i] = i;
+				if (op == CompiledExpression.TEE) {
+					temp[stack[sp - 1]] = k;
+					saved[k] = stack[sp - 1];
+					continue;
+				}
+				int arity = arity(op);
+				if (arity == 3) c[i] = stack[--sp];
+				if (arity >= 2) b[i] = stack[--sp];
+				if (arity >= 1) {
+					a[i] = stack[--sp];
+					first[i] = first[a[i]];
+				}
+				stack[sp++] = i;
+			}
+			root = stack[0];
+		}
+
+		// null for programs it can't take apart: broken ones and ones with unknown functions (they only throw anyway)
+		static Tree of(CompiledExpression.Program p) {
+			int depth = 0;
+			for (int i = 0; i < p.code.length; i++) {
+				int op = p.code[i] & CompiledExpression.OPCODE_MASK;
+				if (op == CompiledExpression.UNKNOWN || op == CompiledExpression.CALL || op == CompiledExpression.TEE && depth < 1) return null;
+				if (op == CompiledExpression.TEE) continue;
+				int arity = arity(op);
+				if (depth < arity) return null;
+				depth += 1 - arity;
+			}
+			if (depth != 1 || p.runnable != p.code.length) return null;
+			return new Tree(p.code, p.constants, p.temps, p.maxDepth);
+		}
+
+		private static int arity(int op) {
+			return switch (op) {
+				case CompiledExpression.PUSH, CompiledExpression.ANS, CompiledExpression.LOAD, CompiledExpression.TEMP -> 0;
+				case CompiledExpression.ADD, CompiledExpression.SUB, CompiledExpression.MUL, CompiledExpression.DIV,
+					CompiledExpression.MOD, CompiledExpression.POW -> 2;
+				case CompiledExpression.MODPOW -> 3;
+				default -> 1;
+			};
+		}
+	}
+
+	// the result, or null when nothing in it is worth a task and the caller's own interpreter should do it
+	// `ans`, `values` and `mc` are what the evaluation was given, for the costs (math has them too)
+	static <T> T evaluate(Tree tree, Arithmetic<T> math, BigDecimal ans, BigDecimal[] values, MathContext mc) {
+		double[] cost = new double[tree.code.length];
+		if (!costs(tree, ans, values, mc, cost)) return null;
+		return new Run<>(tree, math, cost).value(tree.root, 0);
+	}
+
+	// fills in every node's cost, true if some operator has two operands that cost more than FORK_COST
+	// digits[i] is a guess at how many digits node i's number has, which is most of what the next one costs
+	private static boolean costs(Tree t, BigDecimal ans, BigDecimal[] values, MathContext mc, double[] cost) {
+		int[] code = t.code;
+		double[] digits = new double[code.length];
+		int precision = mc == null ? 0 : mc.getPrecision();
+		boolean worth = false;
+		for (int i = 0; i < code.length; i++) {
+			int op = code[i] & CompiledExpression.OPCODE_MASK, k = code[i] >>> CompiledExpression.OPCODE_BITS;
+			int a = t.a[i], b = t.b[i], c = t.c[i];
+			double da = a < 0 ? 0 : digits[a], db = b < 0 ? 0 : digits[b], own;
+			switch (op) {
+				case CompiledExpression.PUSH, CompiledExpression.ANS, CompiledExpression.LOAD -> {
+					digits[i] = digits(leaf(t, i, ans, values));
+					own = 0;
+				}
+				case CompiledExpression.TEMP -> {
+					digits[i] = digits[t.saved[k]];
+					own = 0;
+				}
+				case CompiledExpression.TEE -> {
+					continue;
+				}
+				case CompiledExpression.ADD, CompiledExpression.SUB -> {
+					digits[i] = Math.max(da, db) + 1;
+					own = (da + db) / 1000;
+				}
+				case CompiledExpression.MUL -> {
+					digits[i] = da + db;
+					own = multiplying(da, db);
+				}
+				case CompiledExpression.DIV -> {
+					digits[i] = precision > 0 ? precision : Math.max(da, db) + 50;
+					own = 3 * multiplying(da + db, digits[i]);
+				}
+				case CompiledExpression.MOD -> {
+					digits[i] = db;
+					own = 2 * multiplying(da, db);
+				}
+				case CompiledExpression.POW -> {
+					BigDecimal n = leaf(t, b, ans, values);
+					if (n != null && isWhole(n)) {
+						// repeated squaring, the last squaring is most of it
+						double d = da * Math.abs(n.doubleValue());
+						digits[i] = precision > 0 ? Math.min(d, precision) : d;
+						own = precision > 0 ? multiplying(digits[i], digits[i]) * Math.log(d + 2) : 1.5 * multiplying(d, d);
+					} else {
+						digits[i] = precision > 0 ? precision : 17;
+						own = precision > 0 ? transcendental(precision) : 1;
+					}
+				}
+				case CompiledExpression.MODPOW -> {
+					double dm = digits[c];
+					digits[i] = dm;
+					own = db * 3.33 * 2 * multiplying(dm, dm);
+				}
+				case CompiledExpression.FACT -> {
+					BigDecimal n = leaf(t, a, ans, values);
+					if (n != null && n.signum() > 0 && isWhole(n) && n.compareTo(BigDecimal.valueOf(Factorials.maxN())) <= 0) {
+						double m = n.doubleValue(), d = m * Math.max(1, Math.log10(m / Math.E));
+						digits[i] = d;
+						own = 2 * multiplying(d, d) + m / 100;
+					} else if (n != null || da <= 2) {
+						// not a whole number (Gamma), or small whatever it turns out to be
+						digits[i] = precision > 0 ? precision : 100;
+						own = precision > 0 ? transcendental(precision) : 1;
+					} else {
+						// who knows, (x + 1000)! could be anything, better a task too many than one core on it
+						digits[i] = 1000;
+						own = FORK_COST;
+					}
+				}
+				default -> {	// the functions
+					digits[i] = precision > 0 ? precision : 17;
+					own = precision > 0 ? transcendental(precision) : 1;
+				}
+			}
+			double ca = a < 0 ? 0 : cost[a], cb = b < 0 ? 0 : cost[b], cc = c < 0 ? 0 : cost[c];
+			cost[i] = own + ca + cb + cc;
+			int expensive = (ca >= FORK_COST ? 1 : 0) + (cb >= FORK_COST ? 1 : 0) + (cc >= FORK_COST ? 1 : 0);
+			if (expensive >= 2) worth = true;
+		}
+		return worth;
+	}
+
+	// microseconds or so to multiply numbers this long, BigInteger's Toom-Cook is about n^1.5 for equal sizes
+	private static double multiplying(double x, double y) {
+		double small = Math.min(x, y), big = Math.max(x, y);
+		return small < 50 ? big / 1000 : big * Math.pow(small, 0.6) / 10000;
+	}
+
+	// BigMath's series at this precision
+	private static double transcendental(int precision) { return (double) precision * precision / 50; }
+
+	// the number a leaf node stands for, null if it isn't one
+	private static BigDecimal leaf(Tree t, int i, BigDecimal ans, BigDecimal[] values) {
+		if (i < 0) return null;
+		int op = t.code[i] & CompiledExpression.OPCODE_MASK, k = t.code[i] >>> CompiledExpression.OPCODE_BITS;
+		return switch (op) {
+			case CompiledExpression.PUSH -> t.constants[k];
+			case CompiledExpression.ANS -> ans;
+			case CompiledExpression.LOAD -> values[k];
+			default -> null;
+		};
+	}
+
+	// without precision(), which has to count the digits of a big number one division at a time
+	private static double digits(BigDecimal v) {
+		return Math.max(1, v.unscaledValue().bitLength() * 0.30103 + Math.max(0, -v.scale()));
+	}
+
+	private static boolean isWhole(BigDecimal v) { return v.scale() <= 0 || v.setScale(0, RoundingMode.DOWN).compareTo(v) == 0; }
+
+	// one evaluation
+	private static final class Run<T> {
+		final Tree tree;
+		final Arithmetic<T> math;
+		final double[] cost;
+		// the pool's threads don't have the caller's Budget, so it's passed along
+		final Budget budget = Budget.current();
+		// temp -> the task working it out (or the one that already did)
+		final AtomicReferenceArray<Task<T>> shared;
+
+		Run(Tree tree, Arithmetic<T> math, double[] cost) {
+			this.tree = tree;
+			this.math = math;
+			this.cost = cost;
+			this.shared = new AtomicReferenceArray<>(tree.saved.length);
+		}
+
+		// node i's number, worked out on this thread except for whatever gets forked below it
+		T value(int i, int depth) {
+			int op = tree.code[i] & CompiledExpression.OPCODE_MASK;
+			if (op == CompiledExpression.TEMP) return shared(tree.saved[tree.code[i] >>> CompiledExpression.OPCODE_BITS], depth);
+			if (tree.temp[i] >= 0) return shared(i, depth);
+			return compute(i, depth);
+		}
+
+		private T compute(int i, int depth) {
+			if (tree.a[i] < 0 || cost[i] < FORK_COST || depth > MAX_DEPTH) return slice(i);
+			int[] operands = tree.c[i] >= 0 ? new int[] { tree.a[i], tree.b[i], tree.c[i] }
+				: tree.b[i] >= 0 ? new int[] { tree.a[i], tree.b[i] } : new int[] { tree.a[i] };
+			int expensive = 0;
+			for (int o : operands) if (cost[o] >= FORK_COST) expensive++;
+			// everything after the first operand that's worth it goes to the pool
+			@SuppressWarnings("unchecked")
+			Task<T>[] forked = (Task<T>[]) new Task<?>[operands.length];
+			if (expensive >= 2) {
+				for (int k = 1; k < operands.length; k++) {
+					if (cost[operands[k]] < FORK_COST) continue;
+					forked[k] = new Task<>(this, operands[k], depth + 1);
+					forked[k].fork();
+				}
+			}
+			@SuppressWarnings("unchecked")
+			T[] v = (T[]) new Object[3];
+			for (int k = 0; k < operands.length; k++) {
+				try {
+					v[k] = forked[k] != null ? forked[k].result() : value(operands[k], depth + 1);
+				} catch (RuntimeException | Error e) {
+					// this is where the interpreter would have stopped, the rest won't be needed
+					for (int rest = k + 1; rest < operands.length; rest++) if (forked[rest] != null) forked[rest].cancel(false);
+					throw e;
+				}
+			}
+			return math.apply(tree.code[i], v[0], v[1], v[2]);
+		}
+
+		// a shared node, worked out by whoever gets to it first
+		private T shared(int node, int depth) {
+			int k = tree.temp[node];
+			Task<T> task = shared.get(k);
+			if (task == null) {
+				Task<T> mine = new Task<>(this, node, depth);
+				mine.shared = true;
+				if (shared.compareAndSet(k, null, mine)) {
+					mine.invoke();
+					return mine.result();
+				}
+				task = shared.get(k);
+			}
+			return task.result();
+		}
+
+		// code[first[i]..i] on a stack, the interpreter's way
+		private T slice(int i) {
+			int[] code = tree.code;
+			int from = tree.first[i];
+			@SuppressWarnings("unchecked")
+			T[] s = (T[]) new Object[tree.maxDepth];
+			@SuppressWarnings("unchecked")
+			T[] temps = (T[]) new Object[tree.saved.length];
+			int sp = 0;
+			for (int j = from; j <= i; j++) {
+				int op = code[j] & CompiledExpression.OPCODE_MASK, k = code[j] >>> CompiledExpression.OPCODE_BITS;
+				switch (op) {
+					case CompiledExpression.PUSH, CompiledExpression.ANS, CompiledExpression.LOAD -> s[sp++] = math.leaf(code[j]);
+					case CompiledExpression.TEE -> {
+						temps[k] = s[sp - 1];
+						// anyone else who needs it can have it now
+						if (shared.get(k) == null) shared.compareAndSet(k, null, Task.done(this, tree.saved[k], s[sp - 1]));
+					}
+					case CompiledExpression.TEMP -> s[sp++] = tree.saved[k] >= from ? temps[k] : shared(tree.saved[k], MAX_DEPTH);
+					case CompiledExpression.MODPOW -> {
+						sp -= 2;
+						s[sp - 1] = math.apply(code[j], s[sp - 1], s[sp], s[sp + 1]);
+					}
+					case CompiledExpression.ADD, CompiledExpression.SUB, CompiledExpression.MUL, CompiledExpression.DIV,
+						CompiledExpression.MOD, CompiledExpression.POW -> {
+						sp--;
+						s[sp - 1] = math.apply(code[j], s[sp - 1], s[sp], null);
+					}
+					default -> s[sp - 1] = math.apply(code[j], s[sp - 1], null, null);
+				}
+			}
+			return s[0];
+		}
+	}
+
+	// one node on the pool (or on whichever thread invokes it), the outcome is kept rather than thrown so join()
+	// never sees an exception, result() throws the original
+	@SuppressWarnings("serial")	// a fork/join task is never serialized
+	private static final class Task<T> extends RecursiveAction {
+		private final Run<T> run;
+		private final int node, depth;
+		boolean shared;	// the node's own task in Run.shared, not one that goes through it
+		private T value;
+		private Throwable error;
+
+		Task(Run<T> run, int node, int depth) {
+			this.run = run;
+			this.node = node;
+			this.depth = depth;
+		}
+
+		static <T> Task<T> done(Run<T> run, int node, T value) {
+			Task<T> t = new Task<>(run, node, 0);
+			t.value = value;
+			t.complete(null);
+			return t;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				value = run.budget == null ? work() : run.budget.call(this::work);
+			} catch (RuntimeException | Error e) {
+				error = e;
+			}
+		}
+
+		private T work() { return shared ? run.compute(node, depth) : run.value(node, depth); }
+
+		T result() {
+			join();
+			if (error instanceof RuntimeException e) throw e;
+			if (error instanceof Error e) throw e;
+			return value;
+		}
+	}
+}
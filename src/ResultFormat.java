@@ -0,0 +1,110 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+// turns results into text: a short form for the display that costs about the same for 20000! as for 2 + 2, every digit
+// only when someone asks for it, and integers in binary, octal or hexadecimal too
+// printing a big number is the slow part, not computing it: 200000! is half a second to compute, 2 seconds to turn into
+// digits, and stripTrailingZeros() on it took most of a minute (it divides its 49998 zeros out one at a time)
+public final class ResultFormat {
+	private ResultFormat() {}
+
+	// what the display has room for, longer results are shown in scientific notation (or cut short in other bases)
+	public static final int BRIEF_LENGTH = 60;
+	// significant digits in scientific notation
+	private static final int SCIENTIFIC_DIGITS = 16;
+
+	// `complete` when `text` is the whole number, in decimal, so it can be typed back in as it is
+	public record Text(String text, boolean complete) {}
+
+	// the display's version of `v`
+	public static Text brief(BigDecimal v, int radix) {
+		if (radix != 10 && isInteger(v)) return briefInteger(v.toBigIntegerExact(), radix);
+		// digits left of the point, known without printing anything
+		long whole = (long) v.precision() - v.scale();
+		// 0.000...0001 is short as a number but not as text
+		if (whole <= BRIEF_LENGTH && whole > -BRIEF_LENGTH / 2) {
+			String plain = plain(v);
+			if (plain.length() <= BRIEF_LENGTH) return new Text(plain, true);
+			// too many decimals, round them off to fit
+			if (whole + 2 < BRIEF_LENGTH) {
+				int scale = (int) (BRIEF_LENGTH - 1 - Math.max(whole, 1) - (v.signum() < 0 ? 1 : 0));
+				return new Text(plain(v.setScale(scale, RoundingMode.HALF_UP)), false);
+			}
+		}
+		return new Text(scientific(v), false);
+	}
+
+	// every digit, in decimal, without an exponent and without trailing zeros after the point
+	public static String plain(BigDecimal v) {
+		// integers have nothing to strip, and stripTrailingZeros() would go on into the integer's own zeros
+		if (v.scale() <= 0) return v.toPlainString();
+		BigDecimal whole = v.setScale(0, RoundingMode.DOWN);
+		if (whole.compareTo(v) == 0) return whole.toPlainString();
+		// there's a digit after the point that isn't 0, so at most `scale` zeros to strip
+		return v.stripTrailingZeros().toPlainString();
+	}
+
+	// every digit in `radix` (2, 8, 10 or 16), with the 0b/0o/0x prefix, non-integers only in decimal
+	public static String full(BigDecimal v, int radix) {
+		if (radix == 10 || !isInteger(v)) return plain(v);
+		return prefixed(v.toBigIntegerExact(), radix, toString(v.toBigIntegerExact().abs(), radix));
+	}
+
+	// 1.819206320230345E+77337
+	static String scientific(BigDecimal v) {
+		return v.round(new MathContext(SCIENTIFIC_DIGITS, RoundingMode.HALF_EVEN)).stripTrailingZeros().toString();
+	}
+
+	// the digits of `n` in `radix`, lowercase, "-" in front for negatives
+	// powers of two just cut the bits up, linear in the size of the number, everything else goes to
+	// BigInteger.toString(), which already splits the number in halves by powers of the radix (divide and conquer)
+	// instead of dividing one digit off at a time
+	public static String toString(BigInteger n, int radix) {
+		if (Integer.bitCount(radix) != 1 || radix > 32) return n.toString(radix);
+		int shift = Integer.numberOfTrailingZeros(radix);
+		BigInteger m = n.abs();
+		int digits = Math.max(1, (m.bitLength() + shift - 1) / shift);
+		int sign = n.signum() < 0 ? 1 : 0;
+		char[] out = new char[sign + digits];
+		if (sign == 1) out[0] = '-';
+		byte[] bytes = m.toByteArray();	// big-endian, maybe with a leading 0 byte for the sign
+		for (int d = 0; d < digits; d++) {
+			int value = 0;
+			for (int b = shift - 1; b >= 0; b--) value = value << 1 | bit(bytes, d * shift + b);
+			out[out.length - 1 - d] = Character.forDigit(value, radix);
+		}
+		return new String(out);
+	}
+
+	private static int bit(byte[] bytes, int i) {
+		int index = bytes.length - 1 - (i >>> 3);
+		return index < 0 ? 0 : bytes[index] >> (i & 7) & 1;
+	}
+
+	// the first digits and how many there are in all: 0x1a2b3c…(64200 digits)
+	private static Text briefInteger(BigInteger n, int radix) {
+		int shift = Integer.numberOfTrailingZeros(radix);
+		BigInteger m = n.abs();
+		int digits = Math.max(1, (m.bitLength() + shift - 1) / shift);
+		int room = BRIEF_LENGTH - 20;
+		if (digits <= BRIEF_LENGTH - 3) return new Text(prefixed(n, radix, toString(m, radix)), false);
+		// the top `room` digits are the bits above the last (digits - room) digits
+		String top = toString(m.shiftRight((digits - room) * shift), radix);
+		return new Text(prefixed(n, radix, top + "…(" + digits + " digits)"), false);
+	}
+
+	private static String prefixed(BigInteger n, int radix, String digits) {
+		String prefix = switch (radix) {
+			case 2 -> "0b";
+			case 8 -> "0o";
+			case 16 -> "0x";
+			default -> "";
+		};
+		return (n.signum() < 0 ? "-" : "") + prefix + digits;
+	}
+
+	// without stripTrailingZeros(), see plain()
+	private static boolean isInteger(BigDecimal v) { return v.scale() <= 0 || v.setScale(0, RoundingMode.DOWN).compareTo(v) == 0; }
+}
@@ -0,0 +1,114 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// one user's calculator: what "Ans" is, their variables' values and how they want results worked out (mode,
+// precision, time limit), nothing else belongs to anyone. expressions are compiled once into CompiledExpressions that
+// never change and any number of threads can evaluate at once, the caches in between (ExpressionCache, Memo) take no
+// lock on a hit, so thousands of sessions fit in one JVM and evaluate side by side without waiting on each other
+// functions a session defines are its own, on top of Functions.LIBRARY
+// one thread at a time: give each user (or window, or connection) its own. sessions made with the same
+// ExpressionCache share compiled expressions, SHARED unless they're given one
+//	Session s = new Session();
+//	s.set("rate", new BigDecimal("0.05"));
+//	s.evaluate("1000 * (1 + rate)^10");	// 1628.89462677744140625000
+//	s.evaluate("Ans - 1000");	// 628.89462677744140625000
+//	s.define("f(x) = x^2 + 3x");
+//	s.evaluate("f(2)");	// 10
+public final class Session {
+	// the cache sessions use unless they're given one, -Djavacalc.session.cache=<expressions>
+	public static final ExpressionCache SHARED = new ExpressionCache(Integer.getInteger("javacalc.session.cache", 16384));
+
+	private final ExpressionCache cache;
+	private BigDecimal ans = BigDecimal.ZERO;
+	private final Map<String, BigDecimal> variables = new HashMap<>();
+	private EvaluationMode mode = EvaluationMode.EXACT;
+	private MathContext mc;	// null = the calculator's usual precision
+	private Duration timeout;	// null for none
+	private Functions functions = Functions.LIBRARY;	// a table of its own once something's defined
+
+	public Session() { this(SHARED); }
+
+	public Session(ExpressionCache cache) { this.cache = cache; }
+
+	// evaluates `expression` with this session's Ans, variables and settings, the result is the new Ans
+	// what goes wrong (1/0, a variable without a value, the time limit...) is thrown and leaves Ans as it was
+	public Evaluation evaluate(String expression) {
+		CompiledExpression compiled = cache.compile(expression, functions);
+		BigDecimal[] values = values(compiled);
+		Evaluation result = timeout == null ? evaluate(compiled, values) : new Budget(timeout, 0).call(() -> evaluate(compiled, values));
+		ans = result.value();
+		return result;
+	}
+
+	private Evaluation evaluate(CompiledExpression compiled, BigDecimal[] values) {
+		if (mc != null) return new Evaluation(compiled.evaluate(ans, values, mc), EvaluationMode.EXACT);
+		return compiled.evaluate(ans, values, mode);
+	}
+
+	// the expression's variables in its order, from this session
+	private BigDecimal[] values(CompiledExpression compiled) {
+		List<String> names = compiled.variables();
+		BigDecimal[] values = new BigDecimal[names.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = variables.get(names.get(i));
+			if (values[i] == null) throw new IllegalArgumentException("No value for " + names.get(i));
+		}
+		return values;
+	}
+
+	public BigDecimal ans() { return ans; }
+
+	public void setAns(BigDecimal ans) {
+		if (ans == null) throw new IllegalArgumentException("Ans can't be null");
+		this.ans = ans;
+	}
+
+	// null when it has no value
+	public BigDecimal get(String variable) { return variables.get(variable); }
+
+	// a name the tokenizer reads as a variable, x, rate... (not "Ans" and not sin, cos... which are always functions, a
+	// function of Functions' like max only when it's called, so max + 1 is a variable)
+	public Session set(String variable, BigDecimal value) {
+		if (value == null) throw new IllegalArgumentException("No value for " + variable);
+		if (variable.isEmpty() || !variable.chars().allMatch(Character::isLetter) || variable.startsWith("Ans") || ExpressionEngine.isBuiltIn(variable))
+			throw new IllegalArgumentException("Not a variable name: " + variable);
+		variables.put(variable, value);
+		return this;
+	}
+
+	public void remove(String variable) { variables.remove(variable); }
+
+	// "f(x) = x^2 + 3x", only for this session, see Functions.define()
+	public Session define(String definition) {
+		if (functions == Functions.LIBRARY) functions = new Functions();
+		functions.define(definition);
+		return this;
+	}
+
+	// this session's functions and the library's
+	public Functions functions() { return functions; }
+
+	public Map<String, BigDecimal> variables() { return Collections.unmodifiableMap(variables); }
+
+	public EvaluationMode mode() { return mode; }
+
+	// FAST, RATIONAL... see EvaluationMode, only when there's no MathContext
+	public void setMode(EvaluationMode mode) { this.mode = mode; }
+
+	public MathContext mathContext() { return mc; }
+
+	// every function worked out with BigMath at this precision, null to go back to the mode
+	public void setMathContext(MathContext mc) { this.mc = mc; }
+
+	public Duration timeout() { return timeout; }
+
+	// null for no limit
+	public void setTimeout(Duration timeout) { this.timeout = timeout; }
+
+	public ExpressionCache cache() { return cache; }
+}
@@ -0,0 +1,12 @@
+// represents an individual piece of a math expression, paired with the TokenType enum
+class Token {
+	TokenType type;
+	String value;
+	// how many arguments a FUNCTION was called with, max(1, 2) is 2
+	int arguments = 1;
+
+	Token(TokenType type, String value) {
+		this.type = type;
+		this.value = value;
+	}
+}
@@ -0,0 +1,5 @@
+// classifies different parts of an expression for the parser
+// ANS stands in for the previous answer, it gets its value at evaluation time and not when parsing
+// VARIABLE is any other name (x, y, rate...), same idea, the caller binds a value to it when evaluating
+// COMMA separates a function's arguments, max(1, 2)
+enum TokenType { NUMBER, OPERATOR, FUNCTION, FACTORIAL, LPAREN, RPAREN, ROOT, ANS, VARIABLE, COMMA }